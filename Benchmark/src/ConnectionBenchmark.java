@@ -0,0 +1,218 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the servers under a burst of short uploads: the Blocking server with a platform thread per connection,
+ * the Blocking server on virtual threads and the Non-blocking server. Each server runs in its own JVM started from
+ * the compiled classes of its project, in a scratch directory; the benchmark then opens `bench.connections`
+ * connections, `bench.concurrency` at a time, each sending a `bench.payloadSize` bytes file and waiting for the
+ * server to close the connection.
+ *
+ * Reported per server: connections per second, p50 and p99 latency from the connection attempt to the close by the
+ * server (which covers the accept, the header and the payload), failed connections and the peak RSS of the server
+ * process (VmHWM, Linux only).
+ *
+ * <pre>
+ * java -Dbench.blockingClasspath=Blocking/FTPServer/out -Dbench.nioClasspath=Non-blocking/FTPServer/out \
+ *      -cp Benchmark/out ConnectionBenchmark
+ * </pre>
+ */
+public class ConnectionBenchmark {
+
+    private static String blockingClasspath = System.getProperty("bench.blockingClasspath");
+
+    private static String nioClasspath = System.getProperty("bench.nioClasspath");
+
+    // any of `platform`, `virtual` and `nio`, comma separated
+    private static String modes = System.getProperty("bench.modes", "platform,virtual,nio");
+
+    private static int connections = Integer.getInteger("bench.connections", 10000);
+
+    private static int concurrency = Integer.getInteger("bench.concurrency", 256);
+
+    private static int payloadSize = Integer.getInteger("bench.payloadSize", 4096);
+
+    private static int port = Integer.getInteger("bench.port", 9900);
+
+    // extra JVM options of the servers, space separated
+    private static String serverOptions = System.getProperty("bench.serverOptions", "");
+
+    public static void main(String args[]) throws Exception {
+        if (blockingClasspath == null || nioClasspath == null) {
+            System.err.println("Please set -Dbench.blockingClasspath and -Dbench.nioClasspath to the compiled servers.");
+            System.exit(1);
+        }
+
+        System.out.printf("%d connection(s), %d at a time, %d byte(s) each%n", connections, concurrency, payloadSize);
+        System.out.printf("%-10s %12s %10s %10s %8s %12s%n", "server", "conn/s", "p50 ms", "p99 ms", "failed", "peak RSS");
+        for (String mode : modes.split(",")) {
+            run(mode.trim());
+        }
+    }
+
+    private static void run(String mode) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        for (String option : serverOptions.trim().split("\\s+")) {
+            if (!option.isEmpty()) {
+                command.add(option);
+            }
+        }
+        command.add("-Dftp.server.threadMode=" + (mode.equals("virtual") ? "virtual" : "platform"));
+        command.add("-cp");
+        command.add(new File(mode.equals("nio") ? nioClasspath : blockingClasspath).getAbsolutePath());
+        command.add("FTPServer");
+
+        Path workDir = Files.createTempDirectory("bench-" + mode);
+        File log = new File(workDir.toFile(), "server.log");
+        // keep the console output of the server out of the measurement
+        Process server = new ProcessBuilder(command)
+                .directory(workDir.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+        try {
+            // answer the prompts of the server
+            Writer stdin = new OutputStreamWriter(server.getOutputStream(), StandardCharsets.US_ASCII);
+            stdin.write("127.0.0.1\n" + port + "\n");
+            stdin.flush();
+            // a server that cannot run the mode exits instead of running another one, e.g. the virtual mode before
+            // Java 21, so its row is skipped rather than measured under the wrong name
+            if (!waitForTheServer(server)) {
+                System.out.printf("%-10s skipped, the server exited with the status %d (see %s)%n", mode,
+                        server.exitValue(), log);
+                return;
+            }
+
+            byte[] request = request(mode.equals("nio"));
+            long[] latencies = new long[connections];
+            AtomicInteger failed = new AtomicInteger();
+            ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+
+            long startNanos = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>(connections);
+            for (int i = 0; i < connections; i++) {
+                final int index = i;
+                futures.add(clients.submit(() -> {
+                    long connectNanos = System.nanoTime();
+                    try {
+                        upload(request);
+                        latencies[index] = System.nanoTime() - connectNanos;
+                    } catch (IOException e) {
+                        latencies[index] = -1;
+                        failed.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            clients.shutdown();
+
+            long[] completed = Arrays.stream(latencies).filter(latency -> latency >= 0).sorted().toArray();
+            System.out.printf("%-10s %12.0f %10.2f %10.2f %8d %12s%n", mode,
+                    completed.length / seconds, percentile(completed, 0.50) / 1e6, percentile(completed, 0.99) / 1e6,
+                    failed.get(), peakRss(server));
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /**
+     * The header and the payload of one upload. The Blocking server reads the name with `readUTF()`, the
+     * Non-blocking server accepts the legacy one byte length header.
+     */
+    private static byte[] request(boolean nio) throws IOException {
+        String fileName = "bench.bin";
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bytes);
+        if (nio) {
+            dos.writeByte(fileName.length());
+            dos.writeBytes(fileName);
+        } else {
+            dos.writeUTF(fileName);
+        }
+        dos.write(new byte[payloadSize]);
+        dos.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Sends the request, then waits for the server to close the connection once the file is written.
+     */
+    private static void upload(byte[] request) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            OutputStream os = socket.getOutputStream();
+            os.write(request);
+            os.flush();
+            socket.shutdownOutput();
+
+            InputStream is = socket.getInputStream();
+            while (is.read() != -1) {
+                // the servers do not reply to a legacy upload
+            }
+        }
+    }
+
+    /**
+     * Waits for the server to listen on the port. Returns false when it exited first.
+     */
+    private static boolean waitForTheServer(Process server) throws Exception {
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (System.nanoTime() < deadline) {
+            if (!server.isAlive()) {
+                return false;
+            }
+            try {
+                new Socket("127.0.0.1", port).close();
+                return true;
+            } catch (ConnectException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("The server did not listen on the port " + port + " within 10 s.");
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    /**
+     * Returns the peak resident set size of the process from /proc, or `n/a` elsewhere.
+     */
+    private static String peakRss(Process process) {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/" + process.pid() + "/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return line.substring("VmHWM:".length()).trim();
+                }
+            }
+        } catch (IOException e) {
+            // not on Linux
+        }
+        return "n/a";
+    }
+}
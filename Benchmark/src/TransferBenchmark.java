@@ -0,0 +1,845 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * Measures the transfer hot paths end to end with the code of the projects: it compiles the two servers and the two
+ * clients from their sources, starts each server in its own JVM on a loopback port, in a scratch directory, and
+ * uploads files to it with the matching client, run in this JVM. Four scenarios are run:
+ *
+ * <pre>
+ * buffers     one upload per size of `bench.bufferSizes`, as the `bufferSize` of the Blocking server and the
+ *             `slabSize` of the Non-blocking one
+ * zero-copy   one upload with the copy and the zero-copy modes of the clients (and of the Non-blocking server), then
+ *             one through the heap and the direct buffers of the Non-blocking server
+ * concurrent  `bench.concurrency` uploads at once (1, 10 and 1000 by default) sharing `bench.totalSize` bytes
+ * latency     one upload to the Non-blocking server per transport profile of `bench.profiles`, through a relay
+ *             adding `bench.latencyMicros`
+ * </pre>
+ *
+ * The uploads of the Blocking client are `sendWithCopy()` or `sendWithTransferTo()` called from one thread per file;
+ * an upload ends when the server wrote all of its bytes. The Non-blocking client is started through its `main()`
+ * with the settings as system properties (any other `ftp.client.*` setting of this JVM reaches it as well), the
+ * concurrent uploads being the ranges of one file over `ftp.client.streams` connections; an upload ends when the
+ * server committed the file. The files the servers wrote are deleted after each iteration. A failed upload of the
+ * Non-blocking client ends the benchmark, as it ends the client.
+ *
+ * Loopback has no latency to speak of, so the latency scenario sends the uploads through a {@link DelayRelay}: it
+ * delivers every read half a round trip later and lets no more bytes be in flight than the smaller of the send and
+ * receive buffers the kernel granted to the sockets of the profile, each byte being acknowledged one round trip after
+ * it was read, like a TCP window on a long path, in both directions. The server and the client size their sockets and
+ * buffers for the injected round trip (`rttMicros`), since the connect to the relay does not see it. The relay does
+ * not grow the window of the `default` profile like the autotuning of Linux would, that row shows a path held to the
+ * initial buffers.
+ *
+ * Each measurement starts a server, runs `bench.warmups` untimed iterations, then `bench.iterations` timed ones, and
+ * reports the MB/s, the uploads per second, the allocation rate of the clients (the heap bytes allocated by every
+ * thread of this JVM per upload and per second, the threads ending within the measurement included, see
+ * {@link HeapAllocation}) and the peak RSS of the server process (VmHWM, Linux only). The relay runs in a JVM of its
+ * own, so that only the clients and the little the harness allocates are counted. The projects are compiled with
+ * `-Xlint:all`, their warnings are printed before the results.
+ *
+ * <pre>
+ * java -Dbench.scenarios=buffers,zero-copy -cp Benchmark/out TransferBenchmark
+ * </pre>
+ */
+public class TransferBenchmark {
+
+    // root of the projects, the directory holding `Blocking` and `Non-blocking`
+    private static String sourceRoot = System.getProperty("bench.sourceRoot", ".");
+
+    // any of `buffers`, `zero-copy`, `concurrent` and `latency`, comma separated
+    private static String scenarios = System.getProperty("bench.scenarios", "buffers,zero-copy,concurrent");
+
+    // any of `blocking` and `nio`, comma separated
+    private static String servers = System.getProperty("bench.servers", "blocking,nio");
+
+    private static String bufferSizes = System.getProperty("bench.bufferSizes", "4096,16384,65536,262144,1048576");
+
+    private static String concurrency = System.getProperty("bench.concurrency", "1,10,1000");
+
+    // bytes sent by all the uploads of an iteration
+    private static long totalSize = Long.getLong("bench.totalSize", 64L << 20);
+
+    private static int warmups = Integer.getInteger("bench.warmups", 2);
+
+    private static int iterations = Integer.getInteger("bench.iterations", 5);
+
+    // transport profiles of the latency scenario, the round trip the relay adds and the bandwidth the profiles size
+    // their buffers for, 0 for their own
+    private static String profiles = System.getProperty("bench.profiles", "default,lan,wan");
+
+    private static long latencyMicros = Long.getLong("bench.latencyMicros", 20_000);
+
+    private static long bandwidthMbps = Long.getLong("bench.bandwidthMbps", 0);
+
+    // extra settings of the servers, as `--name=value` flags separated by spaces
+    private static String serverOptions = System.getProperty("bench.serverOptions", "");
+
+    // seconds an upload may take before the benchmark gives up
+    private static int timeoutSeconds = Integer.getInteger("bench.timeoutSeconds", 120);
+
+    private static final String[] PROJECTS = {"Blocking/FTPServer", "Blocking/FTPClient", "Non-blocking/FTPServer",
+            "Non-blocking/FTPClient"};
+
+    // compiled classes of each project
+    private static final Map<String, File> classes = new HashMap<>();
+
+    private static Path workDir;
+
+    // sources of the uploads by their count, the files of an iteration share `totalSize`
+    private static final Map<Integer, File[]> sources = new HashMap<>();
+
+    private static Method blockingCopy;
+
+    private static Method blockingTransferTo;
+
+    private static Method nioMain;
+
+    private static final HeapAllocation heapAllocation = new HeapAllocation();
+
+    private static final PrintStream console = System.out;
+
+    // takes the console output of the clients during the measurements
+    private static final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+    private static class Variant {
+        final String name;
+
+        // `blocking` or `nio`
+        final String server;
+
+        final List<String> serverFlags;
+
+        // `copy` or `zero-copy`
+        final String sendMode;
+
+        // null outside the latency scenario
+        final TransportProfile profile;
+
+        Variant(String name, String server, List<String> serverFlags, String sendMode) {
+            this(name, server, serverFlags, sendMode, null);
+        }
+
+        Variant(String name, String server, List<String> serverFlags, String sendMode, TransportProfile profile) {
+            this.name = name;
+            this.server = server;
+            this.serverFlags = serverFlags;
+            this.sendMode = sendMode;
+            this.profile = profile;
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        // the relay of the latency scenario, started by the benchmark in its own JVM
+        if (args.length == 4 && args[0].equals("--relay")) {
+            DelayRelay.main(args);
+            return;
+        }
+
+        workDir = Files.createTempDirectory("transfer-bench");
+        try {
+            build();
+            System.out.printf("%d byte(s) per iteration, %d warm-up and %d timed iteration(s)%n",
+                    totalSize, warmups, iterations);
+            System.out.printf("%-11s %-24s %10s %12s %14s %14s %12s%n",
+                    "scenario", "variant", "MB/s", "uploads/s", "alloc MB/s", "alloc B/upload", "server RSS");
+            for (String scenario : scenarios.split(",")) {
+                switch (scenario.trim()) {
+                    case "buffers":
+                        for (String size : bufferSizes.split(",")) {
+                            size = size.trim();
+                            if (runs("blocking")) {
+                                measure("buffers", new Variant("blocking " + size, "blocking",
+                                        List.of("--bufferSize=" + size), "copy"), 1);
+                            }
+                            if (runs("nio")) {
+                                measure("buffers", new Variant("nio " + size, "nio",
+                                        List.of("--slabSize=" + size), "copy"), 1);
+                            }
+                        }
+                        break;
+                    case "zero-copy":
+                        if (runs("blocking")) {
+                            measure("zero-copy", new Variant("blocking copy", "blocking", List.of(), "copy"), 1);
+                            measure("zero-copy", new Variant("blocking transferTo", "blocking", List.of(),
+                                    "zero-copy"), 1);
+                        }
+                        if (runs("nio")) {
+                            measure("zero-copy", new Variant("nio copy", "nio", List.of("--receiveMode=copy"),
+                                    "copy"), 1);
+                            measure("zero-copy", new Variant("nio transferTo/From", "nio",
+                                    List.of("--receiveMode=zero-copy"), "zero-copy"), 1);
+                            measure("zero-copy", new Variant("nio heap buffers", "nio",
+                                    List.of("--maxOffHeapBytes=0"), "copy"), 1);
+                            measure("zero-copy", new Variant("nio direct buffers", "nio", List.of(), "copy"), 1);
+                        }
+                        break;
+                    case "concurrent":
+                        for (String count : concurrency.split(",")) {
+                            int uploads = Integer.parseInt(count.trim());
+                            // a burst larger than the backlog would be measured as the retransmits of its SYNs
+                            if (runs("blocking")) {
+                                measure("concurrent", new Variant("blocking " + uploads + " upload(s)", "blocking",
+                                        List.of("--backlog=" + Math.max(uploads, 100)), "copy"), uploads);
+                            }
+                            if (runs("nio")) {
+                                measure("concurrent", new Variant("nio " + uploads + " upload(s)", "nio",
+                                        List.of(), "copy"), uploads);
+                            }
+                        }
+                        break;
+                    case "latency":
+                        for (String name : profiles.split(",")) {
+                            TransportProfile profile = TransportProfile.named(name.trim(), bandwidthMbps);
+                            if (profile == null) {
+                                System.err.println("Unknown transport profile " + name);
+                                continue;
+                            }
+                            measure("latency", new Variant("nio " + profile, "nio",
+                                    List.of("--profile=" + profile, "--rttMicros=" + latencyMicros,
+                                            "--bandwidthMbps=" + bandwidthMbps), "copy", profile), 1);
+                        }
+                        break;
+                    default:
+                        System.err.println("Unknown scenario " + scenario);
+                }
+            }
+        } finally {
+            System.setOut(console);
+            deleteRecursively(workDir.toFile());
+        }
+    }
+
+    private static boolean runs(String server) {
+        return Arrays.stream(servers.split(",")).anyMatch(name -> name.trim().equals(server));
+    }
+
+    /**
+     * Compiles the projects into the work directory, then loads the entry points of the clients, each client in its
+     * own class loader since the projects share class names.
+     */
+    private static void build() throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("The benchmark compiles the projects, please run it with a JDK.");
+        }
+        for (String project : PROJECTS) {
+            File out = new File(workDir.toFile(), "classes/" + project);
+            if (!out.mkdirs()) {
+                throw new IOException("Cannot create " + out);
+            }
+            List<String> arguments = new ArrayList<>(List.of("-Xlint:all", "-d", out.getPath()));
+            try (Stream<Path> files = Files.list(Path.of(sourceRoot, project, "src"))) {
+                files.filter(file -> file.toString().endsWith(".java")).forEach(file -> arguments.add(file.toString()));
+            }
+            if (compiler.run(null, null, null, arguments.toArray(new String[0])) != 0) {
+                throw new IllegalStateException("Cannot compile " + project);
+            }
+            classes.put(project, out);
+        }
+
+        Class<?> blockingClient = loadTheClient("Blocking/FTPClient");
+        blockingCopy = blockingClient.getDeclaredMethod("sendWithCopy", String.class, int.class, String.class);
+        blockingTransferTo = blockingClient.getDeclaredMethod("sendWithTransferTo", String.class, int.class,
+                String.class);
+        blockingCopy.setAccessible(true);
+        blockingTransferTo.setAccessible(true);
+        nioMain = loadTheClient("Non-blocking/FTPClient").getMethod("main", String[].class);
+    }
+
+    private static Class<?> loadTheClient(String project) throws Exception {
+        // the platform class loader as the parent, so that the classes of the benchmark do not hide those of the
+        // client, e.g. TransportProfile
+        URLClassLoader loader = new URLClassLoader(new URL[] {classes.get(project).toURI().toURL()},
+                ClassLoader.getPlatformClassLoader());
+        return loader.loadClass("FTPClient");
+    }
+
+    /**
+     * Returns the files of `uploads` uploads, creating them the first time.
+     */
+    private static File[] sourcesOf(int uploads) throws IOException {
+        File[] files = sources.get(uploads);
+        if (files != null) {
+            return files;
+        }
+        File directory = new File(workDir.toFile(), "sources-" + uploads);
+        if (!directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        byte[] chunk = new byte[1 << 20];
+        new Random(1).nextBytes(chunk);
+        files = new File[uploads];
+        long fileSize = totalSize / uploads;
+        for (int i = 0; i < uploads; i++) {
+            files[i] = new File(directory, "upload-" + i + ".bin");
+            long length = i == uploads - 1 ? totalSize - fileSize * i : fileSize;
+            try (RandomAccessFile raf = new RandomAccessFile(files[i], "rw")) {
+                for (long written = 0; written < length; written += chunk.length) {
+                    raf.write(chunk, 0, (int) Math.min(chunk.length, length - written));
+                }
+            }
+        }
+        sources.put(uploads, files);
+        return files;
+    }
+
+    /**
+     * Starts the server of the variant, runs the warm-up and timed iterations of `uploads` concurrent uploads and
+     * prints one row.
+     */
+    private static void measure(String scenario, Variant variant, int uploads) throws Exception {
+        // the Non-blocking client sends the ranges of one file over as many connections
+        File[] files = sourcesOf(variant.server.equals("nio") ? 1 : uploads);
+        Server server = new Server(variant);
+        ExecutorService clients = variant.server.equals("blocking") ? Executors.newFixedThreadPool(uploads) : null;
+        Relay relay = null;
+        try {
+            InetSocketAddress address = server.getAddress();
+            if (variant.profile != null) {
+                relay = new Relay(address, latencyMicros * 1000, windowOf(variant.profile));
+                address = relay.getAddress();
+            }
+
+            for (int i = 0; i < warmups; i++) {
+                runAnIteration(variant, uploads, files, clients, server, address);
+            }
+
+            long allocatedBefore = heapAllocation.allocatedBytes();
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                runAnIteration(variant, uploads, files, clients, server, address);
+            }
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            long allocated = heapAllocation.allocatedBytes() - allocatedBefore;
+
+            System.out.printf("%-11s %-24s %10.1f %12.1f %14s %14s %12s%n", scenario, variant.name,
+                    totalSize * (double) iterations / 1e6 / seconds, uploads * (double) iterations / seconds,
+                    allocatedBefore < 0 ? "n/a" : String.format("%.1f", allocated / 1e6 / seconds),
+                    allocatedBefore < 0 ? "n/a" : Long.toString(allocated / ((long) uploads * iterations)),
+                    server.peakRss());
+        } finally {
+            if (relay != null) {
+                relay.stop();
+            }
+            if (clients != null) {
+                clients.shutdown();
+            }
+            server.stop();
+        }
+    }
+
+    private static void runAnIteration(Variant variant, int uploads, File[] files, ExecutorService clients,
+                                       Server server, InetSocketAddress address) throws Exception {
+        System.setOut(discard);
+        try {
+            if (variant.server.equals("nio")) {
+                uploadWithTheNioClient(variant, uploads, files[0], address);
+            } else {
+                Method send = variant.sendMode.equals("zero-copy") ? blockingTransferTo : blockingCopy;
+                List<Future<?>> futures = new ArrayList<>(uploads);
+                for (File file : files) {
+                    futures.add(clients.submit(() -> {
+                        Object bytesSent = send.invoke(null, address.getHostString(), address.getPort(),
+                                file.getPath());
+                        if ((Long) bytesSent < 0) {
+                            throw new IOException("Cannot upload " + file);
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            }
+            // the Blocking client returns once the kernel took the bytes, the Non-blocking one once the server
+            // verified the ranges, the commit follows
+            for (File file : files) {
+                server.waitForTheFile(file.getName(), file.length());
+            }
+        } finally {
+            System.setOut(console);
+        }
+        server.clean();
+    }
+
+    private static void uploadWithTheNioClient(Variant variant, int streams, File file, InetSocketAddress address)
+            throws Exception {
+        System.setProperty("ftp.client.host", address.getHostString());
+        System.setProperty("ftp.client.port", Integer.toString(address.getPort()));
+        System.setProperty("ftp.client.file", file.getPath());
+        System.setProperty("ftp.client.sendMode", variant.sendMode);
+        System.setProperty("ftp.client.streams", Integer.toString(streams));
+        // every iteration uploads the file anew
+        System.setProperty("ftp.client.resume", "false");
+        System.setProperty("ftp.client.profile", variant.profile != null ? variant.profile.toString() : "default");
+        System.setProperty("ftp.client.rttMicros", Long.toString(variant.profile != null ? latencyMicros : 0));
+        System.setProperty("ftp.client.bandwidthMbps", Long.toString(bandwidthMbps));
+        try {
+            nioMain.invoke(null, (Object) new String[0]);
+        } catch (InvocationTargetException e) {
+            throw new IOException("Cannot upload " + file, e.getCause());
+        }
+    }
+
+    /**
+     * Returns the bytes a socket of the profile may have in flight: the smaller of the send and receive buffers the
+     * kernel grants it.
+     */
+    private static int windowOf(TransportProfile profile) throws IOException {
+        try (SocketChannel socketChannel = SocketChannel.open()) {
+            profile.apply(socketChannel, latencyMicros * 1000);
+            return Math.min(socketChannel.getOption(StandardSocketOptions.SO_SNDBUF),
+                    socketChannel.getOption(StandardSocketOptions.SO_RCVBUF));
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete() && file.exists()) {
+            System.err.println("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * Counts the bytes allocated on the heap by all the threads of this JVM, the ended ones included, unlike the
+     * per-thread counters of `com.sun.management.ThreadMXBean`: the bytes a garbage collection freed, summed by a
+     * listener of the collectors, plus the heap used now. The heap used grows by whole thread-local allocation
+     * buffers, so a measurement may be off by one of them per thread; the direct buffers are not counted.
+     */
+    private static class HeapAllocation implements NotificationListener {
+
+        // heap pools by name, the others (metaspace, code cache) are not allocated by the threads
+        private final Set<String> heapPools = new HashSet<>();
+
+        private final AtomicLong freedBytes = new AtomicLong();
+
+        private final AtomicLong collections = new AtomicLong();
+
+        // false when the collectors do not send their notifications
+        private boolean available = true;
+
+        HeapAllocation() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    this.heapPools.add(pool.getName());
+                }
+            }
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (!(collector instanceof NotificationEmitter)) {
+                    this.available = false;
+                    return;
+                }
+                ((NotificationEmitter) collector).addNotificationListener(this, null, null);
+            }
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                return;
+            }
+            GcInfo gcInfo = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData())
+                    .getGcInfo();
+            long freed = 0;
+            for (Map.Entry<String, MemoryUsage> before : gcInfo.getMemoryUsageBeforeGc().entrySet()) {
+                if (this.heapPools.contains(before.getKey())) {
+                    MemoryUsage after = gcInfo.getMemoryUsageAfterGc().get(before.getKey());
+                    freed += before.getValue().getUsed() - after.getUsed();
+                }
+            }
+            this.freedBytes.addAndGet(freed);
+            this.collections.incrementAndGet();
+        }
+
+        /**
+         * Returns the bytes allocated on the heap so far, or -1 when they cannot be counted. The notifications of
+         * the collections are sent by another thread, so it first waits for those of the collections done so far.
+         */
+        long allocatedBytes() throws InterruptedException {
+            if (!this.available) {
+                return -1;
+            }
+            long done = 0;
+            for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+                done += Math.max(0, collector.getCollectionCount());
+            }
+            long deadline = System.nanoTime() + 1_000_000_000L;
+            while (this.collections.get() < done) {
+                if (System.nanoTime() > deadline) {
+                    return -1;
+                }
+                Thread.sleep(1);
+            }
+            long used = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (this.heapPools.contains(pool.getName())) {
+                    used += pool.getUsage().getUsed();
+                }
+            }
+            return used + this.freedBytes.get();
+        }
+    }
+
+    /**
+     * A server of a variant, in its own JVM and its own scratch directory, configured by its flags. The console
+     * output of the server goes to `server.log` in that directory.
+     */
+    private static class Server {
+
+        private final Process process;
+
+        private final File directory;
+
+        private final File log;
+
+        private final int port;
+
+        Server(Variant variant) throws Exception {
+            // a port nothing listens on, the server binds it again
+            try (ServerSocket probe = new ServerSocket(0)) {
+                this.port = probe.getLocalPort();
+            }
+            this.directory = Files.createTempDirectory(workDir, "server-" + variant.server).toFile();
+            this.log = new File(this.directory, "server.log");
+
+            List<String> command = new ArrayList<>();
+            command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+            command.add("-cp");
+            command.add(classes.get(variant.server.equals("nio") ? "Non-blocking/FTPServer" : "Blocking/FTPServer")
+                    .getAbsolutePath());
+            command.add("FTPServer");
+            command.add("--host=127.0.0.1");
+            command.add("--port=" + this.port);
+            command.addAll(variant.serverFlags);
+            for (String option : serverOptions.trim().split("\\s+")) {
+                if (!option.isEmpty()) {
+                    command.add(option);
+                }
+            }
+            this.process = new ProcessBuilder(command)
+                    .directory(this.directory)
+                    .redirectErrorStream(true)
+                    .redirectOutput(this.log)
+                    .start();
+            // a fully configured server does not read its standard input
+            this.process.getOutputStream().close();
+            this.waitForTheServer();
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress("127.0.0.1", this.port);
+        }
+
+        private void waitForTheServer() throws Exception {
+            long deadline = System.nanoTime() + 10_000_000_000L;
+            while (System.nanoTime() < deadline) {
+                if (!this.process.isAlive()) {
+                    throw new IOException("The server exited with the status " + this.process.exitValue()
+                            + ", see " + this.log);
+                }
+                try {
+                    new Socket("127.0.0.1", this.port).close();
+                    return;
+                } catch (ConnectException e) {
+                    Thread.sleep(50);
+                }
+            }
+            throw new IOException("The server did not listen on the port " + this.port + " within 10 s.");
+        }
+
+        /**
+         * Waits for the server to hold all the bytes of a file under its name.
+         */
+        void waitForTheFile(String name, long length) throws Exception {
+            File file = new File(this.directory, name);
+            long deadline = System.nanoTime() + timeoutSeconds * 1_000_000_000L;
+            while (file.length() != length) {
+                if (!this.process.isAlive() || System.nanoTime() > deadline) {
+                    throw new IOException(file + " holds " + file.length() + " of " + length + " byte(s), see "
+                            + this.log);
+                }
+                Thread.sleep(1);
+            }
+        }
+
+        /**
+         * Deletes the files the uploads left, so that the next iteration starts from the same state.
+         */
+        void clean() {
+            File[] files = this.directory.listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (!file.equals(this.log)) {
+                    deleteRecursively(file);
+                }
+            }
+        }
+
+        /**
+         * Returns the peak resident set size of the server from /proc, or `n/a` elsewhere.
+         */
+        String peakRss() {
+            try {
+                for (String line : Files.readAllLines(Path.of("/proc/" + this.process.pid() + "/status"))) {
+                    if (line.startsWith("VmHWM:")) {
+                        return line.substring("VmHWM:".length()).trim();
+                    }
+                }
+            } catch (IOException e) {
+                // not on Linux
+            }
+            return "n/a";
+        }
+
+        void stop() throws InterruptedException {
+            this.process.destroy();
+            this.process.waitFor();
+        }
+    }
+
+    /**
+     * The {@link DelayRelay} of a measurement, in its own JVM so that its buffers are not counted as allocated by the
+     * clients.
+     */
+    private static class Relay {
+
+        private final Process process;
+
+        private final int port;
+
+        Relay(InetSocketAddress target, long rttNanos, int window) throws IOException {
+            this.process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp",
+                    System.getProperty("java.class.path"), "TransferBenchmark", "--relay",
+                    Integer.toString(target.getPort()), Long.toString(rttNanos), Integer.toString(window))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            // the relay prints its port once it listens
+            String line = new BufferedReader(new InputStreamReader(this.process.getInputStream(),
+                    StandardCharsets.UTF_8)).readLine();
+            if (line == null) {
+                throw new IOException("The relay exited with the status " + this.process.onExit().join().exitValue());
+            }
+            this.port = Integer.parseInt(line.trim());
+        }
+
+        InetSocketAddress getAddress() {
+            return new InetSocketAddress("127.0.0.1", this.port);
+        }
+
+        void stop() throws InterruptedException {
+            this.process.destroy();
+            this.process.waitFor();
+        }
+    }
+
+    /**
+     * Forwards the connections it accepts to the target in both directions, delivering every read half a round trip
+     * later and keeping no more than a window of bytes in flight each way; the bytes of a read count against the
+     * window until one round trip after it. Each direction of a connection is forwarded by a reader and a deliverer
+     * thread, the end of one is passed on as a shutdown of the output of the other side.
+     */
+    private static class DelayRelay implements Runnable {
+
+        // bytes one read takes at most
+        private static final int SEGMENT_LENGTH = 1 << 16;
+
+        private final InetSocketAddress target;
+
+        private final long rttNanos;
+
+        private final int window;
+
+        private final ServerSocketChannel serverSocketChannel;
+
+        private final ExecutorService forwarders = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "delay-relay");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        // gives the window back one round trip after each read
+        private final ScheduledExecutorService acknowledger = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "delay-relay-ack");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private static class Segment {
+            final ByteBuffer data;
+            final long readNanos;
+
+            Segment(ByteBuffer data, long readNanos) {
+                this.data = data;
+                this.readNanos = readNanos;
+            }
+        }
+
+        DelayRelay(InetSocketAddress target, long rttNanos, int window) throws IOException {
+            this.target = target;
+            this.rttNanos = rttNanos;
+            this.window = Math.max(1, window);
+            this.serverSocketChannel = ServerSocketChannel.open();
+            this.serverSocketChannel.bind(new InetSocketAddress("127.0.0.1", 0), 1024);
+            this.forwarders.execute(this);
+        }
+
+        InetSocketAddress getAddress() throws IOException {
+            return (InetSocketAddress) this.serverSocketChannel.getLocalAddress();
+        }
+
+        /**
+         * Runs a relay to the port of `args[1]` on the loopback address, with the round trip in nanoseconds of
+         * `args[2]` and the window of `args[3]`: prints its port, then relays until its standard input is closed or
+         * it is killed.
+         */
+        static void main(String args[]) throws IOException {
+            DelayRelay relay = new DelayRelay(new InetSocketAddress("127.0.0.1", Integer.parseInt(args[1])),
+                    Long.parseLong(args[2]), Integer.parseInt(args[3]));
+            System.out.println(relay.getAddress().getPort());
+            System.out.flush();
+            while (System.in.read() != -1) {
+                // wait for the end of the input
+            }
+            relay.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    SocketChannel upstream = this.serverSocketChannel.accept();
+                    this.forwarders.execute(() -> this.relay(upstream));
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private void relay(SocketChannel upstream) {
+            try (SocketChannel client = upstream; SocketChannel server = SocketChannel.open(this.target)) {
+                Future<?> replies = this.forwarders.submit(() -> {
+                    this.forward(server, client);
+                    return null;
+                });
+                this.forward(client, server);
+                replies.get();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void forward(SocketChannel in, SocketChannel out) throws Exception {
+            Semaphore credits = new Semaphore(this.window);
+            LinkedBlockingQueue<Segment> segments = new LinkedBlockingQueue<>();
+            Future<?> deliverer = this.forwarders.submit(() -> {
+                while (true) {
+                    Segment segment = segments.take();
+                    if (segment.data == null) {
+                        out.shutdownOutput();
+                        return null;
+                    }
+                    sleepUntil(segment.readNanos + this.rttNanos / 2);
+                    int length = segment.data.remaining();
+                    while (segment.data.hasRemaining()) {
+                        out.write(segment.data);
+                    }
+                    long ackDelay = segment.readNanos + this.rttNanos - System.nanoTime();
+                    this.acknowledger.schedule(() -> credits.release(length), Math.max(0, ackDelay),
+                            TimeUnit.NANOSECONDS);
+                }
+            });
+
+            while (true) {
+                int length = Math.min(SEGMENT_LENGTH, this.window);
+                credits.acquire(length);
+                ByteBuffer data = ByteBuffer.allocate(length);
+                int read;
+                try {
+                    read = in.read(data);
+                } catch (IOException e) {
+                    // reset by the peer, passed on as the end of the stream
+                    read = -1;
+                }
+                if (read == -1) {
+                    break;
+                }
+                credits.release(length - read);
+                data.flip();
+                segments.add(new Segment(data, System.nanoTime()));
+            }
+            segments.add(new Segment(null, 0));
+            deliverer.get();
+        }
+
+        private static void sleepUntil(long deadlineNanos) throws InterruptedException {
+            long delay = deadlineNanos - System.nanoTime();
+            if (delay > 0) {
+                TimeUnit.NANOSECONDS.sleep(delay);
+            }
+        }
+
+        void close() throws IOException {
+            this.serverSocketChannel.close();
+            this.forwarders.shutdownNow();
+            this.acknowledger.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * The command line of an entry point. Every setting is a system property named after the prefix of the entry point,
+ * e.g. `ftp.server.workers`; the command line sets them before the entry point reads them:
+ *
+ * <pre>
+ * --name=value, --name value   sets `prefix.name`
+ * --name                       sets `prefix.name` to true, when no value follows
+ * --config file                reads the settings of a properties file, with or without the prefix
+ * --help                       prints the usage
+ * </pre>
+ *
+ * A flag wins over a `-D` option, which wins over the config file. The entry points prompt for the settings they
+ * need and were not given, e.g. the address and the port, so that a fully configured one runs without its standard
+ * input. Each entry point passes the names of its settings, a flag or a config entry naming another one is rejected
+ * so that a typo does not silently run with the default.
+ */
+public class CommandLine {
+
+    private CommandLine() {
+    }
+
+    /**
+     * Sets the system properties of the arguments and of their config file. Returns false when the usage was asked
+     * for. Throws an IllegalArgumentException for an argument that is not a flag, and for a flag or a config entry
+     * that is not one of the settings.
+     */
+    public static boolean apply(String prefix, String[] settings, String[] args) throws IOException {
+        Map<String, String> flags = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || args[i].length() == 2) {
+                throw new IllegalArgumentException("Unexpected argument " + args[i]);
+            }
+            String flag = args[i].substring(2);
+            int equals = flag.indexOf('=');
+            if (equals >= 0) {
+                flags.put(flag.substring(0, equals), flag.substring(equals + 1));
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                flags.put(flag, args[++i]);
+            } else {
+                flags.put(flag, "true");
+            }
+        }
+        if (flags.containsKey("help")) {
+            return false;
+        }
+
+        // the config file only fills in the settings given by no `-D` option
+        String config = flags.remove("config");
+        if (config != null) {
+            Properties properties = new Properties();
+            try (InputStream input = new FileInputStream(config)) {
+                properties.load(input);
+            }
+            for (String name : properties.stringPropertyNames()) {
+                check(prefix, settings, name, "Unknown setting " + name + " in " + config);
+            }
+            for (String name : properties.stringPropertyNames()) {
+                String key = qualify(prefix, name);
+                if (System.getProperty(key) == null) {
+                    System.setProperty(key, properties.getProperty(name).trim());
+                }
+            }
+        }
+        for (String name : flags.keySet()) {
+            check(prefix, settings, name, "Unknown flag --" + name);
+        }
+        for (Map.Entry<String, String> flag : flags.entrySet()) {
+            System.setProperty(qualify(prefix, flag.getKey()), flag.getValue());
+        }
+        return true;
+    }
+
+    private static String qualify(String prefix, String name) {
+        return name.startsWith(prefix + ".") ? name : prefix + "." + name;
+    }
+
+    private static void check(String prefix, String[] settings, String name, String message) {
+        String setting = qualify(prefix, name).substring(prefix.length() + 1);
+        if (!Arrays.asList(settings).contains(setting)) {
+            throw new IllegalArgumentException(message);
+        }
+    }
+
+    public static String usage(String mainClass, String prefix, String[] settings) {
+        StringBuilder usage = new StringBuilder("Usage: java " + mainClass
+                + " [--config <file>] [--<name>=<value> | --<name> <value> | --<name>]...\n"
+                + "Each name is a `" + prefix + ".<name>` setting, also accepted as a -D option. The settings are:\n");
+        int lineLength = 0;
+        for (int i = 0; i < settings.length; i++) {
+            String name = settings[i] + (i + 1 < settings.length ? "," : "");
+            if (lineLength > 0 && lineLength + 1 + name.length() > 100) {
+                usage.append('\n');
+                lineLength = 0;
+            }
+            usage.append(lineLength == 0 ? "  " : " ").append(name);
+            lineLength += (lineLength == 0 ? 2 : 1) + name.length();
+        }
+        return usage.toString();
+    }
+}
@@ -1,24 +1,84 @@
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Scanner;
 
 public class FTPClient {
+    // the `ftp.client.*` settings read by the project, the command line rejects the others and lists them
+    static final String[] SETTINGS = {
+            "file", "host", "port", "sendMode"
+    };
+
+    // `copy` to send through a byte array, `zero-copy` to let the kernel send the file with `transferTo()`
+    private static String sendMode = System.getProperty("ftp.client.sendMode", "copy");
+
     public static void main(String args[]) {
+        try {
+            if (!CommandLine.apply("ftp.client", SETTINGS, args)) {
+                System.out.println(CommandLine.usage("FTPClient", "ftp.client", SETTINGS));
+                return;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Invalid command line: " + e.getMessage());
+            System.err.println(CommandLine.usage("FTPClient", "ftp.client", SETTINGS));
+            System.exit(1);
+        }
+        // the flags are set after the class was initialized
+        sendMode = System.getProperty("ftp.client.sendMode", sendMode);
+
+        // prompt for the server and the file unless they were given
         Scanner sn = new Scanner(System.in);
-        System.out.println("Please input the server IPv4 address: ");
-        String serverAddress = sn.nextLine();
-        System.out.println("Please input the server port: ");
-        int port = sn.nextInt();
-        sn.nextLine(); // consume newline character
-        System.out.println("Please input the file name: ");
-        String fileName = sn.nextLine();
+        String serverAddress = System.getProperty("ftp.client.host");
+        if (serverAddress == null) {
+            System.out.println("Please input the server IPv4 address: ");
+            serverAddress = sn.nextLine();
+        }
+        int port = Integer.getInteger("ftp.client.port", -1);
+        if (port < 0) {
+            System.out.println("Please input the server port: ");
+            port = sn.nextInt();
+            sn.nextLine(); // consume newline character
+        }
+        String fileName = System.getProperty("ftp.client.file");
+        if (fileName == null) {
+            System.out.println("Please input the file name: ");
+            fileName = sn.nextLine();
+        }
+
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long startNanos = System.nanoTime();
+        long startCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+        long bytesSent;
+
+        if (sendMode.equals("zero-copy")) {
+            bytesSent = sendWithTransferTo(serverAddress, port, fileName);
+        } else {
+            bytesSent = sendWithCopy(serverAddress, port, fileName);
+        }
+
+        if (bytesSent >= 0) {
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+            System.out.printf("%d byte(s) sent in %.3f s (%.1f MB/s) using %.3f s of CPU time in the %s mode.%n",
+                    bytesSent, seconds, bytesSent / 1e6 / Math.max(seconds, 1e-9),
+                    (threadMXBean.getCurrentThreadCpuTime() - startCpuNanos) / 1e9, sendMode);
+        }
+    }
 
+    private static long sendWithCopy(String serverAddress, int port, String fileName) {
+        long bytesSent = 0;
         try (Socket socket = new Socket(serverAddress, port);
              FileInputStream fis = new FileInputStream(fileName);
              DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
-            dos.writeUTF(fileName);
+            // the server writes the file under the name it is given, only the last name of the path is sent
+            dos.writeUTF(new File(fileName).getName());
 
             byte buffer[] = new byte[1 << 16];
             int bytesRead = -1;
@@ -27,12 +87,42 @@ public class FTPClient {
 
             while((bytesRead = fis.read(buffer)) != -1) {
                 dos.write(buffer, 0, bytesRead);
+                bytesSent += bytesRead;
                 System.out.println(bytesRead + " bytes were sent.");
             }
 
             System.out.println("The file " + "\"" + fileName + "\"" + " has been sent successfully.");
         } catch (Exception e) {
             e.printStackTrace();
+            return -1;
+        }
+        return bytesSent;
+    }
+
+    private static long sendWithTransferTo(String serverAddress, int port, String fileName) {
+        long position = 0;
+        try (SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(serverAddress, port));
+             FileChannel fileChannel = new FileInputStream(fileName).getChannel()) {
+            // the header goes through the stream, the stream must not be closed before the file is sent
+            DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(socketChannel));
+            dos.writeUTF(new File(fileName).getName());
+            dos.flush();
+
+            System.out.println(fileName + " is being sent.");
+
+            // the socket channel is blocking, but `transferTo()` may still send less than requested
+            long fileSize = fileChannel.size();
+            while (position < fileSize) {
+                long bytesTransferred = fileChannel.transferTo(position, fileSize - position, socketChannel);
+                position += bytesTransferred;
+                System.out.println(bytesTransferred + " bytes were sent.");
+            }
+
+            System.out.println("The file " + "\"" + fileName + "\"" + " has been sent successfully.");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
         }
+        return position;
     }
 }
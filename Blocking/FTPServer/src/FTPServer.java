@@ -2,13 +2,53 @@ import java.io.FileOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.Scanner;
 import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 public class FTPServer {
+    // the `ftp.server.*` settings read by the project, the command line rejects the others and lists them
+    static final String[] SETTINGS = {
+            "backlog", "bufferSize", "host", "maxConcurrency", "port", "receiveBuffer", "threadMode"
+    };
+
+    // `platform` to start a thread per connection, `virtual` to run the workers on virtual threads (Java 21 or later).
+    // The platform mode is the unbounded thread-per-connection model: every accepted connection gets its own thread
+    // and a new buffer, only the virtual mode bounds the connections and pools the buffers
+    private String threadMode = System.getProperty("ftp.server.threadMode", "platform");
+
+    // connections accepted at once in the virtual mode, the next ones wait in the backlog of the listening socket
+    private int maxConcurrency = Integer.getInteger("ftp.server.maxConcurrency", 1024);
+
+    // size of the buffer of a worker
+    private int bufferSize = Integer.getInteger("ftp.server.bufferSize", 1 << 20);
+
+    // address and port to listen on, prompted for when not given
+    private String host = System.getProperty("ftp.server.host");
+
+    private int port = Integer.getInteger("ftp.server.port", -1);
+
+    // connections waiting to be accepted, and the receive buffer of the kernel for each socket, 0 to keep the one
+    // of the system; it is set on the listening socket before it binds so that the window scale allows it
+    private int backlog = Integer.getInteger("ftp.server.backlog", 100);
+
+    private int receiveBuffer = Integer.getInteger("ftp.server.receiveBuffer", 0);
+
+    // null in the platform mode
+    private ExecutorService virtualThreads;
+
+    private Semaphore permits;
+
+    // buffers returned by the finished workers in the virtual mode, at most one per permit
+    private final ConcurrentLinkedQueue<byte[]> bufferPool = new ConcurrentLinkedQueue<>();
+
     class Worker implements Runnable {
         Socket socket;
         Worker(Socket socket) {
@@ -17,9 +57,27 @@ public class FTPServer {
 
         @Override
         public void run() {
+            if (permits == null) {
+                this.receive(new byte[bufferSize]);
+                return;
+            }
+
+            // the permit was taken before the connection was accepted
+            byte[] buffer = bufferPool.poll();
+            if (buffer == null) {
+                buffer = new byte[bufferSize];
+            }
+            try {
+                this.receive(buffer);
+            } finally {
+                bufferPool.offer(buffer);
+                permits.release();
+            }
+        }
+
+        private void receive(byte[] buffer) {
             try (DataInputStream dis = new DataInputStream(socket.getInputStream());
                  FileOutputStream fos = new FileOutputStream(dis.readUTF());) {
-                byte[] buffer = new byte[1 << 20];
                 int bytesRead = -1;
 
                 System.out.println("Started to receive the file.");
@@ -33,35 +91,104 @@ public class FTPServer {
                 socket.close();
             } catch (Exception e) {
                 e.printStackTrace();
+                closeTheSocket(this.socket);
             }
         }
     }
 
+    private void closeTheSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("[" + new Date() + "] Cannot close the socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the virtual thread per task executor through reflection so the server still builds on the JDKs without
+     * virtual threads. Returns null on those.
+     */
+    private ExecutorService openTheVirtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
     public void launch() {
         Scanner sn = new Scanner(System.in);
-        System.out.println("Please enter the IP address you want to use:");
-        String ipAddr = sn.nextLine();
+        String ipAddr = this.host;
+        if (ipAddr == null) {
+            System.out.println("Please enter the IP address you want to use:");
+            ipAddr = sn.nextLine();
+        }
         InetAddress hostName;
         try {
             hostName = InetAddress.getByName(ipAddr);
         } catch (UnknownHostException e) {
             throw new RuntimeException(e);
         }
-        System.out.println("Please enter the port number you want to use: ");
-        int port = sn.nextInt();
+        int port = this.port;
+        if (port < 0) {
+            System.out.println("Please enter the port number you want to use: ");
+            port = sn.nextInt();
+        }
 
-        try (ServerSocket serverSocket = new ServerSocket(port, 100, hostName)) {
+        // the virtual mode never runs as another one, so that it is not measured as such
+        if (this.threadMode.equals("virtual")) {
+            this.virtualThreads = this.openTheVirtualThreads();
+            if (this.virtualThreads == null) {
+                System.err.println("Virtual threads are not available on Java " + System.getProperty("java.version")
+                        + ", the virtual mode needs Java 21 or later.");
+                System.exit(1);
+            }
+            this.permits = new Semaphore(Math.max(1, this.maxConcurrency));
+        } else if (!this.threadMode.equals("platform")) {
+            System.err.println("Unknown thread mode " + this.threadMode + ", expected `platform` or `virtual`.");
+            System.exit(1);
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            if (this.receiveBuffer > 0) {
+                serverSocket.setReceiveBufferSize(this.receiveBuffer);
+            }
+            serverSocket.bind(new InetSocketAddress(hostName, port), this.backlog);
             while (true) {
+                // leave the connection in the backlog until a permit is free, it is released by its worker
+                if (this.permits != null) {
+                    this.permits.acquire();
+                }
                 Socket clientSocket = serverSocket.accept();
-                System.out.println(clientSocket.getRemoteSocketAddress() + " connected.");
-                (new Thread(new Worker(clientSocket))).start();
+                System.out.println(clientSocket.getRemoteSocketAddress() + " connected (SO_RCVBUF="
+                        + clientSocket.getReceiveBufferSize() + ").");
+                if (this.virtualThreads != null) {
+                    this.virtualThreads.execute(new Worker(clientSocket));
+                } else {
+                    (new Thread(new Worker(clientSocket))).start();
+                }
             }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            if (this.virtualThreads != null) {
+                this.virtualThreads.shutdown();
+            }
         }
     }
 
     public static void main(String args[]) {
+        try {
+            if (!CommandLine.apply("ftp.server", SETTINGS, args)) {
+                System.out.println(CommandLine.usage("FTPServer", "ftp.server", SETTINGS));
+                return;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Invalid command line: " + e.getMessage());
+            System.err.println(CommandLine.usage("FTPServer", "ftp.server", SETTINGS));
+            System.exit(1);
+        }
         FTPServer server = new FTPServer();
         server.launch();
     }
@@ -0,0 +1,280 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Sends many small files back to back over one non-blocking socket channel as the streams of a session (see
+ * {@link SessionFrame}). The files are packed one after the other into a payload arena, their frame headers into a
+ * header arena, and each batch goes out with gathering writes, so one system call carries the headers and the
+ * contents of many files. Every file is read once: its CRC32C is computed while packing and it is closed before the
+ * verdict arrives.
+ */
+public class BatchSender implements MultiFileSender {
+
+    private static class Stream {
+        final TransferHeader header;
+
+        final int checksum;
+
+        Stream(TransferHeader header, int checksum) {
+            this.header = header;
+            this.checksum = checksum;
+        }
+    }
+
+    // buffers handed to one gathering write at most
+    private static final int MAX_BUFFERS = 256;
+
+    final SocketChannel socketChannel;
+
+    private final ArrayDeque<File> pendingFiles;
+
+    // streams packed and waiting for their verdict, by ID
+    private final HashMap<Integer, Stream> unverifiedStreams = new HashMap<>();
+
+    // largest payload of a data frame
+    private final int frameLength;
+
+    // frame headers of the batch
+    private final ByteBuffer headerArena;
+
+    // file contents of the batch
+    private final ByteBuffer payloadArena;
+
+    // slices of the arenas in sending order
+    private final ArrayList<ByteBuffer> batch = new ArrayList<>();
+
+    private ByteBuffer[] batchBuffers = new ByteBuffer[0];
+
+    // first buffer of the batch not sent yet
+    private int batchOffset;
+
+    // verdict frames being received, in write mode
+    private final ByteBuffer replyBuffer;
+
+    // the file being packed, it may span several batches when it is larger than the payload arena
+    private File currentFile;
+
+    private TransferHeader currentHeader;
+
+    private FileChannel currentChannel;
+
+    private CRC32C currentChecksum;
+
+    private long currentPacked;
+
+    private int nextStreamId = 1;
+
+    private long filesVerified;
+
+    private long bytesVerified;
+
+    public BatchSender(SocketChannel socketChannel, ArrayDeque<File> files, int bufferSize, int batchBytes) {
+        this.socketChannel = socketChannel;
+        this.pendingFiles = files;
+        this.frameLength = bufferSize;
+        this.headerArena = ByteBuffer.allocate(MAX_BUFFERS * (SessionFrame.HEADER_LENGTH + 64)
+                + 3 * TransferHeader.MAX_NAME_LENGTH);
+        this.payloadArena = ByteBuffer.allocate(batchBytes);
+        this.replyBuffer = ByteBuffer.allocate(64 * (SessionFrame.HEADER_LENGTH + TransferHeader.VERDICT_LENGTH));
+
+        // the preamble goes out with the first batch
+        ByteBuffer preamble = ByteBuffer.allocate(SessionFrame.PREAMBLE_LENGTH);
+        SessionFrame.writePreamble(preamble);
+        preamble.flip();
+        this.batch.add(preamble);
+        this.batchBuffers = this.batch.toArray(this.batchBuffers);
+    }
+
+    @Override
+    public boolean isDone() {
+        return this.batchOffset == this.batchBuffers.length && this.currentFile == null && this.pendingFiles.isEmpty()
+                && this.unverifiedStreams.isEmpty();
+    }
+
+    @Override
+    public long getFilesVerified() {
+        return this.filesVerified;
+    }
+
+    @Override
+    public long getBytesVerified() {
+        return this.bytesVerified;
+    }
+
+    /**
+     * Returns the selection key interest set: writes while there are files to send, reads while verdicts are due.
+     */
+    @Override
+    public int getInterestOps() {
+        int ops = 0;
+        if (this.batchOffset < this.batchBuffers.length || this.currentFile != null || !this.pendingFiles.isEmpty()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (!this.unverifiedStreams.isEmpty()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        return ops;
+    }
+
+    /**
+     * Packs the next batch once the previous one is sent and sends as much as the socket channel takes with one
+     * gathering write. Returns the number of bytes sent.
+     */
+    @Override
+    public long send() throws IOException {
+        if (this.batchOffset == this.batchBuffers.length) {
+            this.packABatch();
+        }
+
+        long written = this.socketChannel.write(this.batchBuffers, this.batchOffset,
+                this.batchBuffers.length - this.batchOffset);
+        while (this.batchOffset < this.batchBuffers.length && !this.batchBuffers[this.batchOffset].hasRemaining()) {
+            this.batchOffset++;
+        }
+        return written;
+    }
+
+    private void packABatch() throws IOException {
+        this.headerArena.clear();
+        this.payloadArena.clear();
+        this.batch.clear();
+
+        while (this.batch.size() + 3 <= MAX_BUFFERS) {
+            // open the next file with its OPEN frame
+            if (this.currentFile == null) {
+                File file = this.pendingFiles.peek();
+                if (file == null) {
+                    break;
+                }
+                long fileSize = file.length();
+                TransferHeader header = new TransferHeader(file.getName(), 0, FTPClient.transferIdOf(file, fileSize),
+                        fileSize, 0, fileSize);
+                int length = header.encodedLength();
+                if (this.headerArena.remaining() < 2 * SessionFrame.HEADER_LENGTH + length) {
+                    break;
+                }
+                this.pendingFiles.poll();
+
+                int start = this.headerArena.position();
+                SessionFrame.writeHeader(this.headerArena, SessionFrame.OPEN, this.nextStreamId, length);
+                header.writeTo(this.headerArena);
+                this.batch.add(this.sliceOf(this.headerArena, start));
+
+                this.currentFile = file;
+                this.currentHeader = header;
+                this.currentChannel = fileSize == 0 ? null : new RandomAccessFile(file, "r").getChannel();
+                this.currentChecksum = new CRC32C();
+                this.currentPacked = 0;
+            }
+
+            // pack as much of the file as the payload arena takes as one data frame
+            long unpacked = this.currentHeader.length - this.currentPacked;
+            int count = (int) Math.min(Math.min(unpacked, this.payloadArena.remaining()), this.frameLength);
+            if (unpacked > 0) {
+                if (count == 0 || this.headerArena.remaining() < SessionFrame.HEADER_LENGTH) {
+                    break;
+                }
+                int start = this.headerArena.position();
+                SessionFrame.writeHeader(this.headerArena, SessionFrame.DATA, this.nextStreamId, count);
+                this.batch.add(this.sliceOf(this.headerArena, start));
+
+                start = this.payloadArena.position();
+                this.payloadArena.limit(start + count);
+                while (this.payloadArena.hasRemaining()) {
+                    if (this.currentChannel.read(this.payloadArena, this.currentPacked + this.payloadArena.position() - start) == -1) {
+                        throw new EOFException("The file " + this.currentFile + " ended before " + this.currentHeader.length + " byte(s).");
+                    }
+                }
+                this.payloadArena.limit(this.payloadArena.capacity());
+                ByteBuffer payload = this.sliceOf(this.payloadArena, start);
+                this.currentChecksum.update(payload.duplicate());
+                this.batch.add(payload);
+                this.currentPacked += count;
+            }
+
+            // the whole file is packed, its verdict is checked against the checksum computed here
+            if (this.currentPacked == this.currentHeader.length) {
+                this.unverifiedStreams.put(this.nextStreamId++,
+                        new Stream(this.currentHeader, (int) this.currentChecksum.getValue()));
+                this.closeTheCurrentFile();
+            }
+        }
+
+        this.batchBuffers = this.batch.toArray(this.batchBuffers.length == this.batch.size()
+                ? this.batchBuffers : new ByteBuffer[this.batch.size()]);
+        this.batchOffset = 0;
+    }
+
+    /**
+     * Returns the bytes written to the arena since `start`, in read mode.
+     */
+    private ByteBuffer sliceOf(ByteBuffer arena, int start) {
+        return arena.slice(start, arena.position() - start);
+    }
+
+    private void closeTheCurrentFile() {
+        if (this.currentChannel != null) {
+            try {
+                this.currentChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println(this.currentChannel + "Cannot close the file channel: " + e.getMessage());
+            }
+        }
+        this.currentFile = null;
+        this.currentChannel = null;
+    }
+
+    /**
+     * Reads the verdict frames of the server and checks them against the checksums of the files.
+     */
+    @Override
+    public void receive() throws IOException {
+        if (this.socketChannel.read(this.replyBuffer) == -1) {
+            throw new EOFException("The server closed the session before replying.");
+        }
+
+        // switch the buffer to the read mode
+        this.replyBuffer.flip();
+
+        while (this.replyBuffer.remaining() >= SessionFrame.HEADER_LENGTH + TransferHeader.VERDICT_LENGTH) {
+            int type = Byte.toUnsignedInt(this.replyBuffer.get());
+            int streamId = this.replyBuffer.getInt();
+            int length = this.replyBuffer.getInt();
+            if (type != SessionFrame.VERDICT || length != TransferHeader.VERDICT_LENGTH) {
+                throw new ProtocolException("Unexpected frame of type " + type + " from the server.");
+            }
+            Stream stream = this.unverifiedStreams.remove(streamId);
+            if (stream == null) {
+                throw new ProtocolException("Verdict for the unknown stream " + streamId + ".");
+            }
+
+            RangeSender.checkTheVerdict(stream.header, this.replyBuffer.get(), this.replyBuffer.getLong(),
+                    this.replyBuffer.getInt(), stream.checksum);
+            this.filesVerified++;
+            this.bytesVerified += stream.header.length;
+        }
+
+        // switch the buffer to the write mode
+        this.replyBuffer.compact();
+    }
+
+    /**
+     * Closes the file being packed, after a failure.
+     */
+    @Override
+    public void close() {
+        this.closeTheCurrentFile();
+    }
+}
@@ -0,0 +1,184 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The manifest of a deduplicated upload, sent by the client in place of a {@link TransferHeader}: the file split into
+ * content-defined chunks, each named by the SHA-256 of its bytes.
+ *
+ * <pre>
+ * manifest: u8 0, u8 {@link #DEDUP_VERSION}, u16 name length, UTF-8 name, i64 transfer ID, i64 file size,
+ *           u32 chunk count, then for each chunk: u32 length, SHA-256 of the chunk
+ * reply:    u8 status, u32 missing count, then the u32 index of each chunk the server does not hold, ascending
+ * data:     the bytes of the missing chunks, back to back in the order of the reply
+ * verdict:  u8 status, i64 bytes held, i32 CRC32C of the whole file, as for a range
+ * </pre>
+ *
+ * A chunk repeated in the file is asked for once at most. The server checks the chunks it receives against their
+ * digests before it keeps them, rebuilds the file from its chunk store and commits it like a transfer of a single
+ * range. This class is shared by the client and the server.
+ */
+public class ChunkManifest {
+
+    public static final int DEDUP_VERSION = 4;
+
+    public static final int DIGEST_LENGTH = 32;
+
+    public static final int ENTRY_LENGTH = 4 + DIGEST_LENGTH;
+
+    public static final int MAX_CHUNK_SIZE = 1 << 18;
+
+    // chunks of a manifest at most, the server holds the whole manifest while it rebuilds the file
+    public static final int MAX_CHUNKS = 1 << 20;
+
+    public static final int STATUS_OK = 0;
+
+    public static final int STATUS_REFUSED = 1;
+
+    public static final int REPLY_HEADER_LENGTH = 1 + 4;
+
+    // size of the manifest without the name and the chunks
+    private static final int FIXED_LENGTH = 1 + 1 + 2 + 8 + 8 + 4;
+
+    public final String fileName;
+
+    public final long transferId;
+
+    public final long fileSize;
+
+    public final int[] lengths;
+
+    // the digests of the chunks back to back
+    public final byte[] digests;
+
+    // chunks parsed so far, all of them once the manifest is complete
+    private int entryCount;
+
+    public ChunkManifest(String fileName, long transferId, long fileSize, int[] lengths, byte[] digests) {
+        this.fileName = fileName;
+        this.transferId = transferId;
+        this.fileSize = fileSize;
+        this.lengths = lengths;
+        this.digests = digests;
+        this.entryCount = lengths.length;
+    }
+
+    public int chunkCount() {
+        return this.lengths.length;
+    }
+
+    public boolean isComplete() {
+        return this.entryCount == this.lengths.length;
+    }
+
+    /**
+     * Returns the digest of the chunk as a read-only buffer, usable as a key.
+     */
+    public ByteBuffer digestOf(int chunk) {
+        return ByteBuffer.wrap(this.digests, chunk * DIGEST_LENGTH, DIGEST_LENGTH).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns true when the buffer in read mode starts with a manifest.
+     */
+    public static boolean startsADedup(ByteBuffer buffer) {
+        return buffer.remaining() >= 2 && buffer.get(buffer.position()) == 0
+                && Byte.toUnsignedInt(buffer.get(buffer.position() + 1)) == DEDUP_VERSION;
+    }
+
+    /**
+     * Returns the number of bytes of the whole manifest.
+     */
+    public int encodedLength() {
+        return FIXED_LENGTH + this.fileName.getBytes(StandardCharsets.UTF_8).length + ENTRY_LENGTH * this.lengths.length;
+    }
+
+    /**
+     * Writes the whole manifest into the buffer in write mode.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        byte[] name = this.fileName.getBytes(StandardCharsets.UTF_8);
+        buffer.put((byte) 0);
+        buffer.put((byte) DEDUP_VERSION);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        buffer.putLong(this.transferId);
+        buffer.putLong(this.fileSize);
+        buffer.putInt(this.lengths.length);
+        for (int i = 0; i < this.lengths.length; i++) {
+            buffer.putInt(this.lengths[i]);
+            buffer.put(this.digests, i * DIGEST_LENGTH, DIGEST_LENGTH);
+        }
+    }
+
+    /**
+     * Parses the start of a manifest, up to its chunk count, from the buffer in read mode; the chunks are taken
+     * with {@link #takeEntries(ByteBuffer)}. Returns null and leaves the position untouched when the buffer does not
+     * hold the whole start yet.
+     */
+    public static ChunkManifest parseHead(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < FIXED_LENGTH) {
+            return null;
+        }
+        int start = buffer.position();
+        int nameLength = Short.toUnsignedInt(buffer.getShort(start + 2));
+        if (nameLength == 0 || nameLength > TransferHeader.MAX_NAME_LENGTH) {
+            throw new ProtocolException("Invalid file name length " + nameLength);
+        }
+        if (buffer.remaining() < FIXED_LENGTH + nameLength) {
+            return null;
+        }
+
+        buffer.position(start + 4);
+        byte[] name = new byte[nameLength];
+        buffer.get(name);
+        long transferId = buffer.getLong();
+        long fileSize = buffer.getLong();
+        long chunkCount = Integer.toUnsignedLong(buffer.getInt());
+
+        // every chunk holds one byte at least and MAX_CHUNK_SIZE at most
+        if (fileSize < 0 || chunkCount > MAX_CHUNKS || chunkCount > fileSize
+                || chunkCount * MAX_CHUNK_SIZE < fileSize) {
+            throw new ProtocolException("Invalid manifest of " + chunkCount + " chunk(s) for a " + fileSize
+                    + " byte(s) file");
+        }
+        ChunkManifest manifest = new ChunkManifest(new String(name, StandardCharsets.UTF_8), transferId, fileSize,
+                new int[(int) chunkCount], new byte[(int) chunkCount * DIGEST_LENGTH]);
+        manifest.entryCount = 0;
+        return manifest;
+    }
+
+    /**
+     * Takes the whole chunks the buffer in read mode holds. Returns true once the manifest is complete.
+     */
+    public boolean takeEntries(ByteBuffer buffer) throws ProtocolException {
+        while (!this.isComplete() && buffer.remaining() >= ENTRY_LENGTH) {
+            int length = buffer.getInt();
+            if (length <= 0 || length > MAX_CHUNK_SIZE) {
+                throw new ProtocolException("Invalid length " + length + " of the chunk " + this.entryCount);
+            }
+            this.lengths[this.entryCount] = length;
+            buffer.get(this.digests, this.entryCount * DIGEST_LENGTH, DIGEST_LENGTH);
+            this.entryCount++;
+        }
+        if (!this.isComplete()) {
+            return false;
+        }
+
+        long total = 0;
+        for (int length : this.lengths) {
+            total += length;
+        }
+        if (total != this.fileSize) {
+            throw new ProtocolException("The chunks of " + this.fileName + " hold " + total + " byte(s) instead of "
+                    + this.fileSize);
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "DEDUP " + this.fileName + " (" + this.fileSize + " byte(s) in " + this.lengths.length
+                + " chunk(s)), transfer " + Long.toHexString(this.transferId);
+    }
+}
@@ -0,0 +1,137 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Splits a file into content-defined chunks for a deduplicated upload (see {@link ChunkManifest}). A gear rolling
+ * hash runs over the bytes and a chunk ends where the top bits of the hash are all zero, so the boundaries depend on
+ * the last 64 bytes only: an insertion or a deletion moves the boundaries around it and leaves the other chunks of
+ * the file unchanged. Chunks hold {@link #MIN_CHUNK_SIZE} bytes at least, {@link ChunkManifest#MAX_CHUNK_SIZE} at
+ * most and about {@link #AVERAGE_CHUNK_SIZE} on average. The file is read once, for the boundaries, the SHA-256 of
+ * every chunk and the CRC32C of the whole file checked against the verdict of the server.
+ */
+public class Chunker {
+
+    public static final int MIN_CHUNK_SIZE = 1 << 14;
+
+    public static final int AVERAGE_CHUNK_SIZE = 1 << 16;
+
+    // a boundary once every AVERAGE_CHUNK_SIZE bytes on average past the minimum
+    private static final long BOUNDARY_MASK = -1L << (64 - Integer.numberOfTrailingZeros(AVERAGE_CHUNK_SIZE));
+
+    private static final int READ_LENGTH = 1 << 22;
+
+    // random values of the bytes, the same on every client
+    private static final long[] GEAR = new long[256];
+
+    static {
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < GEAR.length; i++) {
+            // SplitMix64
+            seed += 0x9E3779B97F4A7C15L;
+            long value = seed;
+            value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+            value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+            GEAR[i] = value ^ (value >>> 31);
+        }
+    }
+
+    private final FileChannel fileChannel;
+
+    private int[] lengths;
+
+    private byte[] digests;
+
+    private int chunkCount;
+
+    private final CRC32C checksum = new CRC32C();
+
+    private final MessageDigest sha256;
+
+    public Chunker(FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+        try {
+            this.sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the CRC32C of the file, once it is chunked.
+     */
+    public int getChecksum() {
+        return (int) this.checksum.getValue();
+    }
+
+    /**
+     * Splits the file into chunks and returns its manifest.
+     */
+    public ChunkManifest chunk(String fileName, long transferId) throws IOException {
+        long fileSize = this.fileChannel.size();
+        if (fileSize / MIN_CHUNK_SIZE >= ChunkManifest.MAX_CHUNKS) {
+            throw new IOException(fileName + " is too large to be deduplicated");
+        }
+        int maxChunks = (int) Math.min(ChunkManifest.MAX_CHUNKS, fileSize / MIN_CHUNK_SIZE + 1);
+        this.lengths = new int[maxChunks];
+        this.digests = new byte[maxChunks * ChunkManifest.DIGEST_LENGTH];
+        this.chunkCount = 0;
+        this.checksum.reset();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_LENGTH, Math.max(1, fileSize)));
+        byte[] bytes = buffer.array();
+
+        long hash = 0;
+        int chunkLength = 0;
+        long position = 0;
+        while (position < fileSize) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), fileSize - position));
+            while (buffer.hasRemaining()) {
+                if (this.fileChannel.read(buffer, position + buffer.position()) == -1) {
+                    throw new EOFException(fileName + " ended before " + fileSize + " byte(s)");
+                }
+            }
+            int end = buffer.position();
+            this.checksum.update(bytes, 0, end);
+
+            // look for the boundaries, past the minimum length of a chunk
+            int chunkStart = 0;
+            for (int i = 0; i < end; i++) {
+                hash = (hash << 1) + GEAR[bytes[i] & 0xFF];
+                chunkLength++;
+                if (chunkLength >= MIN_CHUNK_SIZE
+                        && ((hash & BOUNDARY_MASK) == 0 || chunkLength == ChunkManifest.MAX_CHUNK_SIZE)) {
+                    this.sha256.update(bytes, chunkStart, i + 1 - chunkStart);
+                    this.endAChunk(chunkLength);
+                    chunkStart = i + 1;
+                    chunkLength = 0;
+                    hash = 0;
+                }
+            }
+            this.sha256.update(bytes, chunkStart, end - chunkStart);
+            position += end;
+        }
+        if (chunkLength > 0) {
+            this.endAChunk(chunkLength);
+        }
+
+        return new ChunkManifest(fileName, transferId, fileSize, Arrays.copyOf(this.lengths, this.chunkCount),
+                Arrays.copyOf(this.digests, this.chunkCount * ChunkManifest.DIGEST_LENGTH));
+    }
+
+    private void endAChunk(int length) {
+        this.lengths[this.chunkCount] = length;
+        try {
+            this.sha256.digest(this.digests, this.chunkCount * ChunkManifest.DIGEST_LENGTH, ChunkManifest.DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+        this.chunkCount++;
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends a file as a deduplicated upload on a non-blocking socket channel: the manifest of its chunks (see
+ * {@link ChunkManifest}), then, once the server answered with the chunks it does not hold, those chunks only with
+ * `transferTo()`, and finally checks the verdict of the server against the size and the CRC32C of the file.
+ */
+public class DedupSender {
+
+    private enum State { MANIFEST, REPLY, DATA, VERDICT, DONE }
+
+    final SocketChannel socketChannel;
+
+    final ChunkManifest manifest;
+
+    private final FileChannel fileChannel;
+
+    // CRC32C of the whole file
+    private final int checksum;
+
+    private final ByteBuffer manifestBuffer;
+
+    // offset of each chunk in the file
+    private final long[] offsets;
+
+    // the reply header, then the missing chunks, then the verdict
+    private ByteBuffer replyBuffer = ByteBuffer.allocate(ChunkManifest.REPLY_HEADER_LENGTH);
+
+    private int[] missingChunks;
+
+    // missing chunk being sent and its bytes sent
+    private int nextChunk;
+
+    private long chunkBytesSent;
+
+    private long bytesSent;
+
+    private State state = State.MANIFEST;
+
+    public DedupSender(SocketChannel socketChannel, FileChannel fileChannel, ChunkManifest manifest, int checksum) {
+        this.socketChannel = socketChannel;
+        this.fileChannel = fileChannel;
+        this.manifest = manifest;
+        this.checksum = checksum;
+
+        this.manifestBuffer = ByteBuffer.allocate(manifest.encodedLength());
+        manifest.writeTo(this.manifestBuffer);
+        this.manifestBuffer.flip();
+
+        this.offsets = new long[manifest.chunkCount()];
+        long offset = 0;
+        for (int i = 0; i < manifest.chunkCount(); i++) {
+            this.offsets[i] = offset;
+            offset += manifest.lengths[i];
+        }
+    }
+
+    public boolean isDone() {
+        return this.state == State.DONE;
+    }
+
+    /**
+     * Returns the number of chunks the server asked for, -1 until it answered.
+     */
+    public int getMissingChunks() {
+        return this.missingChunks == null ? -1 : this.missingChunks.length;
+    }
+
+    public long getBytesSent() {
+        return this.bytesSent;
+    }
+
+    /**
+     * Returns the selection key interest set of the current state.
+     */
+    public int getInterestOps() {
+        switch (this.state) {
+            case MANIFEST:
+            case DATA:
+                return SelectionKey.OP_WRITE;
+            case REPLY:
+            case VERDICT:
+                return SelectionKey.OP_READ;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Sends as much as the socket channel takes. Returns the number of bytes of the file sent.
+     */
+    public long send() throws IOException {
+        if (this.state == State.MANIFEST) {
+            this.socketChannel.write(this.manifestBuffer);
+            if (!this.manifestBuffer.hasRemaining()) {
+                this.state = State.REPLY;
+            }
+            return 0;
+        }
+        if (this.state != State.DATA) {
+            return 0;
+        }
+
+        // let the kernel send the missing chunks, the transfer may be partial
+        long sent = 0;
+        while (this.nextChunk < this.missingChunks.length) {
+            int chunk = this.missingChunks[this.nextChunk];
+            long remaining = this.manifest.lengths[chunk] - this.chunkBytesSent;
+            long transferred = this.fileChannel.transferTo(this.offsets[chunk] + this.chunkBytesSent, remaining,
+                    this.socketChannel);
+            sent += transferred;
+            this.chunkBytesSent += transferred;
+            if (transferred < remaining) {
+                break;
+            }
+            this.nextChunk++;
+            this.chunkBytesSent = 0;
+        }
+        this.bytesSent += sent;
+        if (this.nextChunk == this.missingChunks.length) {
+            this.startTheVerdict();
+        }
+        return sent;
+    }
+
+    private void startTheVerdict() {
+        this.replyBuffer = ByteBuffer.allocate(TransferHeader.VERDICT_LENGTH);
+        this.state = State.VERDICT;
+    }
+
+    /**
+     * Reads the replies of the server: the missing chunks, then the verdict.
+     */
+    public void receive() throws IOException {
+        if (this.socketChannel.read(this.replyBuffer) == -1) {
+            throw new EOFException("The server closed the connection of " + this.manifest + " before replying.");
+        }
+        if (this.replyBuffer.hasRemaining()) {
+            return;
+        }
+        this.replyBuffer.flip();
+
+        if (this.state == State.REPLY && this.missingChunks == null) {
+            int status = this.replyBuffer.get();
+            int count = this.replyBuffer.getInt();
+            if (status != ChunkManifest.STATUS_OK) {
+                throw new IOException("The server refused " + this.manifest + ".");
+            }
+            if (count < 0 || count > this.manifest.chunkCount()) {
+                throw new IOException("The server asked for " + count + " chunk(s) of " + this.manifest);
+            }
+            this.missingChunks = new int[count];
+            this.replyBuffer = ByteBuffer.allocate(4 * count);
+            if (count != 0) {
+                return;
+            }
+            this.replyBuffer.flip();
+        }
+
+        if (this.state == State.REPLY) {
+            this.replyBuffer.asIntBuffer().get(this.missingChunks);
+            for (int chunk : this.missingChunks) {
+                if (chunk < 0 || chunk >= this.manifest.chunkCount()) {
+                    throw new IOException("The server asked for the chunk " + chunk + " of " + this.manifest);
+                }
+            }
+            if (this.missingChunks.length == 0) {
+                this.startTheVerdict();
+            } else {
+                this.state = State.DATA;
+            }
+            return;
+        }
+
+        int status = this.replyBuffer.get();
+        long held = this.replyBuffer.getLong();
+        int checksum = this.replyBuffer.getInt();
+        if (status != TransferHeader.VERDICT_OK) {
+            throw new IOException("The server failed to rebuild " + this.manifest + ".");
+        }
+        if (held != this.manifest.fileSize) {
+            throw new IOException("The server holds " + held + " byte(s) of " + this.manifest);
+        }
+        if (checksum != this.checksum) {
+            throw new IOException("Checksum mismatch for " + this.manifest + ": " + Integer.toHexString(checksum)
+                    + " instead of " + Integer.toHexString(this.checksum));
+        }
+        this.state = State.DONE;
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the blocks of the copy of a file held by the server in the local file, from the signatures of its blocks (see
+ * {@link SignatureRequest}), and turns the file into a delta: copies of those blocks and literal bytes between them.
+ * The weak checksum of a window of one block is rolled over the file one byte at a time, and the strong checksum is
+ * only computed where the weak one matches a block. The file is split into segments matched in parallel, a match
+ * never crosses the end of its segment.
+ *
+ * The delta is a list of operations, three longs each: the offset in the copy of the server or -1 for literal bytes,
+ * the offset in the file, and the length. They follow each other through the whole file and adjacent copies of
+ * adjacent blocks are merged.
+ */
+public class DeltaMatcher {
+
+    public static final int OPERATION_LENGTH = 3;
+
+    // bytes of a segment at most, read at once
+    private static final int MAX_SEGMENT_LENGTH = 1 << 25;
+
+    // blocks of a segment at least, the windows crossing its end are never matched
+    private static final int MIN_SEGMENT_BLOCKS = 16;
+
+    private final FileChannel fileChannel;
+
+    private final int blockSize;
+
+    // length of the last block of the copy of the server, it may be shorter than the others
+    private final int lastBlockLength;
+
+    private final int[] weakChecksums;
+
+    private final byte[] strongChecksums;
+
+    // chains of the blocks by weak checksum: the first block of each bucket, then the next block of each block
+    private final int[] buckets;
+
+    private final int[] nextBlocks;
+
+    // shift taking the bucket of a weak checksum from the top bits of its hash
+    private final int bucketShift;
+
+    private final int threadCount;
+
+    public DeltaMatcher(FileChannel fileChannel, SignatureFetcher signatures, int threadCount) {
+        this.fileChannel = fileChannel;
+        this.blockSize = signatures.getBlockSize();
+        this.weakChecksums = signatures.getWeakChecksums();
+        this.strongChecksums = signatures.getStrongChecksums();
+        this.threadCount = threadCount;
+        long lastBlockLength = signatures.getFileSize() - (long) (this.weakChecksums.length - 1) * this.blockSize;
+        this.lastBlockLength = this.weakChecksums.length == 0 ? 0 : (int) lastBlockLength;
+
+        // index the blocks by weak checksum, the first block of a duplicated content is found first
+        this.buckets = new int[Integer.highestOneBit(Math.max(1, this.weakChecksums.length)) << 1];
+        this.nextBlocks = new int[this.weakChecksums.length];
+        this.bucketShift = Integer.numberOfLeadingZeros(this.buckets.length) + 1;
+        Arrays.fill(this.buckets, -1);
+        for (int block = this.weakChecksums.length - 1; block >= 0; block--) {
+            int bucket = this.bucketOf(this.weakChecksums[block]);
+            this.nextBlocks[block] = this.buckets[bucket];
+            this.buckets[bucket] = block;
+        }
+    }
+
+    private int bucketOf(int weakChecksum) {
+        return (weakChecksum * 0x9E3779B1) >>> this.bucketShift;
+    }
+
+    /**
+     * Returns the delta of the file against the copy of the server.
+     */
+    public long[] match() throws IOException {
+        long fileSize = this.fileChannel.size();
+
+        // one segment per thread at least, so that every core takes part, of whole blocks so that the blocks of an
+        // unchanged region are still found on both sides of a segment end
+        long segmentLength = (fileSize + this.threadCount - 1) / this.threadCount;
+        segmentLength = Math.max((long) MIN_SEGMENT_BLOCKS * this.blockSize, Math.min(MAX_SEGMENT_LENGTH, segmentLength));
+        segmentLength -= segmentLength % this.blockSize;
+        List<Callable<long[]>> segments = new ArrayList<>();
+        for (long start = 0; start < fileSize; start += segmentLength) {
+            long segmentStart = start;
+            int length = (int) Math.min(segmentLength, fileSize - start);
+            segments.add(() -> this.matchASegment(segmentStart, length, segmentStart + length == fileSize));
+        }
+
+        ExecutorService matchers = Executors.newFixedThreadPool(Math.max(1, Math.min(this.threadCount, segments.size())),
+                task -> {
+                    Thread thread = new Thread(task, "delta-matcher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        try {
+            // merge the operations of the segments in order
+            Operations operations = new Operations();
+            for (Future<long[]> segment : matchers.invokeAll(segments)) {
+                long[] segmentOperations = segment.get();
+                for (int i = 0; i < segmentOperations.length; i += OPERATION_LENGTH) {
+                    operations.add(segmentOperations[i], segmentOperations[i + 1], segmentOperations[i + 2]);
+                }
+            }
+            return operations.toArray();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while matching the blocks", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Cannot match the blocks: " + e.getCause(), e.getCause());
+        } finally {
+            matchers.shutdownNow();
+        }
+    }
+
+    /**
+     * Returns the operations of the segment of the file from `start`, the last one of the file may end with the last
+     * block of the copy of the server even if it is shorter.
+     */
+    private long[] matchASegment(long start, int length, boolean isLastSegment) throws IOException {
+        byte[] bytes = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            if (this.fileChannel.read(buffer, start + buffer.position()) == -1) {
+                throw new EOFException("The file ended before " + (start + length) + " byte(s)");
+            }
+        }
+
+        MessageDigest sha256 = SignatureRequest.newStrongDigest();
+        byte[] strong = new byte[SignatureRequest.STRONG_LENGTH];
+        Operations operations = new Operations();
+        int blockSize = this.blockSize;
+        int literalStart = 0;
+        int position = 0;
+        int weak = length >= blockSize ? SignatureRequest.weakChecksum(bytes, 0, blockSize) : 0;
+        while (this.weakChecksums.length != 0 && position + blockSize <= length) {
+            int block = this.find(weak, bytes, position, blockSize, sha256, strong);
+            if (block >= 0) {
+                // copy the block, then look for the next one right after it
+                operations.add(-1, start + literalStart, position - literalStart);
+                operations.add((long) block * blockSize, start + position, blockSize);
+                position += blockSize;
+                literalStart = position;
+                if (position + blockSize <= length) {
+                    weak = SignatureRequest.weakChecksum(bytes, position, blockSize);
+                }
+                continue;
+            }
+            if (position + blockSize < length) {
+                weak = SignatureRequest.roll(weak, blockSize, bytes[position], bytes[position + blockSize]);
+            }
+            position++;
+        }
+
+        // the file may end with the short last block of the copy of the server
+        int tail = this.lastBlockLength;
+        int lastBlock = this.weakChecksums.length - 1;
+        if (isLastSegment && tail > 0 && tail < blockSize && length - literalStart >= tail) {
+            int tailStart = length - tail;
+            if (this.isTheBlock(lastBlock, SignatureRequest.weakChecksum(bytes, tailStart, tail), bytes, tailStart,
+                    tail, sha256, strong)) {
+                operations.add(-1, start + literalStart, tailStart - literalStart);
+                operations.add((long) lastBlock * blockSize, start + tailStart, tail);
+                literalStart = length;
+            }
+        }
+        operations.add(-1, start + literalStart, length - literalStart);
+        return operations.toArray();
+    }
+
+    /**
+     * Returns the full block matching the window of the bytes, -1 when there is none.
+     */
+    private int find(int weak, byte[] bytes, int offset, int length, MessageDigest sha256, byte[] strong) {
+        boolean strongComputed = false;
+        for (int block = this.buckets[this.bucketOf(weak)]; block >= 0; block = this.nextBlocks[block]) {
+            if (this.weakChecksums[block] != weak
+                    || (block == this.weakChecksums.length - 1 && this.lastBlockLength != this.blockSize)) {
+                continue;
+            }
+            if (!strongComputed) {
+                SignatureRequest.strongChecksum(sha256, bytes, offset, length, strong, 0);
+                strongComputed = true;
+            }
+            if (this.strongMatches(block, strong)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isTheBlock(int block, int weak, byte[] bytes, int offset, int length, MessageDigest sha256,
+                               byte[] strong) {
+        if (this.weakChecksums[block] != weak) {
+            return false;
+        }
+        SignatureRequest.strongChecksum(sha256, bytes, offset, length, strong, 0);
+        return this.strongMatches(block, strong);
+    }
+
+    private boolean strongMatches(int block, byte[] strong) {
+        int from = block * SignatureRequest.STRONG_LENGTH;
+        return Arrays.equals(this.strongChecksums, from, from + SignatureRequest.STRONG_LENGTH, strong, 0,
+                SignatureRequest.STRONG_LENGTH);
+    }
+
+    /**
+     * A growing list of operations merging the adjacent ones of the same kind.
+     */
+    private static class Operations {
+
+        private long[] values = new long[3 * 64];
+
+        private int size;
+
+        void add(long source, long target, long length) {
+            if (length == 0) {
+                return;
+            }
+            if (this.size != 0) {
+                long lastSource = this.values[this.size - 3];
+                long lastLength = this.values[this.size - 1];
+                if ((source < 0 && lastSource < 0) || (source >= 0 && lastSource >= 0 && lastSource + lastLength == source)) {
+                    this.values[this.size - 1] += length;
+                    return;
+                }
+            }
+            if (this.size == this.values.length) {
+                this.values = Arrays.copyOf(this.values, 2 * this.values.length);
+            }
+            this.values[this.size++] = source;
+            this.values[this.size++] = target;
+            this.values[this.size++] = length;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(this.values, this.size);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Sends a file as a delta range on a non-blocking socket channel: the header with {@link TransferHeader#FLAG_DELTA},
+ * then the operations found by the {@link DeltaMatcher} as chunks, a {@link TransferHeader#CHUNK_COPY} chunk for each
+ * copy and stored chunks for the literal bytes, packed together into the chunk buffer, and finally checks the verdict
+ * of the server against the size and the CRC32C of the file. The copied bytes are read from the local file for the
+ * checksum only, they never go on the wire.
+ */
+public class DeltaSender {
+
+    private enum State { HEADER, DATA, VERDICT, DONE }
+
+    // bytes copied by one copy chunk at most, its length is an u32
+    private static final long MAX_COPY_LENGTH = 1L << 30;
+
+    final SocketChannel socketChannel;
+
+    final TransferHeader header;
+
+    private final FileChannel fileChannel;
+
+    private final long[] operations;
+
+    private final ByteBuffer headerBuffer;
+
+    // chunks being sent (in read mode)
+    private final ByteBuffer chunkBuffer;
+
+    // the resume offset, always 0, then the verdict
+    private final ByteBuffer replyBuffer = ByteBuffer.allocate(TransferHeader.OFFSET_REPLY_LENGTH
+            + TransferHeader.VERDICT_LENGTH);
+
+    // operation being encoded and its bytes already encoded
+    private int nextOperation;
+
+    private long operationDone;
+
+    private long literalBytes;
+
+    private long copiedBytes;
+
+    private long bytesOnTheWire;
+
+    private final RangeChecksum checksum = new RangeChecksum();
+
+    private State state = State.HEADER;
+
+    public DeltaSender(SocketChannel socketChannel, FileChannel fileChannel, TransferHeader header, long[] operations,
+                       int bufferSize) {
+        this.socketChannel = socketChannel;
+        this.fileChannel = fileChannel;
+        this.header = header;
+        this.operations = operations;
+
+        this.headerBuffer = ByteBuffer.allocate(64 + TransferHeader.MAX_NAME_LENGTH);
+        header.writeTo(this.headerBuffer);
+        this.headerBuffer.flip();
+
+        this.chunkBuffer = ByteBuffer.allocateDirect(TransferHeader.CHUNK_HEADER_LENGTH + bufferSize).limit(0);
+    }
+
+    public boolean isDone() {
+        return this.state == State.DONE;
+    }
+
+    public long getLiteralBytes() {
+        return this.literalBytes;
+    }
+
+    public long getCopiedBytes() {
+        return this.copiedBytes;
+    }
+
+    public long getBytesOnTheWire() {
+        return this.bytesOnTheWire;
+    }
+
+    /**
+     * Returns the selection key interest set of the current state.
+     */
+    public int getInterestOps() {
+        switch (this.state) {
+            case HEADER:
+            case DATA:
+                return SelectionKey.OP_WRITE;
+            case VERDICT:
+                return SelectionKey.OP_READ;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Sends as much as the socket channel takes. Returns the number of bytes written to the socket.
+     */
+    public long send() throws IOException {
+        if (this.state == State.HEADER) {
+            this.socketChannel.write(this.headerBuffer);
+            if (this.headerBuffer.hasRemaining()) {
+                return 0;
+            }
+            this.state = this.header.length == 0 ? State.VERDICT : State.DATA;
+        }
+        if (this.state != State.DATA) {
+            return 0;
+        }
+
+        if (!this.chunkBuffer.hasRemaining()) {
+            this.encodeChunks();
+        }
+        int written = this.socketChannel.write(this.chunkBuffer);
+        this.bytesOnTheWire += written;
+        if (!this.chunkBuffer.hasRemaining() && this.nextOperation == this.operations.length) {
+            this.state = State.VERDICT;
+        }
+        return written;
+    }
+
+    /**
+     * Encodes the next operations into the chunk buffer until it is full, a literal operation may be split over
+     * several chunks.
+     */
+    private void encodeChunks() throws IOException {
+        this.chunkBuffer.clear();
+        while (this.nextOperation < this.operations.length) {
+            long source = this.operations[this.nextOperation];
+            long target = this.operations[this.nextOperation + 1] + this.operationDone;
+            long remaining = this.operations[this.nextOperation + 2] - this.operationDone;
+
+            int length;
+            if (source >= 0) {
+                if (this.chunkBuffer.remaining() < TransferHeader.CHUNK_HEADER_LENGTH + TransferHeader.COPY_PAYLOAD_LENGTH) {
+                    break;
+                }
+                length = (int) Math.min(remaining, MAX_COPY_LENGTH);
+                this.chunkBuffer.put((byte) TransferHeader.CHUNK_COPY).putInt(length)
+                        .putLong(source + this.operationDone);
+
+                // the copied bytes are only read back for the checksum of the file
+                this.checksum.update(this.fileChannel, target, length);
+                this.copiedBytes += length;
+            } else {
+                // a literal chunk of one byte at least
+                if (this.chunkBuffer.remaining() <= TransferHeader.CHUNK_HEADER_LENGTH) {
+                    break;
+                }
+                length = (int) Math.min(remaining, this.chunkBuffer.remaining() - TransferHeader.CHUNK_HEADER_LENGTH);
+                this.chunkBuffer.put((byte) TransferHeader.CHUNK_STORED).putInt(length);
+                ByteBuffer literal = this.chunkBuffer.slice(this.chunkBuffer.position(), length);
+                while (literal.hasRemaining()) {
+                    if (this.fileChannel.read(literal, target + literal.position()) == -1) {
+                        throw new EOFException("The file ended before the range " + this.header);
+                    }
+                }
+                literal.flip();
+                this.checksum.update(literal);
+                this.chunkBuffer.position(this.chunkBuffer.position() + length);
+                this.literalBytes += length;
+            }
+
+            this.operationDone += length;
+            if (this.operationDone == this.operations[this.nextOperation + 2]) {
+                this.nextOperation += DeltaMatcher.OPERATION_LENGTH;
+                this.operationDone = 0;
+            }
+        }
+
+        // switch the buffer to the read mode
+        this.chunkBuffer.flip();
+    }
+
+    /**
+     * Reads the replies of the server: the resume offset, then the verdict.
+     */
+    public void receive() throws IOException {
+        if (this.socketChannel.read(this.replyBuffer) == -1) {
+            throw new EOFException("The server closed the connection of " + this.header + " before replying.");
+        }
+        if (this.state != State.VERDICT || this.replyBuffer.hasRemaining()) {
+            return;
+        }
+        this.replyBuffer.flip();
+        this.replyBuffer.getLong();
+        int status = this.replyBuffer.get();
+        long held = this.replyBuffer.getLong();
+        int checksum = this.replyBuffer.getInt();
+        RangeSender.checkTheVerdict(this.header, status, held, checksum, this.checksum.getValue());
+        this.state = State.DONE;
+    }
+}
@@ -1,37 +1,217 @@
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.net.StandardSocketOptions;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Scanner;
+import java.util.UUID;
+import java.util.zip.Deflater;
 
 public class FTPClient {
 
-    private ByteBuffer outputBuffer;
+    // the `ftp.client.*` settings read by the project, the command line rejects the others and lists them
+    static final String[] SETTINGS = {
+            "bandwidthMbps", "batch", "batchBytes", "blockChecksums", "chunkSize", "compress", "compressionLevel",
+            "connections", "dedup", "delta", "deltaBlockSize", "deltaThreads", "downloadDir", "file", "get", "host",
+            "logLevel", "manifest", "maxReadLength", "maxResends", "port", "profile", "readAheadBuffers", "resume",
+            "rttMicros", "sendMode", "session", "sessionStreams", "streams", "summary"
+    };
 
+    // sized for the profile once the first connection measured the round trip
     private int bufferSize = 1 << 16;
 
+    // `default`, `lan`, `wan` or `small-files`, see TransportProfile
+    private String profileName = System.getProperty("ftp.client.profile", "default");
+
+    // bandwidth of the path in Mbit/s the buffers are sized for, 0 for the one of the profile
+    private long bandwidthMbps = Long.getLong("ftp.client.bandwidthMbps", 0);
+
+    // round trip of the path in microseconds the buffers are sized for, 0 to measure it with the connects; a proxy or
+    // a relay in front of the server answers the connect itself, so its round trip says nothing of the path
+    private long rttMicros = Long.getLong("ftp.client.rttMicros", 0);
+
+    private TransportProfile profile;
+
+    // shortest connect measured so far, 0 before the first one, or the given round trip
+    private long rttNanos = this.rttMicros * 1000;
+
     private SocketChannel clientSocketChannel;
 
-    private String remoteIP;
+    // server address and port, and the path sent, prompted for when not given
+    private String remoteIP = System.getProperty("ftp.client.host");
+
+    private int remotePort = Integer.getInteger("ftp.client.port", -1);
+
+    private String filePath = System.getProperty("ftp.client.file");
+
+    // the prompts share one scanner, a second one would take the lines buffered by the first
+    private final Scanner scanner = new Scanner(System.in);
+
+    // file listing the paths to send one per line, sent without any prompt over a pool of sessions
+    private String manifest = System.getProperty("ftp.client.manifest");
+
+    // sessions of the pool sending a manifest
+    private int connections = Integer.getInteger("ftp.client.connections", 8);
 
-    private int remotePort;
+    // file the JSON summary of a manifest is written to, the standard output when not given
+    private String summaryPath = System.getProperty("ftp.client.summary");
 
-    private String filePath = "random_bits.bin";
+    // the standard output, which only takes the summary in the manifest mode while the logs go to the standard error
+    private final PrintStream standardOutput = System.out;
 
     private FileChannel fileChannel;
 
+    // `copy` to send through the output buffer, `zero-copy` to let the kernel send the file with `transferTo()`
+    private String sendMode = System.getProperty("ftp.client.sendMode", "copy");
+
+    // buffers each range is read ahead into by a thread of its own in the copy mode, 0 to read between the writes
+    private int readAheadBuffers = Integer.getInteger("ftp.client.readAheadBuffers", 4);
+
+    // longest read ahead, the reads adapt between the buffer size and this length to the disk and the network
+    private int maxReadLength = Integer.getInteger("ftp.client.maxReadLength", 1 << 20);
+
+    // number of parallel connections the file is sent over
+    private int streams = Integer.getInteger("ftp.client.streams", 1);
+
+    // size of the ranges the file is split into, 0 to split it into one range per stream
+    private long chunkSize = Long.getLong("ftp.client.chunkSize", 0L);
+
+    // deflate the ranges chunk by chunk, only in the copy mode
+    private boolean compress = Boolean.parseBoolean(System.getProperty("ftp.client.compress", "false"));
+
+    // 1 (fastest) to 9 (smallest)
+    private int compressionLevel = Integer.getInteger("ftp.client.compressionLevel", Deflater.BEST_SPEED);
+
+    // send the CRC32C of every block after each range, so that a corrupt block is resent from where it starts
+    private boolean blockChecksums = Boolean.parseBoolean(System.getProperty("ftp.client.blockChecksums", "true"));
+
+    // times a range with a corrupt block is resent before giving up
+    private int maxResends = Integer.getInteger("ftp.client.maxResends", 3);
+
+    // ask the server for the bytes it already holds and send only the rest
+    private boolean resume = Boolean.parseBoolean(System.getProperty("ftp.client.resume", "true"));
+
+    // send a file or every file of a directory as the streams of one session instead of a connection per range
+    private boolean session = Boolean.parseBoolean(System.getProperty("ftp.client.session", "false"));
+
+    // files of a session sent at once
+    private int sessionStreams = Integer.getInteger("ftp.client.sessionStreams", 16);
+
+    // pack small files back to back over one session with gathering writes
+    private boolean batch = Boolean.parseBoolean(System.getProperty("ftp.client.batch", "false"));
+
+    // file contents packed into one gathering write at most
+    private int batchBytes = Integer.getInteger("ftp.client.batchBytes", 1 << 20);
+
+    // send the manifest of the content-defined chunks of the file, then only the chunks the server does not hold
+    private boolean dedup = Boolean.parseBoolean(System.getProperty("ftp.client.dedup", "false"));
+
+    // send only the differences with the copy of the file the server holds, the whole file when it holds none
+    private boolean delta = Boolean.parseBoolean(System.getProperty("ftp.client.delta", "false"));
+
+    // block size asked for the signatures of the copy of the server, 0 to let it choose
+    private int deltaBlockSize = Integer.getInteger("ftp.client.deltaBlockSize", 0);
+
+    // threads matching the blocks of the copy of the server in the file
+    private int deltaThreads = Integer.getInteger("ftp.client.deltaThreads", Runtime.getRuntime().availableProcessors());
+
+    // fetch the entered files from the server instead of sending them
+    private boolean get = Boolean.parseBoolean(System.getProperty("ftp.client.get", "false"));
+
+    // directory the fetched files are written to
+    private String downloadDir = System.getProperty("ftp.client.downloadDir", ".");
+
+    // file the download being received created, deleted if the download fails; null otherwise
+    private File createdTarget;
+
+    // length of the first range of a file fetched over several streams, its reply tells the size of the file
+    private static final long FIRST_GET_RANGE = 8L << 20;
+
+    // `debug` to log every chunk written to the sockets
+    private boolean debug = System.getProperty("ftp.client.logLevel", "info").equals("debug");
+
+    // chunks written to the sockets, for the throughput summary
+    private long chunksSent;
+
+    // selector waking the send loop up when a socket channel can take more data
+    private Selector selector;
+
+    // ranges waiting for a free stream
+    private ArrayDeque<TransferHeader> pendingRanges = new ArrayDeque<>();
+
+    // ranges being sent
+    private int activeRanges;
+
+    // bytes of the compressed ranges written to the sockets, for the compression summary
+    private long bytesOnTheWire;
+
+    // times each range was resent by offset
+    private HashMap<Long, Integer> resends = new HashMap<>();
+
     private void exitGracefully() {
         this.closeTheSocketChannel();
+        this.closeAllRangeSockets();
         this.closeTheFileChannel();
+        this.deleteTheCreatedTarget();
+        this.closeTheSelector();
         System.exit(1);
     }
 
+    private void deleteTheCreatedTarget() {
+        if (this.createdTarget != null && !this.createdTarget.delete() && this.createdTarget.exists()) {
+            System.err.println("Cannot delete " + this.createdTarget);
+        }
+        this.createdTarget = null;
+    }
+
+    private void closeAllRangeSockets() {
+        if (this.selector != null && this.selector.isOpen()) {
+            for (SelectionKey key : this.selector.keys()) {
+                this.closeASocketChannel((SocketChannel) key.channel());
+            }
+        }
+    }
+
+    private void closeASocketChannel(SocketChannel socketChannel) {
+        try {
+            socketChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(socketChannel + "Cannot close the socket channel: " + e.getMessage());
+        }
+    }
+
+    private void closeTheSelector() {
+        if (this.selector != null) {
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot close the selector: " + e.getMessage());
+            }
+        }
+    }
+
     private void closeTheSocketChannel() {
         if (this.clientSocketChannel != null) {
             try {
@@ -54,60 +234,139 @@ public class FTPClient {
         }
     }
 
-    private void printNumberOfBytesSent(int bytesSent) {
-        System.out.println("[" + new Date() + "] " + bytesSent + " byte(s) was(were) sent.");
+    /**
+     * Counts a chunk written to a socket channel, chunks are only logged at the debug level.
+     */
+    private void countBytesSent(long bytesSent) {
+        if (bytesSent > 0) {
+            this.chunksSent++;
+        }
+        if (this.debug) {
+            System.out.println("[" + new Date() + "] " + bytesSent + " byte(s) was(were) sent.");
+        }
+    }
+
+    private void printThroughput(long bytesSent, long elapsedNanos, long cpuNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.printf("%d byte(s) sent in %d chunk(s) in %.3f s (%.1f MB/s) using %.3f s of CPU time in the %s mode over %d stream(s).%n",
+                bytesSent, this.chunksSent, seconds, bytesSent / 1e6 / Math.max(seconds, 1e-9), cpuNanos / 1e9, this.sendMode, this.streams);
     }
 
     public FTPClient() {
-        // inform the user of entering the remote IP and port
-        Scanner scanner = new Scanner(System.in);
-        System.out.println("Please enter the remote IP: ");
-        this.remoteIP = scanner.nextLine();
-        System.out.println("Please enter the remote port: ");
-        this.remotePort = scanner.nextInt();
+        if (this.manifest != null) {
+            System.setOut(System.err);
+        }
+
+        // inform the user of entering the remote IP and port they were not given
+        if (this.remoteIP == null) {
+            System.out.println("Please enter the remote IP: ");
+            this.remoteIP = this.scanner.nextLine();
+        }
+        if (this.remotePort < 0) {
+            System.out.println("Please enter the remote port: ");
+            this.remotePort = this.scanner.nextInt();
+            this.scanner.nextLine(); // consume newline character
+        }
+
+        this.profile = TransportProfile.named(this.profileName, this.bandwidthMbps);
+        if (this.profile == null) {
+            System.err.println("Unknown transport profile " + this.profileName
+                    + ", expected `default`, `lan`, `wan` or `small-files`.");
+            this.exitGracefully();
+        }
 
-        // open the socket channel
+        // open the socket channel, then size the buffers of the transfers for the round trip of its connect; a
+        // manifest goes on without it to report its files as failed
         try {
-            this.clientSocketChannel = SocketChannel.open(new InetSocketAddress(this.remoteIP, this.remotePort));
+            this.clientSocketChannel = this.connect();
+            this.bufferSize = this.profile.appBufferFor(this.rttNanos);
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println("Cannot open the socket channel.");
-            this.exitGracefully();
+            if (this.manifest == null) {
+                this.exitGracefully();
+            }
         }
 
         // set the socket channel to the non-blocking mode
         try {
-            this.clientSocketChannel.configureBlocking(false);
+            if (this.clientSocketChannel != null) {
+                this.clientSocketChannel.configureBlocking(false);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println(this.clientSocketChannel + "Cannot set the socket channel to the non-blocking mode.");
             this.exitGracefully();
         }
 
-        // allocate the memory to the output buffer
-        this.outputBuffer = ByteBuffer.allocate(this.bufferSize);
+        // open the selector the send loop waits on for OP_WRITE instead of spinning
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot open the selector: " + e.getMessage());
+            this.exitGracefully();
+        }
     }
 
     public static void main(String args[]) {
+        try {
+            if (!CommandLine.apply("ftp.client", SETTINGS, args)) {
+                System.out.println(CommandLine.usage("FTPClient", "ftp.client", SETTINGS));
+                return;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Invalid command line: " + e.getMessage());
+            System.err.println(CommandLine.usage("FTPClient", "ftp.client", SETTINGS));
+            System.exit(1);
+        }
         FTPClient client = new FTPClient();
         client.launch();
     }
 
     private void launch() {
+        // a manifest is sent without any prompt
+        if (this.manifest != null) {
+            this.sendAManifest(this.manifest);
+            return;
+        }
         System.out.println("The client was successfully started on the port " + this.clientSocketChannel.socket().getLocalPort());
-        // open the file
+
+        // open the file, a path given on the command line is tried once
+        boolean headless = this.filePath != null;
         String fileName = null;
         while (true) {
             // inform the user of entering the file path
-            System.out.println("Please enter the file path: ");
-            Scanner scanner = new Scanner(System.in);
-            this.filePath = scanner.nextLine();
+            if (!headless) {
+                System.out.println("Please enter the file path: ");
+                this.filePath = this.scanner.nextLine();
+            }
 
             // check the flag
             if (this.filePath.equals("exit")) {
                 break;
             }
 
+            // a download fetches the file over the socket channel opened at start-up and more if needed
+            if (this.get) {
+                this.getAFile(this.filePath);
+                return;
+            }
+
+            // a session or a batch sends its files over the socket channel opened at start-up
+            if (this.session || this.batch) {
+                File[] files = this.listFiles(this.filePath);
+                if (files != null) {
+                    this.sendASession(files);
+                    return;
+                }
+                System.err.println("Cannot find " + this.filePath);
+                if (headless) {
+                    this.exitGracefully();
+                }
+                continue;
+            }
+
             // open the file
             try {
                 File file = new File(this.filePath);
@@ -117,75 +376,802 @@ public class FTPClient {
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
                 System.err.println("Cannot open the file: " +e.getMessage());
+                if (headless) {
+                    this.exitGracefully();
+                }
+            }
+        }
+
+        if (this.fileChannel == null) {
+            this.closeTheSocketChannel();
+            this.closeTheSelector();
+            return;
+        }
+
+        // split the file into ranges sharing one transfer ID
+        long fileSize = 0;
+        try {
+            fileSize = this.fileChannel.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot get the size of the file: " + e.getMessage());
+            this.exitGracefully();
+        }
+        this.streams = Math.max(1, this.streams);
+        long rangeSize = this.chunkSize > 0 ? this.chunkSize : (fileSize + this.streams - 1) / this.streams;
+        if (this.blockChecksums) {
+            // the server takes the block checksums of a bounded range only
+            rangeSize = Math.min(rangeSize, (long) TransferHeader.MAX_BLOCK_CHECKSUMS * TransferHeader.BLOCK_SIZE);
+        }
+        long transferId = transferIdOf(new File(this.filePath), fileSize);
+        if (this.dedup) {
+            this.sendDeduplicated(fileName, transferId);
+            return;
+        }
+        if (this.delta && this.sendADelta(fileName, transferId, fileSize)) {
+            return;
+        }
+        int flags = this.resume ? TransferHeader.FLAG_RESUME : 0;
+        if (this.blockChecksums) {
+            flags |= TransferHeader.FLAG_BLOCK_CHECKSUMS;
+        }
+        if (this.compress) {
+            if (this.sendMode.equals("zero-copy")) {
+                System.err.println("The zero-copy mode sends the file as is, the compression is disabled.");
+            } else {
+                flags |= TransferHeader.FLAG_COMPRESS;
             }
         }
+        long offset = 0;
+        do {
+            long length = Math.min(Math.max(rangeSize, 1), fileSize - offset);
+            this.pendingRanges.add(new TransferHeader(fileName, flags, transferId, fileSize, offset, length));
+            offset += length;
+        } while (offset < fileSize);
+
+        long startNanos = System.nanoTime();
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        long startCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+
+        // start the first ranges, the first one on the socket channel opened at start-up
+        this.startARange(this.clientSocketChannel);
+        for (int i = 1; i < this.streams && !this.pendingRanges.isEmpty(); i++) {
+            this.startARange(this.openASocketChannel());
+        }
+
+        // send the ranges whenever their socket channels can take more data
+        long bytesSent = 0;
+        long reads = 0;
+        long bytesReadAhead = 0;
+        long starved = 0;
+        while (this.activeRanges > 0) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot perform `select()` method on the selector: " + e.getMessage());
+                this.exitGracefully();
+            }
 
-        // put the file name length and the file name into the output buffer
-        this.outputBuffer.clear();
-        this.outputBuffer.put((byte) (fileName.getBytes(StandardCharsets.US_ASCII).length)); // file name length
-        this.outputBuffer.put(fileName.getBytes(StandardCharsets.US_ASCII));
+            Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                RangeSender sender = (RangeSender) key.attachment();
 
-        // switch to the read mode
-        this.outputBuffer.flip();
+                try {
+                    if (key.isReadable()) {
+                        sender.receive();
+                    }
+                    if (key.isWritable()) {
+                        long sent = sender.send();
+                        bytesSent += sent;
+                        this.countBytesSent(sent);
+                    }
+                    key.interestOps(sender.getInterestOps());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println(sender.socketChannel + "Cannot send the file on the socket channel: " + e.getMessage());
+                    this.exitGracefully();
+                }
 
-        // send the file name length and the file name
+                // close the finished range and start the next one on a new connection
+                if (sender.isDone()) {
+                    key.cancel();
+                    this.closeASocketChannel(sender.socketChannel);
+                    this.activeRanges--;
+                    this.bytesOnTheWire += sender.getBytesOnTheWire();
+                    reads += sender.getReads();
+                    bytesReadAhead += sender.getBytesReadAhead();
+                    starved += sender.getStarvedCount();
+                    if (sender.isCorrupt()) {
+                        this.resendARange(sender);
+                    } else {
+                        System.out.println(sender.header + " has been sent and verified"
+                                + (sender.getBytesHeld() > 0 ? ", resumed after " + sender.getBytesHeld() + " byte(s)." : "."));
+                    }
+                    if (!this.pendingRanges.isEmpty()) {
+                        this.startARange(this.openASocketChannel());
+                    }
+                }
+            }
+
+            // a range waiting for its read-ahead is not selected, ask for OP_WRITE again once a buffer is filled
+            for (SelectionKey key : this.selector.keys()) {
+                if (key.isValid()) {
+                    key.interestOps(((RangeSender) key.attachment()).getInterestOps());
+                }
+            }
+        }
+
+        this.printThroughput(bytesSent, System.nanoTime() - startNanos, threadMXBean.getCurrentThreadCpuTime() - startCpuNanos);
+        if ((flags & TransferHeader.FLAG_COMPRESS) != 0) {
+            System.out.printf("%d byte(s) on the wire after compression (%.1f%%).%n",
+                    this.bytesOnTheWire, 100.0 * this.bytesOnTheWire / Math.max(1, bytesSent));
+        }
+        if (reads > 0) {
+            System.out.printf("%d byte(s) read ahead in %d read(s) of %.0f KiB on average, the sends waited for the disk %d time(s).%n",
+                    bytesReadAhead, reads, bytesReadAhead / 1024.0 / reads, starved);
+        }
+        System.out.println("The file " + "\"" + fileName + "\"" + " has been sent successfully.");
+
+        // close all channels
+        this.closeTheFileChannel();
+        this.closeTheSelector();
+    }
+
+    /**
+     * Queues a range the server found a corrupt block in again, it resumes from the bytes held before that block.
+     */
+    private void resendARange(RangeSender sender) {
+        TransferHeader header = sender.header;
+        int resent = this.resends.merge(header.offset, 1, Integer::sum);
+        if (resent > this.maxResends) {
+            System.err.println(header + " was still corrupt after " + this.maxResends + " resend(s).");
+            this.exitGracefully();
+        }
+        System.err.println(header + " has a corrupt block, resending it from byte " + (header.offset + sender.getBytesHeld()) + ".");
+        this.pendingRanges.add(new TransferHeader(header.fileName, header.flags | TransferHeader.FLAG_RESUME,
+                header.transferId, header.fileSize, header.offset, header.length));
+    }
+
+    /**
+     * Derives the transfer ID from the name, the size and the modification time of the file, so that a client
+     * started again for the same file resumes the same transfer.
+     */
+    static long transferIdOf(File file, long fileSize) {
+        String identity = file.getName() + "/" + fileSize + "/" + file.lastModified();
+        return UUID.nameUUIDFromBytes(identity.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+    }
+
+    /**
+     * Returns the files of the path: the file itself, every file of a directory, or the files of the directory
+     * matching the glob of the last name, e.g. `logs/*.txt`. Returns null when nothing matches.
+     */
+    private File[] listFiles(String path) {
+        File file = new File(path);
+        if (file.isFile()) {
+            return new File[] {file};
+        }
+
+        File[] files;
+        if (file.isDirectory()) {
+            files = file.listFiles(File::isFile);
+        } else {
+            File directory = file.getAbsoluteFile().getParentFile();
+            PathMatcher matcher;
+            try {
+                matcher = FileSystems.getDefault().getPathMatcher("glob:" + file.getName());
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            files = directory == null ? null
+                    : directory.listFiles(f -> f.isFile() && matcher.matches(Paths.get(f.getName())));
+        }
+        if (files == null || files.length == 0) {
+            return null;
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Sends the files as the streams of a session, interleaved or packed back to back in the batch mode.
+     */
+    private void sendASession(File[] files) {
+        ArrayDeque<File> pendingFiles = new ArrayDeque<>(Arrays.asList(files));
+        MultiFileSender sender;
+        if (this.batch) {
+            sender = new BatchSender(this.clientSocketChannel, pendingFiles, this.bufferSize,
+                    Math.max(this.bufferSize, this.batchBytes));
+        } else {
+            sender = new SessionSender(this.clientSocketChannel, pendingFiles, this.bufferSize,
+                    Math.max(1, this.sessionStreams));
+        }
         try {
-            this.printNumberOfBytesSent(this.clientSocketChannel.write(this.outputBuffer));
+            this.clientSocketChannel.register(this.selector, SelectionKey.OP_WRITE);
         } catch (IOException e) {
             e.printStackTrace();
-            System.err.println("Cannot send data on the client socket channel: " + e.getMessage());
+            System.err.println(this.clientSocketChannel + "Cannot register the socket channel to the selector: " + e.getMessage());
             this.exitGracefully();
         }
 
-        // switch to the write mode
-        this.outputBuffer.compact();
+        // the last frames of the files must not wait for the acknowledgement of the previous ones
+        try {
+            this.clientSocketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(this.clientSocketChannel + "Cannot disable Nagle's algorithm: " + e.getMessage());
+        }
 
-        // read the file and send it to the remote endpoint
-        while (true) {
-            // read the file
+        long startNanos = System.nanoTime();
+        while (!sender.isDone()) {
             try {
-                if ((this.fileChannel.read(outputBuffer)) == -1) {
-                    this.closeTheFileChannel();
-                    break;
+                this.selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot perform `select()` method on the selector: " + e.getMessage());
+                sender.close();
+                this.exitGracefully();
+            }
+
+            Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                try {
+                    if (key.isReadable()) {
+                        sender.receive();
+                    }
+                    if (key.isWritable()) {
+                        this.countBytesSent(sender.send());
+                    }
+                    key.interestOps(sender.getInterestOps());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println(this.clientSocketChannel + "Cannot send the session: " + e.getMessage());
+                    sender.close();
+                    this.exitGracefully();
                 }
+            }
+        }
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%d file(s), %d byte(s) sent and verified over one session in %.3f s (%.1f files/s, %.1f MB/s) in the %s mode.%n",
+                sender.getFilesVerified(), sender.getBytesVerified(), seconds,
+                sender.getFilesVerified() / Math.max(seconds, 1e-9), sender.getBytesVerified() / 1e6 / Math.max(seconds, 1e-9),
+                this.batch ? "batch" : "session");
+
+        // close all channels
+        this.closeTheSocketChannel();
+        this.closeTheSelector();
+    }
+
+    /**
+     * Sends the files listed in the manifest, one path per line (blank lines and `#` comments aside), over a pool of
+     * `connections` sessions taking the next file from one shared queue, so that a session done with a large file
+     * moves on while the others are busy. Writes the JSON summary of every file and the totals, then exits with 1
+     * when a file failed. A session that fails leaves its files failed and the others take the rest of the queue.
+     */
+    private void sendAManifest(String manifestPath) {
+        long startNanos = System.nanoTime();
+        PrintStream output = this.standardOutput;
+        if (this.summaryPath != null) {
+            try {
+                output = new PrintStream(new FileOutputStream(this.summaryPath), false, StandardCharsets.UTF_8);
             } catch (IOException e) {
                 e.printStackTrace();
-                System.err.println("Cannot read from the file channel: " +e.getMessage());
-                this.closeTheFileChannel();
-                break;
+                System.err.println("Cannot open the summary " + this.summaryPath + ": " + e.getMessage());
+                this.exitGracefully();
             }
+        }
+        ManifestSummary summary = new ManifestSummary(output);
+
+        // queue the files of the manifest, the missing ones fail at once
+        ArrayDeque<File> pendingFiles = null;
+        try {
+            pendingFiles = queueTheManifest(Files.readAllLines(Paths.get(manifestPath), StandardCharsets.UTF_8), summary);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot read the manifest " + manifestPath + ": " + e.getMessage());
+            this.exitGracefully();
+        }
 
-            // switch the buffer to the read mode
-            this.outputBuffer.flip();
+        // open the sessions of the pool, the first one on the socket channel opened at start-up
+        SessionSender.FileListener listener = (file, bytes, openNanos, error) -> {
+            long nanos = System.nanoTime() - openNanos;
+            if (error == null) {
+                summary.verified(file.getPath(), bytes, nanos);
+            } else {
+                summary.failed(file.getPath(), nanos, error.getMessage());
+            }
+        };
+        // a session that cannot be opened leaves its files to the others, those no session is left for fail
+        int poolSize = Math.max(1, Math.min(this.connections, pendingFiles.size()));
+        int activeSessions = 0;
+        int openedSessions = 0;
+        String sessionError = "No session was left to send the file";
+        for (int i = 0; i < poolSize && !pendingFiles.isEmpty(); i++) {
+            SocketChannel socketChannel = i == 0 ? this.clientSocketChannel : null;
+            try {
+                if (socketChannel == null) {
+                    socketChannel = this.connect();
+                    socketChannel.configureBlocking(false);
+                }
+                SessionSender sender = new SessionSender(socketChannel, pendingFiles, this.bufferSize,
+                        Math.max(1, this.sessionStreams));
+                sender.setListener(listener);
+                // the last frames of the files must not wait for the acknowledgement of the previous ones
+                socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                socketChannel.register(this.selector, SelectionKey.OP_WRITE, sender);
+                activeSessions++;
+                openedSessions++;
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot open a session: " + e.getMessage());
+                sessionError = "Cannot open a session: " + e.getMessage();
+                if (socketChannel != null) {
+                    this.closeASocketChannel(socketChannel);
+                }
+            }
+        }
 
-            // send the file to the remote endpoint
+        while (activeSessions > 0) {
             try {
-                this.printNumberOfBytesSent(this.clientSocketChannel.write(outputBuffer));
+                this.selector.select();
             } catch (IOException e) {
                 e.printStackTrace();
-                System.err.println(this.clientSocketChannel + "Cannot send the file on the socket channel: " + e.getMessage());
+                System.err.println("Cannot perform `select()` method on the selector: " + e.getMessage());
                 this.exitGracefully();
             }
 
-            // switch the buffer to the write mode
-            this.outputBuffer.compact();
+            Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                SessionSender sender = (SessionSender) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        sender.receive();
+                    }
+                    if (key.isWritable()) {
+                        this.countBytesSent(sender.send());
+                    }
+                    key.interestOps(sender.getInterestOps());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println(sender.socketChannel + "Cannot send the session: " + e.getMessage());
+                    sender.close();
+                    sender.failTheOpenFiles(e);
+                    key.cancel();
+                    this.closeASocketChannel(sender.socketChannel);
+                    activeSessions--;
+                    continue;
+                }
+
+                // close the session once the queue is empty and its own files are verified
+                if (sender.isDone()) {
+                    key.cancel();
+                    this.closeASocketChannel(sender.socketChannel);
+                    activeSessions--;
+                }
+            }
+        }
+
+        // the files no session was left to send
+        for (File file : pendingFiles) {
+            summary.failed(file.getPath(), 0, sessionError);
+        }
+        summary.finish(System.nanoTime() - startNanos, openedSessions);
+        if (output != this.standardOutput) {
+            output.close();
+        }
+        this.closeTheSocketChannel();
+        this.closeTheSelector();
+        if (summary.getFailed() > 0) {
+            System.exit(1);
         }
+    }
 
-        // switch the buffer to the read mode
-        this.outputBuffer.flip();
+    /**
+     * Returns the queue of the files listed in the lines of a manifest, and reports the entries that cannot be sent
+     * as failed: the missing files, and the files named like an earlier one. The server stores a file under its name
+     * alone, so the second of two files with the same name would overwrite the first one.
+     */
+    static ArrayDeque<File> queueTheManifest(List<String> lines, ManifestSummary summary) {
+        ArrayDeque<File> pendingFiles = new ArrayDeque<>();
+        HashMap<String, String> pathsByName = new HashMap<>();
+        for (String line : lines) {
+            String path = line.trim();
+            if (path.isEmpty() || path.startsWith("#")) {
+                continue;
+            }
+            File file = new File(path);
+            if (!file.isFile()) {
+                summary.failed(path, 0, "Cannot find " + path);
+                continue;
+            }
+            String firstPath = pathsByName.putIfAbsent(file.getName(), path);
+            if (firstPath != null) {
+                summary.failed(path, 0, "The name " + file.getName() + " is already taken by " + firstPath);
+                continue;
+            }
+            pendingFiles.add(file);
+        }
+        return pendingFiles;
+    }
 
-        // flush the remaining data in the buffer to the socket channel
-        while (this.outputBuffer.remaining() != 0) {
+    /**
+     * Sends the file as a deduplicated upload over the socket channel opened at start-up: its manifest, then the
+     * chunks the server asks for.
+     */
+    private void sendDeduplicated(String fileName, long transferId) {
+        long startNanos = System.nanoTime();
+        Chunker chunker = new Chunker(this.fileChannel);
+        ChunkManifest manifest = null;
+        try {
+            manifest = chunker.chunk(fileName, transferId);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot split the file into chunks: " + e.getMessage());
+            this.exitGracefully();
+        }
+        long chunkingNanos = System.nanoTime() - startNanos;
+
+        DedupSender sender = new DedupSender(this.clientSocketChannel, this.fileChannel, manifest, chunker.getChecksum());
+        try {
+            this.clientSocketChannel.register(this.selector, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(this.clientSocketChannel + "Cannot register the socket channel to the selector: " + e.getMessage());
+            this.exitGracefully();
+        }
+
+        while (!sender.isDone()) {
             try {
-                this.printNumberOfBytesSent(this.clientSocketChannel.write(outputBuffer));
+                this.selector.select();
             } catch (IOException e) {
                 e.printStackTrace();
-                System.err.println(this.clientSocketChannel + "Cannot send the file on the socket channel: " + e.getMessage());
+                System.err.println("Cannot perform `select()` method on the selector: " + e.getMessage());
                 this.exitGracefully();
             }
+
+            Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                try {
+                    if (key.isReadable()) {
+                        sender.receive();
+                    }
+                    if (key.isWritable()) {
+                        this.countBytesSent(sender.send());
+                    }
+                    key.interestOps(sender.getInterestOps());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println(this.clientSocketChannel + "Cannot send the file on the socket channel: " + e.getMessage());
+                    this.exitGracefully();
+                }
+            }
         }
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%s: %d of %d chunk(s) sent, %d of %d byte(s) (%.1f%%), in %.3f s (%.3f s of chunking).%n",
+                manifest, sender.getMissingChunks(), manifest.chunkCount(), sender.getBytesSent(), manifest.fileSize,
+                100.0 * sender.getBytesSent() / Math.max(1, manifest.fileSize), seconds, chunkingNanos / 1e9);
+        System.out.println("The file " + "\"" + fileName + "\"" + " has been sent successfully.");
+
         // close all channels
         this.closeTheSocketChannel();
         this.closeTheFileChannel();
+        this.closeTheSelector();
+    }
+
+    /**
+     * Sends the file as a delta against the copy the server holds: its block signatures are fetched over the socket
+     * channel opened at start-up, matched in the file, and the delta is sent as one range over a new connection.
+     * Returns false when the server holds no copy, the socket channel opened at start-up is then replaced for the
+     * upload of the whole file.
+     */
+    private boolean sendADelta(String fileName, long transferId, long fileSize) {
+        long startNanos = System.nanoTime();
+        SignatureFetcher fetcher = new SignatureFetcher(this.clientSocketChannel,
+                new SignatureRequest(fileName, Math.max(0, this.deltaBlockSize)));
+        try {
+            this.clientSocketChannel.register(this.selector, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(this.clientSocketChannel + "Cannot register the socket channel to the selector: " + e.getMessage());
+            this.exitGracefully();
+        }
+        long signatureBytes = 0;
+        while (!fetcher.isDone()) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot perform `select()` method on the selector: " + e.getMessage());
+                this.exitGracefully();
+            }
+
+            Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                try {
+                    if (key.isReadable()) {
+                        signatureBytes += fetcher.receive();
+                    }
+                    if (key.isWritable()) {
+                        fetcher.send();
+                    }
+                    key.interestOps(fetcher.getInterestOps());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println(this.clientSocketChannel + "Cannot fetch the signatures: " + e.getMessage());
+                    this.exitGracefully();
+                }
+            }
+        }
+
+        // the server closes the connection once the signatures are sent
+        this.clientSocketChannel.keyFor(this.selector).cancel();
+        this.closeTheSocketChannel();
+        if (!fetcher.isFound()) {
+            System.out.println("The server holds no copy of \"" + fileName + "\", sending the whole file.");
+            this.clientSocketChannel = this.openASocketChannel();
+            return false;
+        }
+        long fetchNanos = System.nanoTime() - startNanos;
+
+        // find the blocks of the copy of the server in the file
+        long[] operations = null;
+        try {
+            operations = new DeltaMatcher(this.fileChannel, fetcher, Math.max(1, this.deltaThreads)).match();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot match the blocks of the file: " + e.getMessage());
+            this.exitGracefully();
+        }
+        long matchNanos = System.nanoTime() - startNanos - fetchNanos;
+
+        // the delta replaces the whole file, it is never resumed
+        TransferHeader header = new TransferHeader(fileName, TransferHeader.FLAG_COMPRESS | TransferHeader.FLAG_DELTA,
+                transferId, fileSize, 0, fileSize);
+        SocketChannel socketChannel = this.openASocketChannel();
+        DeltaSender sender = new DeltaSender(socketChannel, this.fileChannel, header, operations, this.bufferSize);
+        try {
+            socketChannel.register(this.selector, SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(socketChannel + "Cannot register the socket channel to the selector: " + e.getMessage());
+            this.exitGracefully();
+        }
+
+        while (!sender.isDone()) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot perform `select()` method on the selector: " + e.getMessage());
+                this.exitGracefully();
+            }
+
+            Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                try {
+                    if (key.isReadable()) {
+                        sender.receive();
+                    }
+                    if (key.isWritable()) {
+                        this.countBytesSent(sender.send());
+                    }
+                    key.interestOps(sender.getInterestOps());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println(socketChannel + "Cannot send the delta on the socket channel: " + e.getMessage());
+                    this.exitGracefully();
+                }
+            }
+        }
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%s: %d byte(s) copied and %d literal byte(s), %d byte(s) on the wire (%.1f%%) and %d of signatures, in %.3f s (%.3f s fetching, %.3f s matching).%n",
+                header, sender.getCopiedBytes(), sender.getLiteralBytes(), sender.getBytesOnTheWire(),
+                100.0 * sender.getBytesOnTheWire() / Math.max(1, fileSize), signatureBytes, seconds, fetchNanos / 1e9,
+                matchNanos / 1e9);
+        System.out.println("The file " + "\"" + fileName + "\"" + " has been sent successfully.");
+
+        // close all channels
+        this.closeASocketChannel(socketChannel);
+        this.closeTheFileChannel();
+        this.closeTheSelector();
+        return true;
+    }
+
+    /**
+     * Opens a socket channel to the server tuned to the profile and measures the round trip of its connect, one SYN
+     * and its SYN-ACK. The receive buffer is sized for the shortest round trip measured so far before connecting, the
+     * send buffer again for the new one.
+     */
+    private SocketChannel connect() throws IOException {
+        SocketChannel socketChannel = SocketChannel.open();
+        try {
+            this.profile.apply(socketChannel, this.rttNanos);
+            long startNanos = System.nanoTime();
+            socketChannel.connect(new InetSocketAddress(this.remoteIP, this.remotePort));
+            long rtt = System.nanoTime() - startNanos;
+            if (this.rttMicros <= 0) {
+                this.rttNanos = this.rttNanos == 0 ? rtt : Math.min(this.rttNanos, rtt);
+                this.profile.apply(socketChannel, this.rttNanos);
+            }
+        } catch (IOException e) {
+            this.closeASocketChannel(socketChannel);
+            throw e;
+        }
+        System.out.printf("%s connected with the %s profile, round trip of %.3f ms, bandwidth-delay product of %d byte(s), %s.%n",
+                socketChannel.getLocalAddress(), this.profile, this.rttNanos / 1e6,
+                this.profile.bandwidthDelayProduct(this.rttNanos), TransportProfile.describe(socketChannel));
+        return socketChannel;
+    }
+
+    private SocketChannel openASocketChannel() {
+        SocketChannel socketChannel = null;
+        try {
+            socketChannel = this.connect();
+            socketChannel.configureBlocking(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot open the socket channel: " + e.getMessage());
+            this.exitGracefully();
+        }
+        return socketChannel;
+    }
+
+    /**
+     * Fetches the file from the server into the download directory in ranges over up to `streams` connections. The
+     * first range goes out on the socket channel opened at start-up; its reply tells the size of the file, then the
+     * other ranges are fetched in parallel.
+     */
+    private void getAFile(String fileName) {
+        File target = new File(this.downloadDir, new File(fileName).getName());
+
+        // the target is only opened once the server replied with the size of the file, a refused request leaves it
+        // as it was
+        this.streams = Math.max(1, this.streams);
+        long firstLength = this.chunkSize > 0 ? this.chunkSize : this.streams == 1 ? -1 : FIRST_GET_RANGE;
+        ArrayDeque<GetRequest> pendingRequests = new ArrayDeque<>();
+        long startNanos = System.nanoTime();
+        long fileSize = -1;
+        long bytesReceived = 0;
+        int activeFetches = 1;
+        this.startAFetch(this.clientSocketChannel, new GetRequest(fileName, 0, firstLength));
+
+        // receive the ranges whenever their socket channels have data
+        while (activeFetches > 0) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot perform `select()` method on the selector: " + e.getMessage());
+                this.exitGracefully();
+            }
+
+            Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                RangeFetcher fetcher = (RangeFetcher) key.attachment();
+
+                try {
+                    if (key.isReadable()) {
+                        bytesReceived += fetcher.receive();
+                    }
+                    if (key.isWritable()) {
+                        fetcher.send();
+                    }
+                    key.interestOps(fetcher.getInterestOps());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println(fetcher.socketChannel + "Cannot fetch the file: " + e.getMessage());
+                    this.exitGracefully();
+                }
+
+                // open the target and split the rest of the file into ranges once the first reply tells its size
+                if (fileSize < 0 && fetcher.getFileSize() >= 0) {
+                    fileSize = fetcher.getFileSize();
+                    this.openTheTarget(target, fileSize);
+                    fetcher.setFileChannel(this.fileChannel);
+                    long offset = fetcher.getLength();
+                    long rangeSize = this.chunkSize > 0 ? this.chunkSize
+                            : (fileSize - offset + this.streams - 2) / Math.max(1, this.streams - 1);
+                    while (offset < fileSize) {
+                        long length = Math.min(Math.max(rangeSize, 1), fileSize - offset);
+                        pendingRequests.add(new GetRequest(fileName, offset, length));
+                        offset += length;
+                    }
+                    for (; activeFetches < this.streams && !pendingRequests.isEmpty(); activeFetches++) {
+                        this.startAFetch(this.openASocketChannel(), pendingRequests.poll());
+                    }
+                }
+
+                // close the finished range and fetch the next one on a new connection
+                if (fetcher.isDone()) {
+                    key.cancel();
+                    this.closeASocketChannel(fetcher.socketChannel);
+                    activeFetches--;
+                    if (!pendingRequests.isEmpty()) {
+                        this.startAFetch(this.openASocketChannel(), pendingRequests.poll());
+                        activeFetches++;
+                    }
+                }
+            }
+        }
+
+        this.createdTarget = null;
+
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        System.out.printf("%d byte(s) received in %.3f s (%.1f MB/s) over %d stream(s).%n", bytesReceived, seconds,
+                bytesReceived / 1e6 / Math.max(seconds, 1e-9), this.streams);
+        System.out.println("The file " + "\"" + fileName + "\"" + " has been received successfully.");
+
+        // close all channels
+        this.closeTheFileChannel();
+        this.closeTheSelector();
+    }
+
+    /**
+     * Opens the target of a download of `fileSize` bytes, dropping the tail of a larger file it replaces. A target
+     * it creates is deleted if the download fails.
+     */
+    private void openTheTarget(File target, long fileSize) {
+        if (!target.exists()) {
+            this.createdTarget = target;
+        }
+        try {
+            this.fileChannel = new RandomAccessFile(target, "rw").getChannel();
+            if (this.fileChannel.size() > fileSize) {
+                this.fileChannel.truncate(fileSize);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot open the file: " + e.getMessage());
+            this.exitGracefully();
+        }
+    }
+
+    /**
+     * Fetches the range of the request on the socket channel.
+     */
+    private void startAFetch(SocketChannel socketChannel, GetRequest request) {
+        RangeFetcher fetcher = new RangeFetcher(socketChannel, this.fileChannel, request, this.bufferSize);
+        try {
+            socketChannel.register(this.selector, SelectionKey.OP_WRITE, fetcher);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(socketChannel + "Cannot register the socket channel to the selector: " + e.getMessage());
+            this.exitGracefully();
+        }
+    }
+
+    /**
+     * Sends the next pending range on the socket channel.
+     */
+    private void startARange(SocketChannel socketChannel) {
+        TransferHeader header = this.pendingRanges.poll();
+        RangeSender sender = new RangeSender(socketChannel, this.fileChannel, header, this.bufferSize,
+                this.sendMode.equals("zero-copy"), this.compressionLevel, Math.max(0, this.readAheadBuffers),
+                this.maxReadLength, this.selector::wakeup);
+        try {
+            socketChannel.register(this.selector, SelectionKey.OP_WRITE, sender);
+            this.activeRanges++;
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(socketChannel + "Cannot register the socket channel to the selector: " + e.getMessage());
+            this.exitGracefully();
+        }
     }
 }
@@ -0,0 +1,88 @@
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Writes the machine-readable summary of a manifest: a JSON object per line for every file, in the order their
+ * verdicts arrive, then one with the totals.
+ *
+ * <pre>
+ * {"file":"logs/a.txt","status":"ok","bytes":1048576,"seconds":0.012,"mbPerSecond":87.4}
+ * {"file":"logs/b.txt","status":"failed","bytes":0,"seconds":0.000,"mbPerSecond":0.0,"error":"..."}
+ * {"files":2,"failed":1,"bytes":1048576,"seconds":0.015,"mbPerSecond":69.9,"connections":8}
+ * </pre>
+ *
+ * The seconds of a file run from its OPEN frame to its verdict, so the files sharing a session overlap.
+ */
+public class ManifestSummary {
+
+    private final PrintStream output;
+
+    private long files;
+
+    private long failed;
+
+    private long bytes;
+
+    public ManifestSummary(PrintStream output) {
+        this.output = output;
+    }
+
+    public long getFailed() {
+        return this.failed;
+    }
+
+    public void verified(String file, long bytes, long nanos) {
+        this.files++;
+        this.bytes += bytes;
+        this.output.printf(Locale.ROOT, "{\"file\":%s,\"status\":\"ok\",\"bytes\":%d,\"seconds\":%.6f,\"mbPerSecond\":%.3f}%n",
+                quote(file), bytes, nanos / 1e9, bytes / 1e3 / Math.max(nanos / 1e6, 1e-3));
+    }
+
+    public void failed(String file, long nanos, String error) {
+        this.files++;
+        this.failed++;
+        this.output.printf(Locale.ROOT, "{\"file\":%s,\"status\":\"failed\",\"bytes\":0,\"seconds\":%.6f,\"mbPerSecond\":0.0,\"error\":%s}%n",
+                quote(file), nanos / 1e9, quote(String.valueOf(error)));
+    }
+
+    public void finish(long nanos, int connections) {
+        this.output.printf(Locale.ROOT, "{\"files\":%d,\"failed\":%d,\"bytes\":%d,\"seconds\":%.6f,\"mbPerSecond\":%.3f,\"connections\":%d}%n",
+                this.files, this.failed, this.bytes, nanos / 1e9, this.bytes / 1e3 / Math.max(nanos / 1e6, 1e-3),
+                connections);
+        this.output.flush();
+    }
+
+    /**
+     * Returns the string as a JSON string literal.
+     */
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.IOException;
+
+/**
+ * Sends many files over one session, driven by the select loop of the client.
+ */
+public interface MultiFileSender {
+
+    boolean isDone();
+
+    /**
+     * Returns the selection key interest set of the sender.
+     */
+    int getInterestOps();
+
+    /**
+     * Sends as much as the socket channel takes. Returns the number of bytes sent.
+     */
+    long send() throws IOException;
+
+    /**
+     * Reads and checks the verdicts of the server.
+     */
+    void receive() throws IOException;
+
+    /**
+     * Closes the files still open, after a failure.
+     */
+    void close();
+
+    long getFilesVerified();
+
+    long getBytesVerified();
+}
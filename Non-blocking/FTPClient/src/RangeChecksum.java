@@ -0,0 +1,112 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * The CRC32C of a range and of each of its blocks of {@link TransferHeader#BLOCK_SIZE} bytes, computed
+ * incrementally while the bytes of the range go by in order, so that the range is never read again just to check
+ * it. The bytes that did not go by (the bytes held before a resume, or the bytes moved by `transferTo()` and
+ * `transferFrom()`) are read from the file instead. This class is shared by the client and the server.
+ */
+public class RangeChecksum {
+
+    private static final int READ_LENGTH = 1 << 16;
+
+    // one read buffer per thread, a direct buffer is too costly to allocate for every small file
+    private static final ThreadLocal<ByteBuffer> readBuffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_LENGTH));
+
+    private final CRC32C range = new CRC32C();
+
+    private final CRC32C block = new CRC32C();
+
+    // checksums of the complete blocks
+    private int[] blocks = new int[8];
+
+    private int blockCount;
+
+    // bytes of the current block
+    private int blockFill;
+
+    // bytes of the range checked so far
+    private long length;
+
+    public long length() {
+        return this.length;
+    }
+
+    /**
+     * Adds the remaining bytes of the buffer (in read mode) and moves its position to its limit.
+     */
+    public void update(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            int count = Math.min(buffer.remaining(), TransferHeader.BLOCK_SIZE - this.blockFill);
+            ByteBuffer slice = buffer.slice(buffer.position(), count);
+            this.range.update(slice);
+            slice.rewind();
+            this.block.update(slice);
+            buffer.position(buffer.position() + count);
+
+            this.length += count;
+            this.blockFill += count;
+            if (this.blockFill == TransferHeader.BLOCK_SIZE) {
+                this.endTheBlock();
+            }
+        }
+    }
+
+    /**
+     * Adds `count` bytes of the file from `position`, read with positional reads.
+     */
+    public void update(FileChannel fileChannel, long position, long count) throws IOException {
+        ByteBuffer buffer = readBuffers.get();
+        long end = position + count;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = fileChannel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("The file ended at " + position + " before " + end);
+            }
+            position += read;
+            buffer.flip();
+            this.update(buffer);
+        }
+    }
+
+    private void endTheBlock() {
+        if (this.blockCount == this.blocks.length) {
+            this.blocks = Arrays.copyOf(this.blocks, this.blockCount * 2);
+        }
+        this.blocks[this.blockCount++] = (int) this.block.getValue();
+        this.block.reset();
+        this.blockFill = 0;
+    }
+
+    /**
+     * Returns the CRC32C of the bytes checked so far.
+     */
+    public int getValue() {
+        return (int) this.range.getValue();
+    }
+
+    /**
+     * Returns the checksums of the blocks once the whole range was added, the last one may be partial.
+     */
+    public int[] getBlockChecksums() {
+        if (this.blockFill != 0) {
+            this.endTheBlock();
+        }
+        return Arrays.copyOf(this.blocks, this.blockCount);
+    }
+
+    /**
+     * Returns the number of blocks of a range of `length` bytes.
+     */
+    public static int blockCountOf(long length) {
+        return (int) ((length + TransferHeader.BLOCK_SIZE - 1) / TransferHeader.BLOCK_SIZE);
+    }
+}
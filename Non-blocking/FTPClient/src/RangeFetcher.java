@@ -0,0 +1,142 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Fetches one range of a file on its own non-blocking socket channel: the {@link GetRequest}, then the reply with
+ * the size of the file, then the bytes of the range written at their offset in the local file with positional writes.
+ * The file channel can be shared by the fetchers of the other ranges since every write is positional. The fetcher of
+ * the first range gets it once the reply told the size of the file, so that a refused request writes nothing.
+ */
+public class RangeFetcher {
+
+    private enum State { REQUEST, REPLY, DATA, DONE }
+
+    final SocketChannel socketChannel;
+
+    final GetRequest request;
+
+    // null until the target of the download is opened
+    private FileChannel fileChannel;
+
+    private final ByteBuffer requestBuffer;
+
+    private final ByteBuffer replyBuffer = ByteBuffer.allocate(GetRequest.REPLY_LENGTH);
+
+    private final ByteBuffer inputBuffer;
+
+    private State state = State.REQUEST;
+
+    // -1 until the reply is received
+    private long fileSize = -1;
+
+    private long length;
+
+    private long bytesReceived;
+
+    public RangeFetcher(SocketChannel socketChannel, FileChannel fileChannel, GetRequest request, int bufferSize) {
+        this.socketChannel = socketChannel;
+        this.fileChannel = fileChannel;
+        this.request = request;
+
+        this.requestBuffer = ByteBuffer.allocate(64 + 3 * TransferHeader.MAX_NAME_LENGTH);
+        request.writeTo(this.requestBuffer);
+        this.requestBuffer.flip();
+
+        this.inputBuffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public boolean isDone() {
+        return this.state == State.DONE;
+    }
+
+    /**
+     * Returns the size of the file, -1 until the reply of the server is received.
+     */
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    public long getLength() {
+        return this.length;
+    }
+
+    public void setFileChannel(FileChannel fileChannel) {
+        this.fileChannel = fileChannel;
+    }
+
+    /**
+     * Returns the selection key interest set of the current state.
+     */
+    public int getInterestOps() {
+        switch (this.state) {
+            case REQUEST:
+                return SelectionKey.OP_WRITE;
+            case REPLY:
+            case DATA:
+                return SelectionKey.OP_READ;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Sends as much of the request as the socket channel takes.
+     */
+    public void send() throws IOException {
+        this.socketChannel.write(this.requestBuffer);
+        if (!this.requestBuffer.hasRemaining()) {
+            this.state = State.REPLY;
+        }
+    }
+
+    /**
+     * Reads the reply, then the range, and writes it to the file. Returns the number of bytes of the range received.
+     */
+    public long receive() throws IOException {
+        if (this.state == State.REPLY) {
+            if (this.socketChannel.read(this.replyBuffer) == -1) {
+                throw new EOFException("The server closed the connection of " + this.request + " before replying.");
+            }
+            if (this.replyBuffer.hasRemaining()) {
+                return 0;
+            }
+            this.replyBuffer.flip();
+            int status = this.replyBuffer.get();
+            this.fileSize = this.replyBuffer.getLong();
+            this.length = this.replyBuffer.getLong();
+            if (status != GetRequest.STATUS_OK) {
+                throw new IOException("The server refused " + this.request
+                        + (status == GetRequest.STATUS_NOT_FOUND ? ": no such file." : ": invalid range."));
+            }
+            this.state = this.length == 0 ? State.DONE : State.DATA;
+            return 0;
+        }
+
+        // do not read past the end of the range
+        this.inputBuffer.clear();
+        if (this.inputBuffer.remaining() > this.length - this.bytesReceived) {
+            this.inputBuffer.limit((int) (this.length - this.bytesReceived));
+        }
+        int read = this.socketChannel.read(this.inputBuffer);
+        if (read == -1) {
+            throw new EOFException("The server closed the connection of " + this.request + " after "
+                    + this.bytesReceived + " of " + this.length + " byte(s).");
+        }
+
+        // switch the buffer to the read mode
+        this.inputBuffer.flip();
+
+        while (this.inputBuffer.hasRemaining()) {
+            this.fileChannel.write(this.inputBuffer, this.request.offset + this.bytesReceived + this.inputBuffer.position());
+        }
+        this.bytesReceived += read;
+        if (this.bytesReceived == this.length) {
+            this.state = State.DONE;
+        }
+        return read;
+    }
+}
@@ -0,0 +1,441 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Sends one range of a file on its own non-blocking socket channel: the header, then (after the resume offset
+ * sent back by the server when resuming) the rest of the range read with positional reads (copy mode) or
+ * `transferTo()` (zero-copy mode), the block checksums when the header asks for them, and finally checks the
+ * verdict of the server against the length and the CRC32C of the range. The checksums are computed on the bytes
+ * read for sending; only the bytes the server already held and the bytes sent by `transferTo()` are read again. The file channel can be shared by the senders of the other ranges since every read is
+ * positional. With {@link TransferHeader#FLAG_COMPRESS} the range is read chunk by chunk into a direct buffer and
+ * each chunk is deflated into another one before it is sent; a chunk that does not shrink is sent stored and the
+ * next {@link #INCOMPRESSIBLE_CHUNKS_SKIPPED} chunks are not even tried. In the copy mode with read-ahead buffers the
+ * range is read by a {@link ReadAhead} thread while this sender drains its buffers, and the sender only asks for
+ * OP_WRITE while a filled buffer waits; `onFilled` wakes the send loop up when the next one is ready.
+ */
+public class RangeSender {
+
+    private enum State { HEADER, OFFSET, DATA, TRAILER, VERDICT, DONE }
+
+    // chunks sent stored without trying to deflate them after one that did not shrink
+    static final int INCOMPRESSIBLE_CHUNKS_SKIPPED = 8;
+
+    final SocketChannel socketChannel;
+
+    final TransferHeader header;
+
+    private final FileChannel fileChannel;
+
+    private final ByteBuffer headerBuffer;
+
+    // null in the zero-copy mode, for a compressed range and with read-ahead buffers
+    private final ByteBuffer outputBuffer;
+
+    // buffers read ahead of the sender, 0 to read into the output buffer between the writes
+    private final int readAheadBuffers;
+
+    private final int maxReadLength;
+
+    private final Runnable onFilled;
+
+    // started with the data of the range, null until then
+    private ReadAhead readAhead;
+
+    // filled buffer being written to the socket (in read mode), null while none is taken
+    private ByteBuffer aheadBuffer;
+
+    // times the socket could take more but no buffer was read yet
+    private long starvedCount;
+
+    // null unless the range is compressed, reset for every chunk
+    private final Deflater deflater;
+
+    // raw chunk read from the file, then the chunk being sent (in read mode)
+    private final ByteBuffer rawBuffer;
+
+    private final ByteBuffer chunkBuffer;
+
+    // bytes of the range in the chunk being sent
+    private int chunkRawLength;
+
+    private int chunksToSkip;
+
+    // bytes of the compressed range written to the socket, chunk headers included
+    private long bytesOnTheWire;
+
+    // replies of the server: the resume offset and the verdict
+    private final ByteBuffer replyBuffer;
+
+    private State state = State.HEADER;
+
+    // the resume offset is still unread when the sender did not wait for it
+    private boolean offsetUnread;
+
+    // bytes of the range the server already held
+    private long bytesHeld;
+
+    // bytes of the range read from the file and sent to the socket
+    private long bytesRead;
+
+    private long bytesSent;
+
+    private final RangeChecksum checksum = new RangeChecksum();
+
+    // block checksums sent after the range (in read mode), null until the range is sent
+    private ByteBuffer trailerBuffer;
+
+    // the server found a corrupt block and holds the bytes before it
+    private boolean corrupt;
+
+    public RangeSender(SocketChannel socketChannel, FileChannel fileChannel, TransferHeader header, int bufferSize,
+                       boolean zeroCopy, int compressionLevel, int readAheadBuffers, int maxReadLength,
+                       Runnable onFilled) {
+        this.socketChannel = socketChannel;
+        this.fileChannel = fileChannel;
+        this.header = header;
+        this.readAheadBuffers = zeroCopy || header.hasFlag(TransferHeader.FLAG_COMPRESS) ? 0 : readAheadBuffers;
+        this.maxReadLength = Math.max(bufferSize, maxReadLength);
+        this.onFilled = onFilled;
+
+        this.headerBuffer = ByteBuffer.allocate(64 + TransferHeader.MAX_NAME_LENGTH);
+        header.writeTo(this.headerBuffer);
+        this.headerBuffer.flip();
+
+        boolean compress = header.hasFlag(TransferHeader.FLAG_COMPRESS);
+        this.outputBuffer = zeroCopy || compress || this.readAheadBuffers > 0 ? null : ByteBuffer.allocate(bufferSize);
+        this.deflater = compress ? new Deflater(compressionLevel) : null;
+        this.rawBuffer = compress ? ByteBuffer.allocateDirect(bufferSize) : null;
+        this.chunkBuffer = compress ? ByteBuffer.allocateDirect(TransferHeader.CHUNK_HEADER_LENGTH + bufferSize).limit(0) : null;
+        this.replyBuffer = ByteBuffer.allocate(TransferHeader.OFFSET_REPLY_LENGTH + TransferHeader.VERDICT_LENGTH);
+    }
+
+    public boolean isDone() {
+        return this.state == State.DONE;
+    }
+
+    public long getBytesHeld() {
+        return this.bytesHeld;
+    }
+
+    /**
+     * Returns true when the server found a corrupt block, the range is then resumed from the bytes held.
+     */
+    public boolean isCorrupt() {
+        return this.corrupt;
+    }
+
+    public boolean isCompressed() {
+        return this.deflater != null;
+    }
+
+    public long getBytesOnTheWire() {
+        return this.bytesOnTheWire;
+    }
+
+    public long getStarvedCount() {
+        return this.starvedCount;
+    }
+
+    /**
+     * Returns the reads of the read-ahead thread and the bytes they read, zeros without one.
+     */
+    public long getReads() {
+        return this.readAhead == null ? 0 : this.readAhead.getReads();
+    }
+
+    public long getBytesReadAhead() {
+        return this.readAhead == null ? 0 : this.readAhead.getBytesRead();
+    }
+
+    /**
+     * Returns the selection key interest set of the current state.
+     */
+    public int getInterestOps() {
+        switch (this.state) {
+            case DATA:
+                // a sender waiting for its read-ahead has nothing to write yet
+                if (this.readAhead != null && this.aheadBuffer == null && !this.readAhead.isReady()) {
+                    return 0;
+                }
+                return SelectionKey.OP_WRITE;
+            case HEADER:
+            case TRAILER:
+                return SelectionKey.OP_WRITE;
+            case OFFSET:
+            case VERDICT:
+                return SelectionKey.OP_READ;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Sends as much as the socket channel takes. Returns the number of bytes of the file sent.
+     */
+    public long send() throws IOException {
+        if (this.state == State.HEADER) {
+            this.socketChannel.write(this.headerBuffer);
+            if (this.headerBuffer.hasRemaining()) {
+                return 0;
+            }
+
+            // a resuming sender waits for the offset, the others send the range right away
+            if (this.header.hasFlag(TransferHeader.FLAG_RESUME)) {
+                this.state = State.OFFSET;
+                return 0;
+            }
+            this.offsetUnread = true;
+            this.state = this.header.length == 0 ? State.VERDICT : State.DATA;
+        }
+        if (this.state == State.TRAILER) {
+            this.sendTheTrailer();
+            return 0;
+        }
+        if (this.state != State.DATA) {
+            return 0;
+        }
+
+        long sent = this.deflater != null ? this.sendChunks()
+                : this.readAheadBuffers > 0 ? this.sendAhead() : this.sendData();
+        if (this.bytesSent == this.header.length) {
+            if (this.deflater != null) {
+                this.deflater.end();
+            }
+            this.endTheData();
+        }
+        return sent;
+    }
+
+    /**
+     * Finishes the checksum once the whole range is sent and moves on to the block checksums, if any.
+     */
+    private void endTheData() throws IOException {
+        // the bytes sent by `transferTo()` never went through this sender
+        long unchecked = this.header.length - this.checksum.length();
+        if (unchecked > 0) {
+            this.checksum.update(this.fileChannel, this.header.offset + this.checksum.length(), unchecked);
+        }
+
+        if (!this.header.hasFlag(TransferHeader.FLAG_BLOCK_CHECKSUMS) || this.header.length == 0) {
+            this.state = State.VERDICT;
+            return;
+        }
+        int[] blocks = this.checksum.getBlockChecksums();
+        this.trailerBuffer = ByteBuffer.allocate(4 * blocks.length);
+        this.trailerBuffer.asIntBuffer().put(blocks);
+        this.state = State.TRAILER;
+        this.sendTheTrailer();
+    }
+
+    private void sendTheTrailer() throws IOException {
+        this.socketChannel.write(this.trailerBuffer);
+        if (!this.trailerBuffer.hasRemaining()) {
+            this.state = State.VERDICT;
+        }
+    }
+
+    private long sendData() throws IOException {
+        long position = this.header.offset + this.bytesSent;
+        long remaining = this.header.length - this.bytesSent;
+
+        // let the kernel send the file, the transfer may be partial
+        if (this.outputBuffer == null) {
+            long transferred = this.fileChannel.transferTo(position, remaining, this.socketChannel);
+            this.bytesSent += transferred;
+            return transferred;
+        }
+
+        // fill the output buffer from the file without reading past the end of the range
+        long unread = this.header.length - this.bytesRead;
+        if (unread > 0 && this.outputBuffer.hasRemaining()) {
+            if (this.outputBuffer.remaining() > unread) {
+                this.outputBuffer.limit(this.outputBuffer.position() + (int) unread);
+            }
+            int read = this.fileChannel.read(this.outputBuffer, this.header.offset + this.bytesRead);
+            if (read == -1) {
+                throw new EOFException("The file ended before the range " + this.header);
+            }
+            this.bytesRead += read;
+            this.checksum.update(this.outputBuffer.slice(this.outputBuffer.position() - read, read));
+        }
+
+        // switch the buffer to the read mode
+        this.outputBuffer.flip();
+
+        int written = this.socketChannel.write(this.outputBuffer);
+        this.bytesSent += written;
+
+        // switch the buffer to the write mode
+        this.outputBuffer.compact();
+
+        return written;
+    }
+
+    /**
+     * Writes the buffers filled by the read-ahead thread, started from the first byte the server does not hold.
+     */
+    private long sendAhead() throws IOException {
+        if (this.readAhead == null) {
+            this.readAhead = new ReadAhead(this.fileChannel, this.checksum, this.header.offset + this.bytesSent,
+                    this.header.offset + this.header.length, this.readAheadBuffers,
+                    Math.min(this.maxReadLength, 1 << 16), this.maxReadLength, this.onFilled);
+            this.readAhead.start("read-ahead-" + this.header.offset);
+        }
+
+        long sent = 0;
+        while (this.bytesSent < this.header.length) {
+            if (this.aheadBuffer == null) {
+                this.aheadBuffer = this.readAhead.poll();
+                if (this.aheadBuffer == null) {
+                    this.starvedCount++;
+                    break;
+                }
+            }
+            int written = this.socketChannel.write(this.aheadBuffer);
+            sent += written;
+            this.bytesSent += written;
+            if (this.aheadBuffer.hasRemaining()) {
+                break;
+            }
+            this.readAhead.release(this.aheadBuffer, System.nanoTime());
+            this.aheadBuffer = null;
+        }
+        this.bytesRead = this.bytesSent;
+        return sent;
+    }
+
+    /**
+     * Sends the chunk being sent, encoding the next one first once it is all sent. Returns the number of bytes of the
+     * range in the chunks sent completely.
+     */
+    private long sendChunks() throws IOException {
+        if (!this.chunkBuffer.hasRemaining()) {
+            this.encodeAChunk();
+        }
+
+        this.bytesOnTheWire += this.socketChannel.write(this.chunkBuffer);
+        if (this.chunkBuffer.hasRemaining()) {
+            return 0;
+        }
+        this.bytesSent += this.chunkRawLength;
+        return this.chunkRawLength;
+    }
+
+    /**
+     * Reads the next chunk of the range and deflates it into the chunk buffer, or copies it stored when it does not
+     * shrink.
+     */
+    private void encodeAChunk() throws IOException {
+        // read the raw chunk without reading past the end of the range
+        this.rawBuffer.clear();
+        this.rawBuffer.limit((int) Math.min(this.rawBuffer.capacity(), this.header.length - this.bytesRead));
+        while (this.rawBuffer.hasRemaining()) {
+            int read = this.fileChannel.read(this.rawBuffer, this.header.offset + this.bytesRead + this.rawBuffer.position());
+            if (read == -1) {
+                throw new EOFException("The file ended before the range " + this.header);
+            }
+        }
+        this.rawBuffer.flip();
+        this.checksum.update(this.rawBuffer.duplicate());
+        this.chunkRawLength = this.rawBuffer.remaining();
+        this.bytesRead += this.chunkRawLength;
+
+        this.chunkBuffer.clear();
+        this.chunkBuffer.position(TransferHeader.CHUNK_HEADER_LENGTH);
+        int kind = TransferHeader.CHUNK_STORED;
+        if (this.chunksToSkip > 0) {
+            this.chunksToSkip--;
+        } else {
+            // leave less room than the raw chunk, a chunk that would not shrink cannot finish
+            this.deflater.reset();
+            this.deflater.setInput(this.rawBuffer);
+            this.deflater.finish();
+            this.chunkBuffer.limit(TransferHeader.CHUNK_HEADER_LENGTH + this.chunkRawLength - 1);
+            while (!this.deflater.finished() && this.chunkBuffer.hasRemaining()) {
+                if (this.deflater.deflate(this.chunkBuffer) == 0) {
+                    break;
+                }
+            }
+            if (this.deflater.finished()) {
+                kind = TransferHeader.CHUNK_DEFLATED;
+            } else {
+                this.chunksToSkip = INCOMPRESSIBLE_CHUNKS_SKIPPED;
+                this.rawBuffer.rewind();
+                this.chunkBuffer.limit(this.chunkBuffer.capacity());
+                this.chunkBuffer.position(TransferHeader.CHUNK_HEADER_LENGTH);
+            }
+        }
+        if (kind == TransferHeader.CHUNK_STORED) {
+            this.chunkBuffer.put(this.rawBuffer);
+        }
+
+        // switch the buffer to the read mode and fill in the chunk header
+        this.chunkBuffer.flip();
+        this.chunkBuffer.put(0, (byte) kind);
+        this.chunkBuffer.putInt(1, this.chunkBuffer.remaining() - TransferHeader.CHUNK_HEADER_LENGTH);
+    }
+
+    /**
+     * Reads the replies of the server: the resume offset, then the verdict.
+     */
+    public void receive() throws IOException {
+        if (this.socketChannel.read(this.replyBuffer) == -1) {
+            throw new EOFException("The server closed the connection of " + this.header + " before replying.");
+        }
+
+        if (this.state == State.OFFSET && this.replyBuffer.position() >= TransferHeader.OFFSET_REPLY_LENGTH) {
+            this.replyBuffer.flip();
+            this.bytesHeld = this.replyBuffer.getLong();
+            this.replyBuffer.compact();
+
+            // continue after the bytes the server already holds, they are read once for the checksum
+            this.checksum.update(this.fileChannel, this.header.offset, this.bytesHeld);
+            this.bytesRead = this.bytesHeld;
+            this.bytesSent = this.bytesHeld;
+            this.state = State.DATA;
+            if (this.bytesSent == this.header.length) {
+                this.endTheData();
+            }
+        }
+
+        int verdictLength = TransferHeader.VERDICT_LENGTH + (this.offsetUnread ? TransferHeader.OFFSET_REPLY_LENGTH : 0);
+        if (this.state == State.VERDICT && this.replyBuffer.position() >= verdictLength) {
+            this.replyBuffer.flip();
+            if (this.offsetUnread) {
+                this.replyBuffer.getLong();
+            }
+            int status = this.replyBuffer.get();
+            long held = this.replyBuffer.getLong();
+            int checksum = this.replyBuffer.getInt();
+            if (status == TransferHeader.VERDICT_CORRUPT && held < this.header.length) {
+                this.corrupt = true;
+                this.bytesHeld = held;
+            } else {
+                checkTheVerdict(this.header, status, held, checksum, this.checksum.getValue());
+            }
+            this.state = State.DONE;
+        }
+    }
+
+    /**
+     * Checks the verdict of the server on the range of the header against the CRC32C computed while sending it.
+     */
+    static void checkTheVerdict(TransferHeader header, int status, long held, int checksum, int expected)
+            throws IOException {
+        if (status != TransferHeader.VERDICT_OK) {
+            throw new IOException("The server failed to write " + header + ", it holds " + held + " byte(s).");
+        }
+        if (held != header.length) {
+            throw new IOException("The server holds " + held + " byte(s) of " + header);
+        }
+        if (checksum != expected) {
+            throw new IOException("Checksum mismatch for " + header + ": " + Integer.toHexString(checksum)
+                    + " instead of " + Integer.toHexString(expected));
+        }
+    }
+}
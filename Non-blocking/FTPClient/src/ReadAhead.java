@@ -0,0 +1,187 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reads a range of a file ahead of its {@link RangeSender} on a thread of its own, into a ring of direct buffers: the
+ * thread fills the free buffers in order while the sender drains the filled ones to the socket, so that the disk reads
+ * overlap the network writes. The checksum of the range is updated by this thread as the bytes are read.
+ *
+ * The length of the reads adapts to the slower side. Every read fetches what the socket sends during two read
+ * latencies, both measured as moving averages: on a fast disk the reads stay short and the first bytes go out sooner,
+ * on a slow disk or a fast network they grow up to the capacity of the buffers, where the ring hides the latency of
+ * the disk and the throughput is that of the disk itself.
+ */
+public class ReadAhead implements Runnable {
+
+    // weight of the last measure in the moving averages
+    private static final double SMOOTHING = 0.25;
+
+    // reads are whole pages
+    private static final int PAGE_SIZE = 1 << 12;
+
+    private final FileChannel fileChannel;
+
+    private final RangeChecksum checksum;
+
+    // next byte to read and the end of the range
+    private long position;
+
+    private final long end;
+
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+
+    private final ArrayBlockingQueue<ByteBuffer> filledBuffers;
+
+    // run whenever a buffer is filled, to wake the sender up
+    private final Runnable onFilled;
+
+    private final int minReadLength;
+
+    private final int maxReadLength;
+
+    private volatile int readLength;
+
+    // moving averages of the seconds a read takes, and of the bytes per second the socket drains
+    private double readSeconds;
+
+    private volatile double sendRate;
+
+    // when the sender released its last buffer, 0 before the first one
+    private long lastReleaseNanos;
+
+    private volatile IOException failure;
+
+    private volatile long reads;
+
+    private volatile long bytesRead;
+
+    private Thread thread;
+
+    public ReadAhead(FileChannel fileChannel, RangeChecksum checksum, long position, long end, int bufferCount,
+                     int minReadLength, int maxReadLength, Runnable onFilled) {
+        this.fileChannel = fileChannel;
+        this.checksum = checksum;
+        this.position = position;
+        this.end = end;
+        this.onFilled = onFilled;
+
+        // a short range takes no longer buffers than itself, nor more than it fills, so that many ranges at once do
+        // not reserve a full ring each
+        long length = Math.max(1, end - position);
+        int capacity = (int) Math.min(maxReadLength, length);
+        bufferCount = (int) Math.max(1, Math.min(bufferCount, (length + capacity - 1) / capacity));
+        this.minReadLength = Math.min(minReadLength, capacity);
+        this.maxReadLength = capacity;
+        this.readLength = capacity;
+
+        this.freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        this.filledBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++) {
+            this.freeBuffers.add(ByteBuffer.allocateDirect(capacity));
+        }
+    }
+
+    public void start(String name) {
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void stop() {
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Returns the next filled buffer (in read mode), null when the reads are behind the sender. Throws the error of
+     * the reading thread, if any.
+     */
+    public ByteBuffer poll() throws IOException {
+        ByteBuffer buffer = this.filledBuffers.poll();
+        if (buffer == null && this.failure != null) {
+            throw this.failure;
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns true when a filled buffer or an error waits for the sender.
+     */
+    public boolean isReady() {
+        return !this.filledBuffers.isEmpty() || this.failure != null;
+    }
+
+    /**
+     * Gives a buffer the sender wrote completely back to the ring, and measures the rate the socket drains the range.
+     * Called by the sender only.
+     */
+    public void release(ByteBuffer buffer, long nowNanos) {
+        if (this.lastReleaseNanos != 0) {
+            double rate = buffer.limit() / Math.max(1e-9, (nowNanos - this.lastReleaseNanos) / 1e9);
+            this.sendRate = this.sendRate == 0 ? rate : this.sendRate + SMOOTHING * (rate - this.sendRate);
+        }
+        this.lastReleaseNanos = nowNanos;
+        this.freeBuffers.add(buffer);
+    }
+
+    public long getReads() {
+        return this.reads;
+    }
+
+    public long getBytesRead() {
+        return this.bytesRead;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (this.position < this.end) {
+                ByteBuffer buffer = this.freeBuffers.take();
+                buffer.clear();
+                buffer.limit((int) Math.min(this.readLength, this.end - this.position));
+
+                long startNanos = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    if (this.fileChannel.read(buffer, this.position + buffer.position()) == -1) {
+                        throw new EOFException("The file ended before " + this.end + " byte(s)");
+                    }
+                }
+                this.adapt(System.nanoTime() - startNanos);
+
+                // switch the buffer to the read mode
+                buffer.flip();
+                this.checksum.update(buffer.duplicate());
+                this.position += buffer.remaining();
+                this.reads++;
+                this.bytesRead += buffer.remaining();
+
+                this.filledBuffers.add(buffer);
+                this.onFilled.run();
+            }
+        } catch (IOException e) {
+            this.failure = e;
+            this.onFilled.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sets the length of the next reads to what the socket sends during two read latencies, in whole pages within the
+     * bounds.
+     */
+    private void adapt(long readNanos) {
+        double seconds = readNanos / 1e9;
+        this.readSeconds = this.readSeconds == 0 ? seconds : this.readSeconds + SMOOTHING * (seconds - this.readSeconds);
+        double sendRate = this.sendRate;
+        if (sendRate == 0) {
+            return;
+        }
+        long target = (long) (2 * sendRate * this.readSeconds) / PAGE_SIZE * PAGE_SIZE;
+        this.readLength = (int) Math.max(this.minReadLength, Math.min(this.maxReadLength, target));
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The frames of a session: one connection carrying the ranges of many files, one stream per range, sequentially or
+ * interleaved. A session starts with u8 0, u8 {@link #SESSION_VERSION} in place of a header, then carries frames:
+ *
+ * <pre>
+ * u8 type, u32 stream ID, u32 payload length, payload
+ *
+ * OPEN     client to server, an extended {@link TransferHeader} of the range sent on the stream
+ * DATA     client to server, the next bytes of the range of the stream
+ * VERDICT  server to client, sent once the file of the range was closed: u8 status, i64 bytes held, i32 CRC32C
+ * </pre>
+ *
+ * A stream ends once its range length of data was sent; streams of a session start at the range offset and are not
+ * resumed. This class is shared by the client and the server.
+ */
+public class SessionFrame {
+
+    public static final int SESSION_VERSION = 2;
+
+    public static final int PREAMBLE_LENGTH = 2;
+
+    public static final int HEADER_LENGTH = 1 + 4 + 4;
+
+    public static final int OPEN = 1;
+
+    public static final int DATA = 2;
+
+    public static final int VERDICT = 3;
+
+    /**
+     * Returns true when the buffer in read mode starts with the preamble of a session.
+     */
+    public static boolean startsASession(ByteBuffer buffer) {
+        return buffer.remaining() >= PREAMBLE_LENGTH && buffer.get(buffer.position()) == 0
+                && Byte.toUnsignedInt(buffer.get(buffer.position() + 1)) == SESSION_VERSION;
+    }
+
+    public static void writePreamble(ByteBuffer buffer) {
+        buffer.put((byte) 0);
+        buffer.put((byte) SESSION_VERSION);
+    }
+
+    /**
+     * Writes a frame header into the buffer in write mode, the payload follows.
+     */
+    public static void writeHeader(ByteBuffer buffer, int type, int streamId, int length) {
+        buffer.put((byte) type);
+        buffer.putInt(streamId);
+        buffer.putInt(length);
+    }
+}
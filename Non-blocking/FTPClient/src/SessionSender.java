@@ -0,0 +1,298 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Sends many files over one non-blocking socket channel as the streams of a session (see {@link SessionFrame}).
+ * Up to `maxOpenStreams` files are open at once and their data frames are sent in turn, so a large file does not
+ * hold the small ones back. Each stream is checked against its verdict like a range, with the CRC32C computed on
+ * the data frames as they are filled; a file is closed once it is all sent. With a {@link FileListener} a file failing
+ * its verdict or failing to open is reported to it instead of failing the session, and the session goes on with the
+ * other files.
+ */
+public class SessionSender implements MultiFileSender {
+
+    /**
+     * Told of every file of the session once its verdict is checked, with the error of the check or null.
+     */
+    public interface FileListener {
+        void onVerdict(File file, long bytes, long openNanos, IOException error);
+    }
+
+    private static class Stream {
+        final int id;
+
+        final File file;
+
+        final TransferHeader header;
+
+        final FileChannel fileChannel;
+
+        // when its OPEN frame was queued
+        final long openNanos = System.nanoTime();
+
+        long bytesSent;
+
+        final CRC32C checksum = new CRC32C();
+
+        Stream(int id, File file, TransferHeader header, FileChannel fileChannel) {
+            this.id = id;
+            this.file = file;
+            this.header = header;
+            this.fileChannel = fileChannel;
+        }
+    }
+
+    final SocketChannel socketChannel;
+
+    private final ArrayDeque<File> pendingFiles;
+
+    // streams with data left to send, in turn
+    private final ArrayDeque<Stream> sendingStreams = new ArrayDeque<>();
+
+    // streams sent and waiting for their verdict, by ID
+    private final HashMap<Integer, Stream> unverifiedStreams = new HashMap<>();
+
+    private final int maxOpenStreams;
+
+    // largest payload of a data frame
+    private final int frameLength;
+
+    // frames being sent, in write mode
+    private final ByteBuffer outputBuffer;
+
+    // verdict frames being received, in write mode
+    private final ByteBuffer replyBuffer;
+
+    private int nextStreamId = 1;
+
+    private long filesVerified;
+
+    private long bytesVerified;
+
+    // null to fail the session on the first bad verdict
+    private FileListener listener;
+
+    public SessionSender(SocketChannel socketChannel, ArrayDeque<File> files, int bufferSize, int maxOpenStreams) {
+        this.socketChannel = socketChannel;
+        this.pendingFiles = files;
+        this.maxOpenStreams = maxOpenStreams;
+        this.frameLength = bufferSize;
+
+        this.outputBuffer = ByteBuffer.allocate(SessionFrame.HEADER_LENGTH + Math.max(bufferSize,
+                64 + 3 * TransferHeader.MAX_NAME_LENGTH));
+        SessionFrame.writePreamble(this.outputBuffer);
+        this.replyBuffer = ByteBuffer.allocate(64 * (SessionFrame.HEADER_LENGTH + TransferHeader.VERDICT_LENGTH));
+    }
+
+    @Override
+    public boolean isDone() {
+        return this.pendingFiles.isEmpty() && this.sendingStreams.isEmpty() && this.unverifiedStreams.isEmpty()
+                && this.outputBuffer.position() == 0;
+    }
+
+    public void setListener(FileListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public long getFilesVerified() {
+        return this.filesVerified;
+    }
+
+    @Override
+    public long getBytesVerified() {
+        return this.bytesVerified;
+    }
+
+    private boolean canOpenAStream() {
+        return !this.pendingFiles.isEmpty()
+                && this.sendingStreams.size() + this.unverifiedStreams.size() < this.maxOpenStreams;
+    }
+
+    /**
+     * Returns the selection key interest set: writes while there are frames to send, reads while verdicts are due.
+     */
+    @Override
+    public int getInterestOps() {
+        int ops = 0;
+        if (this.outputBuffer.position() != 0 || !this.sendingStreams.isEmpty() || this.canOpenAStream()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if (!this.unverifiedStreams.isEmpty()) {
+            ops |= SelectionKey.OP_READ;
+        }
+        return ops;
+    }
+
+    /**
+     * Fills the output buffer with frames and sends as much as the socket channel takes. Returns the number of
+     * bytes sent.
+     */
+    @Override
+    public long send() throws IOException {
+        this.fillTheOutputBuffer();
+
+        // switch the buffer to the read mode
+        this.outputBuffer.flip();
+
+        int written = this.socketChannel.write(this.outputBuffer);
+
+        // switch the buffer to the write mode
+        this.outputBuffer.compact();
+
+        return written;
+    }
+
+    private void fillTheOutputBuffer() throws IOException {
+        // open the next files while there is room for their OPEN frames
+        while (this.canOpenAStream()) {
+            File file = this.pendingFiles.peek();
+            long fileSize = file.length();
+            TransferHeader header = new TransferHeader(file.getName(), 0, FTPClient.transferIdOf(file, fileSize),
+                    fileSize, 0, fileSize);
+            int length = header.encodedLength();
+            if (this.outputBuffer.remaining() < SessionFrame.HEADER_LENGTH + length) {
+                break;
+            }
+
+            // a file that cannot be opened fails alone, it leaves the queue only once it is opened or reported
+            FileChannel fileChannel;
+            try {
+                fileChannel = new RandomAccessFile(file, "r").getChannel();
+            } catch (IOException e) {
+                if (this.listener == null) {
+                    throw e;
+                }
+                this.pendingFiles.poll();
+                this.listener.onVerdict(file, fileSize, System.nanoTime(), e);
+                continue;
+            }
+            this.pendingFiles.poll();
+
+            Stream stream = new Stream(this.nextStreamId++, file, header, fileChannel);
+            SessionFrame.writeHeader(this.outputBuffer, SessionFrame.OPEN, stream.id, length);
+            header.writeTo(this.outputBuffer);
+            if (fileSize == 0) {
+                this.closeAFile(stream);
+                this.unverifiedStreams.put(stream.id, stream);
+            } else {
+                this.sendingStreams.add(stream);
+            }
+        }
+
+        // then one data frame per stream in turn
+        while (!this.sendingStreams.isEmpty() && this.outputBuffer.remaining() > SessionFrame.HEADER_LENGTH) {
+            Stream stream = this.sendingStreams.poll();
+            int count = (int) Math.min(Math.min(this.frameLength, this.outputBuffer.remaining() - SessionFrame.HEADER_LENGTH),
+                    stream.header.length - stream.bytesSent);
+
+            SessionFrame.writeHeader(this.outputBuffer, SessionFrame.DATA, stream.id, count);
+            int limit = this.outputBuffer.limit();
+            this.outputBuffer.limit(this.outputBuffer.position() + count);
+            while (this.outputBuffer.hasRemaining()) {
+                int read = stream.fileChannel.read(this.outputBuffer, stream.header.offset + stream.bytesSent);
+                if (read == -1) {
+                    throw new EOFException("The file ended before the range " + stream.header);
+                }
+                stream.bytesSent += read;
+            }
+            this.outputBuffer.limit(limit);
+            stream.checksum.update(this.outputBuffer.slice(this.outputBuffer.position() - count, count));
+
+            if (stream.bytesSent == stream.header.length) {
+                this.closeAFile(stream);
+                this.unverifiedStreams.put(stream.id, stream);
+            } else {
+                this.sendingStreams.add(stream);
+            }
+        }
+    }
+
+    /**
+     * Reads the verdict frames of the server and checks them against the files.
+     */
+    @Override
+    public void receive() throws IOException {
+        if (this.socketChannel.read(this.replyBuffer) == -1) {
+            throw new EOFException("The server closed the session before replying.");
+        }
+
+        // switch the buffer to the read mode
+        this.replyBuffer.flip();
+
+        while (this.replyBuffer.remaining() >= SessionFrame.HEADER_LENGTH + TransferHeader.VERDICT_LENGTH) {
+            int type = Byte.toUnsignedInt(this.replyBuffer.get());
+            int streamId = this.replyBuffer.getInt();
+            int length = this.replyBuffer.getInt();
+            if (type != SessionFrame.VERDICT || length != TransferHeader.VERDICT_LENGTH) {
+                throw new ProtocolException("Unexpected frame of type " + type + " from the server.");
+            }
+            Stream stream = this.unverifiedStreams.remove(streamId);
+            if (stream == null) {
+                throw new ProtocolException("Verdict for the unknown stream " + streamId + ".");
+            }
+
+            try {
+                RangeSender.checkTheVerdict(stream.header, this.replyBuffer.get(), this.replyBuffer.getLong(),
+                        this.replyBuffer.getInt(), (int) stream.checksum.getValue());
+            } catch (IOException e) {
+                if (this.listener == null) {
+                    throw e;
+                }
+                this.listener.onVerdict(stream.file, stream.header.length, stream.openNanos, e);
+                continue;
+            }
+            this.filesVerified++;
+            this.bytesVerified += stream.header.length;
+            if (this.listener != null) {
+                this.listener.onVerdict(stream.file, stream.header.length, stream.openNanos, null);
+            }
+        }
+
+        // switch the buffer to the write mode
+        this.replyBuffer.compact();
+    }
+
+    /**
+     * Closes the files still open, after a failure.
+     */
+    @Override
+    public void close() {
+        for (Stream stream : this.sendingStreams) {
+            this.closeAFile(stream);
+        }
+    }
+
+    /**
+     * Reports the files opened and not verified yet as failed with the error of the session, once it failed.
+     */
+    public void failTheOpenFiles(IOException error) {
+        for (Stream stream : this.sendingStreams) {
+            this.listener.onVerdict(stream.file, stream.header.length, stream.openNanos, error);
+        }
+        for (Stream stream : this.unverifiedStreams.values()) {
+            this.listener.onVerdict(stream.file, stream.header.length, stream.openNanos, error);
+        }
+        this.sendingStreams.clear();
+        this.unverifiedStreams.clear();
+    }
+
+    private void closeAFile(Stream stream) {
+        try {
+            stream.fileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(stream.fileChannel + "Cannot close the file channel: " + e.getMessage());
+        }
+    }
+}
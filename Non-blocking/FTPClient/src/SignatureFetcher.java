@@ -0,0 +1,145 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Fetches the block signatures of the copy of a file the server holds on a non-blocking socket channel: the
+ * {@link SignatureRequest}, then the reply with the size of that copy, its block size and the signature of every block.
+ * The server closes the connection once they are sent.
+ */
+public class SignatureFetcher {
+
+    private enum State { REQUEST, REPLY, SIGNATURES, DONE }
+
+    final SocketChannel socketChannel;
+
+    final SignatureRequest request;
+
+    private final ByteBuffer requestBuffer;
+
+    // the reply header, then the signatures
+    private ByteBuffer replyBuffer = ByteBuffer.allocate(SignatureRequest.REPLY_HEADER_LENGTH);
+
+    private State state = State.REQUEST;
+
+    private boolean found;
+
+    private long fileSize;
+
+    private int blockSize;
+
+    // weak checksum of each block, and the strong ones back to back
+    private int[] weakChecksums;
+
+    private byte[] strongChecksums;
+
+    public SignatureFetcher(SocketChannel socketChannel, SignatureRequest request) {
+        this.socketChannel = socketChannel;
+        this.request = request;
+
+        this.requestBuffer = ByteBuffer.allocate(16 + 3 * TransferHeader.MAX_NAME_LENGTH);
+        request.writeTo(this.requestBuffer);
+        this.requestBuffer.flip();
+    }
+
+    public boolean isDone() {
+        return this.state == State.DONE;
+    }
+
+    /**
+     * Returns false when the server holds no copy of the file, once done.
+     */
+    public boolean isFound() {
+        return this.found;
+    }
+
+    public long getFileSize() {
+        return this.fileSize;
+    }
+
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    public int[] getWeakChecksums() {
+        return this.weakChecksums;
+    }
+
+    public byte[] getStrongChecksums() {
+        return this.strongChecksums;
+    }
+
+    /**
+     * Returns the selection key interest set of the current state.
+     */
+    public int getInterestOps() {
+        switch (this.state) {
+            case REQUEST:
+                return SelectionKey.OP_WRITE;
+            case REPLY:
+            case SIGNATURES:
+                return SelectionKey.OP_READ;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Sends as much of the request as the socket channel takes.
+     */
+    public void send() throws IOException {
+        this.socketChannel.write(this.requestBuffer);
+        if (!this.requestBuffer.hasRemaining()) {
+            this.state = State.REPLY;
+        }
+    }
+
+    /**
+     * Reads the reply header, then the signatures. Returns the number of bytes received.
+     */
+    public int receive() throws IOException {
+        int read = this.socketChannel.read(this.replyBuffer);
+        if (read == -1) {
+            throw new EOFException("The server closed the connection of " + this.request + " before replying.");
+        }
+        if (this.replyBuffer.hasRemaining()) {
+            return read;
+        }
+        this.replyBuffer.flip();
+
+        if (this.state == State.REPLY) {
+            int status = this.replyBuffer.get();
+            this.fileSize = this.replyBuffer.getLong();
+            this.blockSize = this.replyBuffer.getInt();
+            int blockCount = this.replyBuffer.getInt();
+            if (status != SignatureRequest.STATUS_OK) {
+                this.state = State.DONE;
+                return read;
+            }
+            if (this.blockSize < SignatureRequest.MIN_BLOCK_SIZE || this.blockSize > SignatureRequest.MAX_BLOCK_SIZE
+                    || this.fileSize < 0 || blockCount != (this.fileSize + this.blockSize - 1) / this.blockSize
+                    || blockCount > Integer.MAX_VALUE / SignatureRequest.SIGNATURE_LENGTH) {
+                throw new IOException("Invalid signatures of " + this.fileSize + " byte(s) in " + blockCount
+                        + " block(s) of " + this.blockSize + " for " + this.request);
+            }
+            this.weakChecksums = new int[blockCount];
+            this.strongChecksums = new byte[blockCount * SignatureRequest.STRONG_LENGTH];
+            this.replyBuffer = ByteBuffer.allocate(blockCount * SignatureRequest.SIGNATURE_LENGTH);
+            this.state = State.SIGNATURES;
+            if (blockCount != 0) {
+                return read;
+            }
+            this.replyBuffer.flip();
+        }
+
+        for (int i = 0; i < this.weakChecksums.length; i++) {
+            this.weakChecksums[i] = this.replyBuffer.getInt();
+            this.replyBuffer.get(this.strongChecksums, i * SignatureRequest.STRONG_LENGTH, SignatureRequest.STRONG_LENGTH);
+        }
+        this.found = true;
+        this.state = State.DONE;
+        return read;
+    }
+}
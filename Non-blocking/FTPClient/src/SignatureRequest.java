@@ -0,0 +1,157 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A request for the block signatures of a file of the server, sent by the client in place of a
+ * {@link TransferHeader} before it sends the file as a delta ({@link TransferHeader#FLAG_DELTA}):
+ *
+ * <pre>
+ * request:  u8 0, u8 {@link #SIGNATURE_VERSION}, u16 name length, UTF-8 name, u32 block size (0 for the default)
+ * reply:    u8 status, i64 file size, u32 block size, u32 block count, then for each block:
+ *           u32 weak checksum, the first {@link #STRONG_LENGTH} bytes of its SHA-256
+ * </pre>
+ *
+ * The blocks split the file from its start, the last one may be shorter. The weak checksum is the rolling checksum of
+ * rsync, so that the client can slide it over its file one byte at a time and only compute the strong one of the
+ * windows whose weak checksum matches a block. The server closes the connection once the signatures are sent. This
+ * class is shared by the client and the server.
+ */
+public class SignatureRequest {
+
+    public static final int SIGNATURE_VERSION = 5;
+
+    public static final int STATUS_OK = 0;
+
+    public static final int STATUS_NOT_FOUND = 1;
+
+    public static final int MIN_BLOCK_SIZE = 1 << 11;
+
+    public static final int MAX_BLOCK_SIZE = 1 << 20;
+
+    // blocks of a file at most, larger blocks are used beyond
+    public static final int MAX_BLOCKS = 1 << 20;
+
+    public static final int STRONG_LENGTH = 16;
+
+    public static final int SIGNATURE_LENGTH = 4 + STRONG_LENGTH;
+
+    public static final int REPLY_HEADER_LENGTH = 1 + 8 + 4 + 4;
+
+    // size of the request without the name
+    private static final int FIXED_LENGTH = 1 + 1 + 2 + 4;
+
+    public final String fileName;
+
+    // 0 to let the server choose
+    public final int blockSize;
+
+    public SignatureRequest(String fileName, int blockSize) {
+        this.fileName = fileName;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Returns the block size of a file, the square root of its size as rsync does, within the bounds and so that the
+     * file has MAX_BLOCKS blocks at most. A requested size is only kept within the same bounds.
+     */
+    public static int blockSizeOf(long fileSize, int requested) {
+        long blockSize = requested > 0 ? requested : Long.highestOneBit(Math.max(1, (long) Math.sqrt(fileSize)));
+        blockSize = Math.max(blockSize, (fileSize + MAX_BLOCKS - 1) / MAX_BLOCKS);
+        return (int) Math.min(MAX_BLOCK_SIZE, Math.max(MIN_BLOCK_SIZE, blockSize));
+    }
+
+    /**
+     * Returns true when the buffer in read mode starts with a signature request.
+     */
+    public static boolean startsASignatureRequest(ByteBuffer buffer) {
+        return buffer.remaining() >= 2 && buffer.get(buffer.position()) == 0
+                && Byte.toUnsignedInt(buffer.get(buffer.position() + 1)) == SIGNATURE_VERSION;
+    }
+
+    /**
+     * Writes the request into the buffer in write mode.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        byte[] name = this.fileName.getBytes(StandardCharsets.UTF_8);
+        buffer.put((byte) 0);
+        buffer.put((byte) SIGNATURE_VERSION);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        buffer.putInt(this.blockSize);
+    }
+
+    /**
+     * Parses a request from the buffer in read mode. Returns null and leaves the position untouched when the buffer
+     * does not hold the whole request yet.
+     */
+    public static SignatureRequest parse(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < FIXED_LENGTH) {
+            return null;
+        }
+        int start = buffer.position();
+        int nameLength = Short.toUnsignedInt(buffer.getShort(start + 2));
+        if (nameLength == 0 || nameLength > TransferHeader.MAX_NAME_LENGTH) {
+            throw new ProtocolException("Invalid file name length " + nameLength);
+        }
+        if (buffer.remaining() < FIXED_LENGTH + nameLength) {
+            return null;
+        }
+
+        buffer.position(start + 4);
+        byte[] name = new byte[nameLength];
+        buffer.get(name);
+        int blockSize = buffer.getInt();
+        if (blockSize < 0) {
+            throw new ProtocolException("Invalid block size " + blockSize);
+        }
+        return new SignatureRequest(new String(name, StandardCharsets.UTF_8), blockSize);
+    }
+
+    /**
+     * Returns the weak checksum of `length` bytes of the array: the sum of the bytes in the low 16 bits and the sum
+     * of the bytes weighted by their distance to the end in the high 16 bits.
+     */
+    public static int weakChecksum(byte[] bytes, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += bytes[offset + i] & 0xFF;
+            b += (length - i) * (bytes[offset + i] & 0xFF);
+        }
+        return (b << 16) | (a & 0xFFFF);
+    }
+
+    /**
+     * Slides the weak checksum of a window of `length` bytes by one byte, `out` leaving it and `in` entering it.
+     */
+    public static int roll(int checksum, int length, byte out, byte in) {
+        int a = (checksum - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        int b = ((checksum >>> 16) - length * (out & 0xFF) + a) & 0xFFFF;
+        return (b << 16) | a;
+    }
+
+    /**
+     * Writes the strong checksum of `length` bytes of the array into `strong` at `strongOffset`.
+     */
+    public static void strongChecksum(MessageDigest sha256, byte[] bytes, int offset, int length, byte[] strong,
+                                      int strongOffset) {
+        sha256.update(bytes, offset, length);
+        System.arraycopy(sha256.digest(), 0, strong, strongOffset, STRONG_LENGTH);
+    }
+
+    public static MessageDigest newStrongDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SIGNATURES " + this.fileName;
+    }
+}
@@ -0,0 +1,82 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Checks the loading of a manifest and its summary. Run it from the project directory with
+ *
+ * <pre>
+ * javac -d out src/*.java test/*.java && java -cp out ManifestTest
+ * </pre>
+ */
+public class ManifestTest {
+
+    public static void main(String args[]) throws IOException {
+        testTheFilesNamedLikeAnEarlierOneFail();
+        testTheSummaryIsJsonInAnyLocale();
+        System.out.println("All the manifest tests passed.");
+    }
+
+    /**
+     * Two files with the same name in different directories would be stored as one file by the server, so only the
+     * first one is sent and the second one fails.
+     */
+    private static void testTheFilesNamedLikeAnEarlierOneFail() throws IOException {
+        Path root = Files.createTempDirectory("manifest");
+        Path first = Files.createDirectory(root.resolve("da")).resolve("same.dat");
+        Path second = Files.createDirectory(root.resolve("db")).resolve("same.dat");
+        Path other = root.resolve("other.dat");
+        Files.write(first, new byte[5000]);
+        Files.write(second, new byte[7000]);
+        Files.write(other, new byte[10]);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ManifestSummary summary = new ManifestSummary(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+        ArrayDeque<File> pendingFiles = FTPClient.queueTheManifest(Arrays.asList(first.toString(), "# comment", "",
+                second.toString(), other.toString()), summary);
+
+        check(pendingFiles.size() == 2, "2 files queued, got " + pendingFiles);
+        check(pendingFiles.poll().equals(first.toFile()), "the first same.dat queued");
+        check(pendingFiles.poll().equals(other.toFile()), "other.dat queued");
+        check(summary.getFailed() == 1, "1 file failed, got " + summary.getFailed());
+        String output = bytes.toString(StandardCharsets.UTF_8);
+        check(output.contains("\"file\":" + ManifestSummary.quote(second.toString()) + ",\"status\":\"failed\""),
+                "the second same.dat failed, got " + output);
+
+        for (Path path : Arrays.asList(first, second, other, first.getParent(), second.getParent(), root)) {
+            Files.delete(path);
+        }
+    }
+
+    /**
+     * The numbers of the summary keep a decimal point whatever the locale.
+     */
+    private static void testTheSummaryIsJsonInAnyLocale() {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(Locale.GERMANY);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ManifestSummary summary = new ManifestSummary(new PrintStream(bytes, true, StandardCharsets.UTF_8));
+            summary.verified("a", 1500, 10_930_000);
+            summary.finish(10_930_000, 1);
+            String output = bytes.toString(StandardCharsets.UTF_8);
+            check(output.contains("\"seconds\":0.010930,") && !output.contains("0,010930"),
+                    "decimal points in the summary, got " + output);
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Checks the session sender against a socket channel nobody replies on. Run it from the project directory with
+ *
+ * <pre>
+ * javac -d out src/*.java test/*.java && java -cp out SessionSenderTest
+ * </pre>
+ */
+public class SessionSenderTest {
+
+    public static void main(String args[]) throws IOException {
+        testAFileThatCannotBeOpenedFailsAlone();
+        System.out.println("All the session sender tests passed.");
+    }
+
+    /**
+     * A file removed after the manifest was loaded is reported as failed, and the session goes on with the next one.
+     */
+    private static void testAFileThatCannotBeOpenedFailsAlone() throws IOException {
+        Path root = Files.createTempDirectory("session");
+        File removed = root.resolve("removed.dat").toFile();
+        Path sent = root.resolve("sent.dat");
+        Files.write(sent, new byte[1000]);
+
+        try (ServerSocketChannel serverSocketChannel = ServerSocketChannel.open()) {
+            serverSocketChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel socketChannel = SocketChannel.open(serverSocketChannel.getLocalAddress());
+                 SocketChannel peer = serverSocketChannel.accept()) {
+                ArrayDeque<File> pendingFiles = new ArrayDeque<>(Arrays.asList(removed, sent.toFile()));
+                SessionSender sender = new SessionSender(socketChannel, pendingFiles, 1 << 16, 8);
+                ArrayList<String> verdicts = new ArrayList<>();
+                sender.setListener((file, bytes, openNanos, error) -> verdicts.add(file.getName() + " "
+                        + (error == null ? "ok" : "failed")));
+
+                long sentBytes = sender.send();
+
+                check(verdicts.equals(Arrays.asList("removed.dat failed")), "removed.dat failed, got " + verdicts);
+                check(pendingFiles.isEmpty(), "both files left the queue, got " + pendingFiles);
+                check(!sender.isDone(), "sent.dat waits for its verdict");
+                check(sentBytes > 1000, "the frames of sent.dat were sent, got " + sentBytes + " byte(s)");
+                check(peer.read(ByteBuffer.allocate(1 << 16)) > 0, "the peer received the frames");
+                sender.close();
+            }
+        }
+
+        Files.delete(sent);
+        Files.delete(root);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.nio.channels.Selector;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The bounds on the connections, shared by the acceptor and the selector workers. At most `maxConnections` are open
+ * at once: past that the acceptor stops accepting, leaving the next clients in the backlog of the listening socket,
+ * and resumes when a worker closes a connection. Each worker watches its connections on its {@link TimerWheel}, every
+ * `checkIntervalNanos`, and closes those that:
+ *
+ * <ul>
+ *     <li>did not send their header, session preamble or download request within `headerTimeoutNanos`;</li>
+ *     <li>made no progress for `idleTimeoutNanos` while the worker was waiting for them to send or to read;</li>
+ *     <li>moved fewer than `minThroughput` bytes per second over a window of `throughputWindowNanos` during which the
+ *     worker was waiting for them all along.</li>
+ * </ul>
+ *
+ * The time a connection spends paused by the server itself, by a full write queue, the bandwidth limits or a
+ * missing file handle, never counts against it. So the memory and the file descriptors held by the connections stay
+ * bounded by `maxConnections`, and a client holding them without using them loses them within a bounded time.
+ */
+public class AdmissionControl {
+
+    final int maxConnections;
+
+    // 0 disables the corresponding check
+    final long headerTimeoutNanos;
+
+    final long idleTimeoutNanos;
+
+    final long minThroughput;
+
+    final long throughputWindowNanos;
+
+    final long checkIntervalNanos;
+
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    // the selector of the acceptor, woken up when a connection closes while the accepts are paused
+    private final Selector acceptSelector;
+
+    private volatile boolean acceptPaused;
+
+    private final LongAdder acceptPauses = new LongAdder();
+
+    private final LongAdder headerTimeouts = new LongAdder();
+
+    private final LongAdder idleTimeouts = new LongAdder();
+
+    private final LongAdder slowConnections = new LongAdder();
+
+    public AdmissionControl(Selector acceptSelector, int maxConnections, long headerTimeoutMillis,
+                            long idleTimeoutMillis, long minThroughput, long throughputWindowMillis,
+                            long checkIntervalMillis) {
+        this.acceptSelector = acceptSelector;
+        this.maxConnections = maxConnections;
+        this.headerTimeoutNanos = Math.max(0, headerTimeoutMillis) * 1_000_000;
+        this.idleTimeoutNanos = Math.max(0, idleTimeoutMillis) * 1_000_000;
+        this.minThroughput = Math.max(0, minThroughput);
+        this.throughputWindowNanos = Math.max(1, throughputWindowMillis) * 1_000_000;
+        this.checkIntervalNanos = Math.max(1, checkIntervalMillis) * 1_000_000;
+    }
+
+    /**
+     * Returns true when one more connection may be accepted. Otherwise the accepts are marked as paused, and the
+     * acceptor must stop accepting until {@link #isAcceptPaused()} turns false; called by the acceptor only.
+     */
+    public boolean admit() {
+        if (this.openConnections.get() < this.maxConnections) {
+            this.openConnections.incrementAndGet();
+            return true;
+        }
+        this.acceptPaused = true;
+        this.acceptPauses.increment();
+
+        // a connection may have closed before the pause was visible to its worker
+        if (this.openConnections.get() < this.maxConnections) {
+            this.acceptPaused = false;
+        }
+        return false;
+    }
+
+    public boolean isAcceptPaused() {
+        return this.acceptPaused;
+    }
+
+    /**
+     * Accounts for a closed connection and wakes up the acceptor if it waits for one. Safe to call from any thread.
+     */
+    public void release() {
+        if (this.openConnections.decrementAndGet() < this.maxConnections && this.acceptPaused) {
+            this.acceptPaused = false;
+            this.acceptSelector.wakeup();
+        }
+    }
+
+    void headerTimedOut() {
+        this.headerTimeouts.increment();
+    }
+
+    void idleTimedOut() {
+        this.idleTimeouts.increment();
+    }
+
+    void tooSlow() {
+        this.slowConnections.increment();
+    }
+
+    @Override
+    public String toString() {
+        return this.openConnections.get() + " connection(s) open of " + this.maxConnections + ", accepts paused "
+                + this.acceptPauses.sum() + " time(s), closed " + this.headerTimeouts.sum() + " without a header, "
+                + this.idleTimeouts.sum() + " idle, " + this.slowConnections.sum() + " too slow";
+    }
+}
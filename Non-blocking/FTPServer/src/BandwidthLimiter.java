@@ -0,0 +1,311 @@
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The limits on the received bytes, shared by all selector workers: a rate for the whole server, for each client
+ * address and for each connection, in bytes per second, 0 for no limit. Each limit is a {@link TokenBucket}; before
+ * a read the worker asks for the bytes every bucket of the connection can spare, and when one of them is empty it
+ * stops reading the socket and re-arms it on its {@link TimerWheel} once the bucket has refilled.
+ *
+ * Connections share the limits of the server and of their client address by weight, the weight of their client
+ * address: a connection of weight `w` among connections of total weight `W` is entitled to `w / W` of each shared
+ * rate, enforced by a bucket of its own whenever the shared bucket runs low. While the shared bucket has tokens to
+ * spare, the connections read beyond their share, so a share left unused by a slow connection is not lost. A read
+ * takes `fairQuantum` bytes at most, times the weight, so that the shares interleave finely. The limits and the
+ * weights can be changed at runtime through JMX; a new weight applies to the connections opened afterwards.
+ */
+public class BandwidthLimiter implements BandwidthLimiterMBean {
+
+    /**
+     * The bucket and the connections of one client address.
+     */
+    static class Client {
+
+        final InetAddress address;
+
+        final TokenBucket bucket = new TokenBucket();
+
+        // connections of the address, the client is forgotten when the last one closes
+        int connections;
+
+        // weights of the connections of the address sharing its bucket
+        final AtomicLong activeWeight = new AtomicLong();
+
+        Client(InetAddress address) {
+            this.address = address;
+        }
+    }
+
+    // bytes a throttled connection waits for before it reads again
+    private static final long MIN_GRANT = 1 << 14;
+
+    private volatile long globalRate;
+
+    private volatile long clientRate;
+
+    private volatile long connectionRate;
+
+    private volatile int fairQuantum;
+
+    private final TokenBucket globalBucket = new TokenBucket();
+
+    // weights of the connections sharing the bucket of the server
+    private final AtomicLong activeWeight = new AtomicLong();
+
+    private final ConcurrentHashMap<InetAddress, Client> clients = new ConcurrentHashMap<>();
+
+    // weights by client address, 1 for the others
+    private final ConcurrentHashMap<String, Integer> weights = new ConcurrentHashMap<>();
+
+    private final LongAdder throttleCount = new LongAdder();
+
+    public BandwidthLimiter(long globalRate, long clientRate, long connectionRate, int fairQuantum, String weights) {
+        this.globalRate = Math.max(0, globalRate);
+        this.clientRate = Math.max(0, clientRate);
+        this.connectionRate = Math.max(0, connectionRate);
+        this.fairQuantum = Math.max(1, fairQuantum);
+
+        // `address=weight` pairs separated by commas
+        for (String pair : weights.split(",")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                try {
+                    this.setClientWeight(pair.substring(0, separator).trim(),
+                            Integer.parseInt(pair.substring(separator + 1).trim()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid client weight " + pair + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Registers a connection of the address and returns its client.
+     */
+    Client clientOf(InetAddress address) {
+        return this.clients.compute(address, (key, client) -> {
+            if (client == null) {
+                client = new Client(address);
+            }
+            client.connections++;
+            return client;
+        });
+    }
+
+    /**
+     * Unregisters a closed connection, forgetting its client with its last connection.
+     */
+    void release(Connection connection) {
+        if (connection.weight != 0) {
+            this.activeWeight.addAndGet(-connection.weight);
+            connection.client.activeWeight.addAndGet(-connection.weight);
+            connection.weight = 0;
+        }
+        if (connection.client != null) {
+            this.clients.computeIfPresent(connection.client.address,
+                    (key, current) -> --current.connections == 0 ? null : current);
+        }
+    }
+
+    /**
+     * Returns the rate the connection is entitled to by its weight, `Long.MAX_VALUE` when it shares no limit. The
+     * connection joins the sharing on its first read under a shared limit.
+     */
+    private long shareOf(Connection connection, long globalRate, long clientRate) {
+        if ((globalRate == 0 && clientRate == 0) || connection.client == null) {
+            return Long.MAX_VALUE;
+        }
+        if (connection.weight == 0) {
+            connection.weight = this.weightOf(connection);
+            this.activeWeight.addAndGet(connection.weight);
+            connection.client.activeWeight.addAndGet(connection.weight);
+        }
+        long share = Long.MAX_VALUE;
+        if (globalRate != 0) {
+            share = globalRate * connection.weight / Math.max(connection.weight, this.activeWeight.get());
+        }
+        if (clientRate != 0) {
+            share = Math.min(share, clientRate * connection.weight
+                    / Math.max(connection.weight, connection.client.activeWeight.get()));
+        }
+        return Math.max(1, share);
+    }
+
+    /**
+     * Returns true while a shared bucket of the connection runs low, its share is then enforced.
+     */
+    private boolean isContended(Connection connection, long globalRate, long clientRate, long nowNanos) {
+        return (globalRate != 0 && this.globalBucket.isLow(globalRate, nowNanos))
+                || (clientRate != 0 && connection.client.bucket.isLow(clientRate, nowNanos));
+    }
+
+    /**
+     * Returns the bytes the connection may read now, 0 when one of its buckets is empty, or `Integer.MAX_VALUE` when
+     * nothing limits it.
+     */
+    int allowance(Connection connection, long nowNanos) {
+        long globalRate = this.globalRate;
+        long clientRate = this.clientRate;
+        long connectionRate = this.connectionRate;
+        if (globalRate == 0 && clientRate == 0 && connectionRate == 0) {
+            return Integer.MAX_VALUE;
+        }
+
+        long allowance = Integer.MAX_VALUE;
+        if (globalRate != 0) {
+            allowance = Math.min(allowance, this.globalBucket.available(globalRate, nowNanos));
+        }
+        if (clientRate != 0 && connection.client != null) {
+            allowance = Math.min(allowance, connection.client.bucket.available(clientRate, nowNanos));
+        }
+        if (connectionRate != 0) {
+            allowance = Math.min(allowance, connection.bucket.available(connectionRate, nowNanos));
+        }
+
+        // share the buckets of the server and of the address by weight
+        long quantum = Integer.MAX_VALUE;
+        long share = this.shareOf(connection, globalRate, clientRate);
+        if (share != Long.MAX_VALUE) {
+            quantum = (long) this.fairQuantum * connection.weight;
+            if (this.isContended(connection, globalRate, clientRate, nowNanos)) {
+                allowance = Math.min(allowance, connection.shareBucket.available(share, nowNanos));
+            }
+        }
+
+        // wait for a worthwhile read rather than reading a few bytes at a time
+        if (allowance < Math.min(MIN_GRANT, quantum)) {
+            return 0;
+        }
+        return (int) Math.min(allowance, quantum);
+    }
+
+    /**
+     * Pays for the bytes the connection read.
+     */
+    void consume(Connection connection, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        if (this.globalRate != 0) {
+            this.globalBucket.consume(bytes);
+        }
+        if (this.clientRate != 0 && connection.client != null) {
+            connection.client.bucket.consume(bytes);
+        }
+        if (this.connectionRate != 0) {
+            connection.bucket.consume(bytes);
+        }
+        if (connection.weight != 0) {
+            // reads beyond the share are not paid back later
+            connection.shareBucket.consumeUpTo(bytes);
+        }
+    }
+
+    /**
+     * Returns how long a throttled connection waits until every bucket of the connection can spare a few bytes.
+     */
+    long nanosUntilAllowance(Connection connection, long nowNanos) {
+        this.throttleCount.increment();
+        long nanos = 0;
+        long globalRate = this.globalRate;
+        long clientRate = this.clientRate;
+        long connectionRate = this.connectionRate;
+        if (globalRate != 0) {
+            nanos = Math.max(nanos, this.globalBucket.nanosUntil(MIN_GRANT, globalRate, nowNanos));
+        }
+        if (clientRate != 0 && connection.client != null) {
+            nanos = Math.max(nanos, connection.client.bucket.nanosUntil(MIN_GRANT, clientRate, nowNanos));
+        }
+        if (connectionRate != 0) {
+            nanos = Math.max(nanos, connection.bucket.nanosUntil(MIN_GRANT, connectionRate, nowNanos));
+        }
+        long share = this.shareOf(connection, globalRate, clientRate);
+        if (share != Long.MAX_VALUE && this.isContended(connection, globalRate, clientRate, nowNanos)) {
+            nanos = Math.max(nanos, connection.shareBucket.nanosUntil(MIN_GRANT, share, nowNanos));
+        }
+        return nanos;
+    }
+
+    private int weightOf(Connection connection) {
+        if (connection.client == null || this.weights.isEmpty()) {
+            return 1;
+        }
+        return this.weights.getOrDefault(connection.client.address.getHostAddress(), 1);
+    }
+
+    @Override
+    public long getGlobalRate() {
+        return this.globalRate;
+    }
+
+    @Override
+    public void setGlobalRate(long bytesPerSecond) {
+        this.globalRate = Math.max(0, bytesPerSecond);
+    }
+
+    @Override
+    public long getClientRate() {
+        return this.clientRate;
+    }
+
+    @Override
+    public void setClientRate(long bytesPerSecond) {
+        this.clientRate = Math.max(0, bytesPerSecond);
+    }
+
+    @Override
+    public long getConnectionRate() {
+        return this.connectionRate;
+    }
+
+    @Override
+    public void setConnectionRate(long bytesPerSecond) {
+        this.connectionRate = Math.max(0, bytesPerSecond);
+    }
+
+    @Override
+    public int getFairQuantum() {
+        return this.fairQuantum;
+    }
+
+    @Override
+    public void setFairQuantum(int bytes) {
+        this.fairQuantum = Math.max(1, bytes);
+    }
+
+    @Override
+    public Map<String, Integer> getClientWeights() {
+        return Map.copyOf(this.weights);
+    }
+
+    @Override
+    public void setClientWeight(String address, int weight) {
+        if (weight <= 1) {
+            this.weights.remove(address);
+        } else {
+            this.weights.put(address, weight);
+        }
+    }
+
+    @Override
+    public int getActiveClients() {
+        return this.clients.size();
+    }
+
+    @Override
+    public long getThrottleCount() {
+        return this.throttleCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        if (this.globalRate == 0 && this.clientRate == 0 && this.connectionRate == 0) {
+            return "bandwidth unlimited";
+        }
+        return "bandwidth limits B/s global " + this.globalRate + ", per client " + this.clientRate
+                + ", per connection " + this.connectionRate + ", " + this.getThrottleCount() + " throttle(s)";
+    }
+}
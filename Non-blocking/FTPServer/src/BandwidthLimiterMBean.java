@@ -0,0 +1,31 @@
+import java.util.Map;
+
+/**
+ * The JMX view of {@link BandwidthLimiter}, rates in bytes per second, 0 for no limit.
+ */
+public interface BandwidthLimiterMBean {
+
+    long getGlobalRate();
+
+    void setGlobalRate(long bytesPerSecond);
+
+    long getClientRate();
+
+    void setClientRate(long bytesPerSecond);
+
+    long getConnectionRate();
+
+    void setConnectionRate(long bytesPerSecond);
+
+    int getFairQuantum();
+
+    void setFairQuantum(int bytes);
+
+    Map<String, Integer> getClientWeights();
+
+    void setClientWeight(String address, int weight);
+
+    int getActiveClients();
+
+    long getThrottleCount();
+}
@@ -0,0 +1,132 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of direct buffers ("slabs") for the connections. Each selector worker has its own free list;
+ * a worker that runs dry steals from the others before allocating. Once the off-heap cap is reached the pool
+ * hands out heap buffers, which are dropped on release, so the off-heap memory never exceeds the cap. The staging
+ * buffers of the disk writers are allocated within the same cap.
+ */
+public class BufferPool {
+
+    private final int slabSize;
+
+    private final long maxOffHeapBytes;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] freeLists;
+
+    // direct memory allocated by the pool so far
+    private final AtomicLong offHeapBytes = new AtomicLong();
+
+    private final AtomicLong slabsInUse = new AtomicLong();
+
+    private final AtomicLong maxSlabsInUse = new AtomicLong();
+
+    private final LongAdder borrows = new LongAdder();
+
+    // borrows that could not be served from a free list
+    private final LongAdder misses = new LongAdder();
+
+    // misses served with a heap buffer because the off-heap cap was reached
+    private final LongAdder heapFallbacks = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(int slabSize, long maxOffHeapBytes, int freeListCount) {
+        this.slabSize = slabSize;
+        this.maxOffHeapBytes = maxOffHeapBytes;
+        this.freeLists = new ConcurrentLinkedQueue[freeListCount];
+        for (int i = 0; i < freeListCount; i++) {
+            this.freeLists[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    public int getSlabSize() {
+        return this.slabSize;
+    }
+
+    /**
+     * Returns an empty buffer in write mode, preferably from the free list of the given worker.
+     */
+    public ByteBuffer borrow(int worker) {
+        this.borrows.increment();
+
+        // look in the free list of the worker first, then in the others
+        ByteBuffer buffer = this.freeLists[worker].poll();
+        for (int i = 1; buffer == null && i < this.freeLists.length; i++) {
+            buffer = this.freeLists[(worker + i) % this.freeLists.length].poll();
+        }
+
+        if (buffer == null) {
+            this.misses.increment();
+            buffer = this.allocate();
+        }
+
+        if (buffer.isDirect()) {
+            this.maxSlabsInUse.accumulateAndGet(this.slabsInUse.incrementAndGet(), Math::max);
+        }
+        return buffer;
+    }
+
+    /**
+     * Gives the buffer back to the free list of the given worker. Safe to call from any thread.
+     */
+    public void release(int worker, ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return;
+        }
+        this.slabsInUse.decrementAndGet();
+        buffer.clear();
+        this.freeLists[worker].add(buffer);
+    }
+
+    /**
+     * Allocates a direct buffer of `size` bytes that is not a slab, e.g. a staging buffer, against the off-heap cap.
+     * Returns null once the cap is reached. The buffer is kept by its owner for good.
+     */
+    public ByteBuffer allocateDirect(int size) {
+        if (this.offHeapBytes.addAndGet(size) <= this.maxOffHeapBytes) {
+            return ByteBuffer.allocateDirect(size);
+        }
+        this.offHeapBytes.addAndGet(-size);
+        return null;
+    }
+
+    private ByteBuffer allocate() {
+        // reserve the memory before allocating so that concurrent workers cannot exceed the cap
+        if (this.offHeapBytes.addAndGet(this.slabSize) <= this.maxOffHeapBytes) {
+            return ByteBuffer.allocateDirect(this.slabSize);
+        }
+        this.offHeapBytes.addAndGet(-this.slabSize);
+        this.heapFallbacks.increment();
+        return ByteBuffer.allocate(this.slabSize);
+    }
+
+    public long getBorrows() {
+        return this.borrows.sum();
+    }
+
+    public long getMisses() {
+        return this.misses.sum();
+    }
+
+    public long getHeapFallbacks() {
+        return this.heapFallbacks.sum();
+    }
+
+    public long getOffHeapBytes() {
+        return this.offHeapBytes.get();
+    }
+
+    public long getHighWaterBytes() {
+        return this.maxSlabsInUse.get() * this.slabSize;
+    }
+
+    @Override
+    public String toString() {
+        return "buffer pool: " + this.getBorrows() + " borrow(s), " + this.getMisses() + " miss(es), "
+                + this.getHeapFallbacks() + " heap fallback(s), " + this.getOffHeapBytes() + " off-heap byte(s), high-water "
+                + this.getHighWaterBytes() + " byte(s)";
+    }
+}
@@ -0,0 +1,346 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The content-addressed store of the chunks of the deduplicated uploads (see {@link ChunkManifest}), shared by all
+ * selector workers and disk writers. Every chunk is kept once, appended to a pack file, and indexed by its SHA-256:
+ * the index is held in memory and appended to an index file, from which it is reloaded at start-up.
+ *
+ * The missing chunks of an upload go through its disk writer like the data of a range, into a region of the pack
+ * reserved for them. Once they are written, and synced as the durability policy requires, {@link #assemble(Connection)}
+ * checks every new chunk against its digest, indexes it and rebuilds the file from the pack into its part file, on the
+ * thread closing the file. A chunk is only indexed after its bytes, so a crash leaves at worst unused bytes in the
+ * pack, those past the last indexed chunk are cut at start-up. The region of an upload that fails before any of its
+ * chunks is indexed is released: it is reused by the next uploads, or cut from the pack when it ends it. Chunks are
+ * never removed.
+ */
+public class ChunkStore {
+
+    /**
+     * Where a chunk is in the pack.
+     */
+    static class Location {
+
+        final long offset;
+
+        final int length;
+
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // digest, i64 offset in the pack, i32 length
+    private static final int INDEX_ENTRY_LENGTH = ChunkManifest.DIGEST_LENGTH + 8 + 4;
+
+    // one chunk buffer per thread rebuilding files
+    private static final ThreadLocal<ByteBuffer> chunkBuffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(ChunkManifest.MAX_CHUNK_SIZE));
+
+    private final File packFile;
+
+    private final FileChannel pack;
+
+    private final FileChannel index;
+
+    // sync the rebuilt files and the index before the verdict, unless the durability policy is `none`
+    private final boolean sync;
+
+    private final ConcurrentHashMap<ByteBuffer, Location> chunks = new ConcurrentHashMap<>();
+
+    // end of the pack, the regions reserved by the uploads included, and the regions released before it by their
+    // offset; guarded by the store
+    private long packEnd;
+
+    private final TreeMap<Long, Long> freeRegions = new TreeMap<>();
+
+    private final LongAdder bytesStored = new LongAdder();
+
+    private final LongAdder chunksReused = new LongAdder();
+
+    private final LongAdder bytesReused = new LongAdder();
+
+    private final LongAdder corruptChunks = new LongAdder();
+
+    public ChunkStore(File directory, boolean sync) throws IOException {
+        this.sync = sync;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the directory " + directory);
+        }
+        this.packFile = new File(directory, "chunks.pack");
+        this.pack = FileChannel.open(this.packFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.index = FileChannel.open(new File(directory, "chunks.idx").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.packEnd = this.pack.size();
+        this.loadTheIndex();
+    }
+
+    /**
+     * Reloads the index, dropping a last entry cut by a crash and the entries of chunks missing from the pack.
+     */
+    private void loadTheIndex() throws IOException {
+        long entries = this.index.size() / INDEX_ENTRY_LENGTH;
+        ByteBuffer buffer = ByteBuffer.allocate(INDEX_ENTRY_LENGTH * 1024);
+        long position = 0;
+        long indexedEnd = 0;
+        while (position < entries * INDEX_ENTRY_LENGTH) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), entries * INDEX_ENTRY_LENGTH - position));
+            while (buffer.hasRemaining()) {
+                if (this.index.read(buffer, position + buffer.position()) == -1) {
+                    throw new IOException("The index ended before " + entries + " entries");
+                }
+            }
+            buffer.flip();
+            position += buffer.limit();
+            while (buffer.hasRemaining()) {
+                byte[] digest = new byte[ChunkManifest.DIGEST_LENGTH];
+                buffer.get(digest);
+                long offset = buffer.getLong();
+                int length = buffer.getInt();
+                if (offset >= 0 && length > 0 && offset + length <= this.packEnd) {
+                    this.chunks.put(ByteBuffer.wrap(digest), new Location(offset, length));
+                    this.bytesStored.add(length);
+                    indexedEnd = Math.max(indexedEnd, offset + length);
+                }
+            }
+        }
+        this.index.truncate(entries * INDEX_ENTRY_LENGTH);
+        this.index.position(entries * INDEX_ENTRY_LENGTH);
+
+        // the regions of the uploads cut by a crash after the last indexed chunk
+        this.packEnd = indexedEnd;
+        this.pack.truncate(this.packEnd);
+    }
+
+    /**
+     * Returns the chunks of the manifest the store does not hold, each digest once, in ascending order.
+     */
+    int[] missingChunks(ChunkManifest manifest) {
+        int[] missing = new int[manifest.chunkCount()];
+        int count = 0;
+        HashMap<ByteBuffer, Boolean> asked = new HashMap<>();
+        for (int i = 0; i < manifest.chunkCount(); i++) {
+            ByteBuffer digest = manifest.digestOf(i);
+            if (!this.chunks.containsKey(digest) && asked.put(digest, Boolean.TRUE) == null) {
+                missing[count++] = i;
+            }
+        }
+        return Arrays.copyOf(missing, count);
+    }
+
+    /**
+     * Reserves `bytes` of the pack for the missing chunks of an upload and returns where they start: the first
+     * released region large enough, or the end of the pack.
+     */
+    synchronized long reserve(long bytes) {
+        for (Map.Entry<Long, Long> region : this.freeRegions.entrySet()) {
+            if (region.getValue() >= bytes) {
+                long offset = region.getKey();
+                this.freeRegions.remove(offset);
+                if (region.getValue() > bytes) {
+                    this.freeRegions.put(offset + bytes, region.getValue() - bytes);
+                }
+                return offset;
+            }
+        }
+        long offset = this.packEnd;
+        this.packEnd += bytes;
+        return offset;
+    }
+
+    /**
+     * Releases the region reserved for an upload that failed before any of its chunks was indexed, merged with the
+     * released regions around it; the pack is cut when the region ends it.
+     */
+    synchronized void release(long offset, long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        Map.Entry<Long, Long> previous = this.freeRegions.floorEntry(offset);
+        if (previous != null && previous.getKey() + previous.getValue() == offset) {
+            this.freeRegions.remove(previous.getKey());
+            offset = previous.getKey();
+            bytes += previous.getValue();
+        }
+        Long next = this.freeRegions.remove(offset + bytes);
+        if (next != null) {
+            bytes += next;
+        }
+        if (offset + bytes < this.packEnd) {
+            this.freeRegions.put(offset, bytes);
+            return;
+        }
+
+        this.packEnd = offset;
+        try {
+            this.pack.truncate(this.packEnd);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot cut the pack of the chunk store at " + this.packEnd + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens a channel writing into the pack, the file channel of an upload.
+     */
+    FileChannel openThePack() throws IOException {
+        return FileChannel.open(this.packFile.toPath(), StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Checks the new chunks of the upload of the connection, indexes them and rebuilds the file into the part file of
+     * its transfer, then commits it. Sets the bytes held and the CRC32C of the file for the verdict, or fails the
+     * connection and releases its region when none of its chunks was indexed. Called once the missing chunks are
+     * written to the pack and its channel closed.
+     */
+    void assemble(Connection connection) {
+        ChunkManifest manifest = connection.manifest;
+        Transfer transfer = connection.transfer;
+
+        // where the missing chunks were written
+        HashMap<ByteBuffer, Location> received = new HashMap<>();
+        long position = connection.packOffset;
+        for (int chunk : connection.missingChunks) {
+            received.put(manifest.digestOf(chunk), new Location(position, manifest.lengths[chunk]));
+            position += manifest.lengths[chunk];
+        }
+
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        RangeChecksum checksum = new RangeChecksum();
+        ByteBuffer buffer = chunkBuffers.get();
+        long reusedBytes = 0;
+        boolean indexed = false;
+        try (FileChannel partChannel = FileChannel.open(transfer.partFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long filePosition = 0;
+            for (int chunk = 0; chunk < manifest.chunkCount(); chunk++) {
+                ByteBuffer digest = manifest.digestOf(chunk);
+                Location location = this.chunks.get(digest);
+                boolean isNew = location == null;
+                if (isNew) {
+                    location = received.get(digest);
+                } else {
+                    reusedBytes += location.length;
+                }
+                if (location == null || location.length != manifest.lengths[chunk]) {
+                    throw new IOException("The chunk " + chunk + " of " + manifest + " is not in the store");
+                }
+
+                // read the chunk from the pack
+                buffer.clear().limit(location.length);
+                while (buffer.hasRemaining()) {
+                    if (this.pack.read(buffer, location.offset + buffer.position()) == -1) {
+                        throw new IOException("The pack ended before the chunk " + chunk + " of " + manifest);
+                    }
+                }
+                buffer.flip();
+
+                // a new chunk is only kept if it matches its digest
+                if (isNew) {
+                    sha256.update(buffer.duplicate());
+                    if (!MessageDigest.isEqual(sha256.digest(), this.toArray(digest))) {
+                        this.corruptChunks.increment();
+                        throw new IOException("The chunk " + chunk + " of " + manifest + " does not match its digest");
+                    }
+                    indexed |= this.index(digest, location);
+                }
+
+                checksum.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    filePosition += partChannel.write(buffer, filePosition);
+                }
+            }
+            if (this.sync) {
+                partChannel.force(false);
+                this.syncTheIndex();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot rebuild " + manifest + " from the chunk store: " + e.getMessage());
+            connection.failed = true;
+            if (!indexed) {
+                this.release(connection.packOffset, connection.packLength);
+            }
+            return;
+        }
+
+        this.chunksReused.add(manifest.chunkCount() - connection.missingChunks.length);
+        this.bytesReused.add(reusedBytes);
+        System.out.println("[" + new Date() + "] " + manifest + " rebuilt from the chunk store, "
+                + connection.missingChunks.length + " chunk(s) received, " + reusedBytes + " byte(s) reused.");
+        connection.bytesHeld = manifest.fileSize;
+        connection.rangeChecksum = checksum.getValue();
+        if (!connection.worker.getTransferRegistry().rangeWritten(transfer, 0, manifest.fileSize)) {
+            connection.failed = true;
+        }
+    }
+
+    private byte[] toArray(ByteBuffer digest) {
+        byte[] bytes = new byte[digest.remaining()];
+        digest.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Adds a checked chunk to the index, unless another upload indexed the same chunk first. Returns true when it
+     * was added.
+     */
+    private boolean index(ByteBuffer digest, Location location) throws IOException {
+        ByteBuffer key = ByteBuffer.wrap(this.toArray(digest));
+        if (this.chunks.putIfAbsent(key, location) != null) {
+            return false;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_LENGTH);
+        entry.put(key.duplicate()).putLong(location.offset).putInt(location.length).flip();
+        synchronized (this.index) {
+            while (entry.hasRemaining()) {
+                this.index.write(entry);
+            }
+        }
+        this.bytesStored.add(location.length);
+        return true;
+    }
+
+    private void syncTheIndex() throws IOException {
+        synchronized (this.index) {
+            this.index.force(false);
+        }
+    }
+
+    void stop() {
+        try {
+            this.pack.close();
+            this.index.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot close the chunk store: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "chunk store: " + this.chunks.size() + " chunk(s), " + this.bytesStored.sum() + " byte(s) stored, "
+                + this.chunksReused.sum() + " chunk(s) (" + this.bytesReused.sum() + " byte(s)) reused, "
+                + this.corruptChunks.sum() + " corrupt";
+    }
+}
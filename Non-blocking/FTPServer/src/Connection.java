@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Inflater;
+
+/**
+ * The state of one client connection, or of one stream of a session connection (see {@link SessionFrame}). It is
+ * created and mutated by the owning {@link SelectorWorker}; the fields shared with the {@link DiskWriter} thread
+ * are thread-safe.
+ */
+public class Connection {
+
+    final SocketChannel socketChannel;
+
+    final SelectorWorker worker;
+
+    SelectionKey key;
+
+    // the session carrying this stream, null for a connection
+    final Connection session;
+
+    final int streamId;
+
+    // open streams of a session by ID, null unless the connection started a session
+    HashMap<Integer, Connection> streams;
+
+    // streams opened by a session
+    int streamCount;
+
+    // files of the streams of a session not closed yet
+    int openFiles;
+
+    // an OPEN frame of the session waits for one of its files to be closed
+    boolean waitingForAFile;
+
+    // stream of the data frame being parsed and its bytes still to come
+    Connection frameStream;
+
+    long frameRemaining;
+
+    // the range being sent to a download request, null for an upload
+    Download download;
+
+    // the manifest of a deduplicated upload, null for the others; its missing chunks and the region of the pack of
+    // the chunk store reserved for them
+    ChunkManifest manifest;
+
+    int[] missingChunks;
+
+    long packOffset;
+
+    long packLength;
+
+    // the signatures of a file asked for before a delta upload, null for the other connections
+    SignatureRequest signatureRequest;
+
+    // the copy of the file held by the server and its size, the source of the copy chunks of a delta range; null for
+    // the other ranges
+    FileChannel baseChannel;
+
+    long baseSize;
+
+    // pooled buffer currently being filled from the socket, null while no data is in flight
+    ByteBuffer inputBuffer;
+
+    // pooled buffer holding the chunks of a compressed range read from the socket, in write mode
+    ByteBuffer chunkBuffer;
+
+    // decompresses the deflated chunks of a compressed range, reset for every chunk
+    Inflater inflater;
+
+    // kind of the chunk being parsed, -1 between chunks, and its payload bytes still to come
+    int chunkKind = -1;
+
+    long chunkRemaining;
+
+    TransferHeader header;
+
+    // the transfer of the range, null for a legacy header
+    Transfer transfer;
+
+    volatile FileChannel fileChannel;
+
+    // next write position in the file, the bytes staged by the disk writer included
+    long filePosition;
+
+    // writes coalesced by the disk writer before they go to the file, null while nothing is staged
+    ByteBuffer stagingBuffer;
+
+    // bytes of the range still to be read from the socket, -1 when the data ends with the stream
+    long bytesRemaining = -1;
+
+    DiskWriter diskWriter;
+
+    // the closing of the file channel was queued on the disk writer
+    boolean fileClosing;
+
+    // buffers handed to the disk writer and not yet written
+    final AtomicInteger buffersInFlight = new AtomicInteger();
+
+    // set by the disk writer when a write fails, no more data is accepted afterwards
+    volatile boolean failed;
+
+    boolean readPaused;
+
+    // checks the connection against the bounds of the admission control every check interval
+    TimerWheel.Timer watchdogTimer;
+
+    // bytes received and sent when the progress of the connection was last seen to change, and when
+    long lastProgress;
+
+    long lastProgressNanos;
+
+    // start of the window the throughput of the connection is measured over, and its progress then
+    long windowStartNanos;
+
+    long windowStartProgress;
+
+    // bytes of the replies and of the downloads sent
+    long bytesSent;
+
+    // the bandwidth limits stopped the reads of the socket until `throttleTimer` runs
+    boolean throttled;
+
+    TimerWheel.Timer throttleTimer;
+
+    int throttleCount;
+
+    // the per-connection bucket of the bandwidth limits, and the client address sharing its own
+    final TokenBucket bucket = new TokenBucket();
+
+    BandwidthLimiter.Client client;
+
+    // the weight of the connection among those sharing a limit, 0 until it shares one, and the bucket of its share
+    int weight;
+
+    final TokenBucket shareBucket = new TokenBucket();
+
+    long stallStartNanos;
+
+    long stallNanos;
+
+    int stallCount;
+
+    // reply (in read mode) being sent to the client, null when there is none
+    ByteBuffer replyBuffer;
+
+    // close the connection once the reply is sent
+    boolean closeAfterReply;
+
+    // the whole range was received, the verdict is sent once the disk writer closed the file
+    volatile boolean awaitingVerdict;
+
+    // set by the disk writer for the verdict
+    volatile long bytesHeld;
+
+    volatile int rangeChecksum;
+
+    // checksum of the range, updated by the disk writer with every buffer it writes; null for a legacy header
+    RangeChecksum checksum;
+
+    // block checksums of the client following the range, in write mode until complete; null without them
+    ByteBuffer trailerBuffer;
+
+    // first block of the range that does not match its checksum, -1 when there is none
+    volatile int corruptBlock = -1;
+
+    final long startNanos = System.nanoTime();
+
+    // updated through TransferMetrics along with the global counters
+    final LongAdder bytesReceived = new LongAdder();
+
+    final LongAdder chunksReceived = new LongAdder();
+
+    Connection(SocketChannel socketChannel, SelectorWorker worker) {
+        this.socketChannel = socketChannel;
+        this.worker = worker;
+        this.session = null;
+        this.streamId = 0;
+    }
+
+    /**
+     * Creates a stream of the session, it shares the socket channel and the selection key of the session.
+     */
+    Connection(Connection session, int streamId) {
+        this.socketChannel = session.socketChannel;
+        this.worker = session.worker;
+        this.key = session.key;
+        this.session = session;
+        this.streamId = streamId;
+    }
+
+    /**
+     * Adds the buffer (in read mode) about to be written at the file position to the checksum of the range, without
+     * moving its position. Called by the disk writer of the connection.
+     */
+    void updateTheChecksum(ByteBuffer buffer) throws IOException {
+        this.catchUpTheChecksum();
+        this.checksum.update(buffer.duplicate());
+    }
+
+    /**
+     * Reads back the bytes of the range written without going through the disk writer: the bytes held before a
+     * resume, and the whole range in the zero-copy receive mode.
+     */
+    private void catchUpTheChecksum() throws IOException {
+        long unchecked = this.filePosition - this.header.offset - this.checksum.length();
+        if (unchecked > 0) {
+            this.checksum.update(this.fileChannel, this.header.offset + this.checksum.length(), unchecked);
+        }
+    }
+
+    /**
+     * Closes the file channel. A complete range is reported to its transfer, an incomplete one saves the bytes held
+     * so that it can be resumed, and so does a corrupt one with the bytes before its first corrupt block. A complete
+     * deduplicated upload is rebuilt from the chunk store. Called once the checksum is finished and the file is synced
+     * as the durability policy requires.
+     */
+    void closeTheFileChannel() {
+        if (this.baseChannel != null) {
+            try {
+                this.baseChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println(this.baseChannel + " Cannot close the base file: " + e.getMessage());
+            }
+            this.baseChannel = null;
+        }
+        if (this.fileChannel == null) {
+            return;
+        }
+
+        try {
+            // a legacy upload ends with its stream, cut what is left of an older and longer file
+            if (this.transfer == null && !this.failed && this.fileChannel.size() > this.filePosition) {
+                this.fileChannel.truncate(this.filePosition);
+            }
+            this.fileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(this.fileChannel + " Cannot close the file channel: " + e.getMessage());
+            this.failed = true;
+        }
+
+        if (this.transfer == null) {
+            return;
+        }
+
+        // a deduplicated upload is rebuilt from the chunk store once its missing chunks are in the pack, a failed one
+        // gives its region of the pack back
+        if (this.manifest != null) {
+            if (this.bytesRemaining == 0 && !this.failed) {
+                this.worker.getChunkStore().assemble(this);
+            } else {
+                this.worker.getChunkStore().release(this.packOffset, this.packLength);
+            }
+            return;
+        }
+        this.bytesHeld = this.filePosition - this.header.offset;
+        if (this.corruptBlock >= 0) {
+            this.bytesHeld = (long) this.corruptBlock * TransferHeader.BLOCK_SIZE;
+            this.transfer.recordProgress(this.header.offset, this.bytesHeld);
+        } else if (this.bytesRemaining == 0 && !this.failed) {
+            // the verdict of the range that completed the file tells whether the file was stored
+            if (!this.worker.getTransferRegistry().rangeWritten(this.transfer, this.header.offset, this.header.length)) {
+                this.failed = true;
+            }
+        } else {
+            this.transfer.recordProgress(this.header.offset, this.bytesHeld);
+        }
+    }
+
+    /**
+     * Finishes the checksum of a complete range for its verdict and looks for its first corrupt block. Called by the
+     * disk writer of the connection after its last write, before the file is synced and closed.
+     */
+    void finishTheChecksum() {
+        if (this.fileChannel != null && this.checksum != null && this.bytesRemaining == 0 && !this.failed) {
+            try {
+                this.catchUpTheChecksum();
+                this.rangeChecksum = this.checksum.getValue();
+                if (this.trailerBuffer != null) {
+                    this.findACorruptBlock();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println(this.fileChannel + " Cannot read the range back: " + e.getMessage());
+                this.failed = true;
+            }
+        }
+    }
+
+    private void findACorruptBlock() {
+        ByteBuffer trailer = this.trailerBuffer.duplicate().flip();
+        int[] blocks = this.checksum.getBlockChecksums();
+        for (int i = 0; i < blocks.length; i++) {
+            if (blocks[i] != trailer.getInt()) {
+                this.corruptBlock = i;
+                System.err.println("[" + new Date() + "] " + this.header + " has a corrupt block at "
+                        + (this.header.offset + (long) i * TransferHeader.BLOCK_SIZE) + ".");
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,373 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A dedicated file I/O thread. Selector workers queue the buffers they read from the sockets and this thread
+ * writes them to the files, so a slow disk never stalls a selector. Every connection is pinned to one disk
+ * writer to keep its writes in order.
+ *
+ * The buffers of a connection are copied into a staging buffer of `coalesceBytes` and written once it is full or
+ * the file is closed, so a socket read of a few KB never turns into a write of its own. A writer has at most
+ * `maxStagingBuffers` of them, taken from the off-heap memory of the {@link BufferPool}; the connections finding none
+ * free write their buffers as they come. A connection only holds one while it has buffers queued: an empty staging
+ * buffer goes back once its queue is empty, and a connection finding none free takes the one of an idle connection
+ * after writing what it staged, so a few idle or slow connections cannot hold them all. Before a file is closed it
+ * is synced as the durability policy requires: `none` leaves it to the OS, `fsync-on-close` syncs it on this
+ * thread, and `group-commit` hands it to the {@link GroupCommitter}, which syncs the files closed by all
+ * connections in batches. Either way the verdict of a range is only sent once its bytes are as durable as the
+ * policy promises.
+ *
+ * The copy chunks of a delta range are queued in order with its buffers: the bytes staged before a copy are written
+ * first, then the kernel copies the bytes from the copy of the file the server already holds with `transferTo()`.
+ */
+public class DiskWriter implements Runnable {
+
+    private static class WriteTask {
+        final Connection connection;
+
+        // null to close the file of the connection or to copy bytes of its base file
+        final ByteBuffer buffer;
+
+        // bytes of the base file copied at the file position, 0 unless the task is a copy
+        final long copyOffset;
+
+        final long copyLength;
+
+        WriteTask(Connection connection, ByteBuffer buffer) {
+            this(connection, buffer, 0, 0);
+        }
+
+        WriteTask(Connection connection, ByteBuffer buffer, long copyOffset, long copyLength) {
+            this.connection = connection;
+            this.buffer = buffer;
+            this.copyOffset = copyOffset;
+            this.copyLength = copyLength;
+        }
+    }
+
+    private final int id;
+
+    private final int queueCapacity;
+
+    private final WritePipelineMetrics metrics;
+
+    private final BufferPool bufferPool;
+
+    // staging buffer size of a connection, 0 to write every buffer as it comes
+    private final int coalesceBytes;
+
+    // staging buffers this writer allocates at most, and those it allocated so far
+    private final int maxStagingBuffers;
+
+    private int stagingBuffers;
+
+    // `none`, `fsync-on-close` or `group-commit`
+    private final String durability;
+
+    // null unless the durability policy is `group-commit`
+    private final GroupCommitter groupCommitter;
+
+    // staging buffers no connection holds, and the connections holding the others, only used by this thread
+    private final ArrayDeque<ByteBuffer> freeStagingBuffers = new ArrayDeque<>();
+
+    private final ArrayDeque<Connection> stagingHolders = new ArrayDeque<>();
+
+    private final LinkedBlockingQueue<WriteTask> tasks = new LinkedBlockingQueue<>();
+
+    private volatile boolean running = true;
+
+    private Thread thread;
+
+    public DiskWriter(int id, int queueCapacity, WritePipelineMetrics metrics, BufferPool bufferPool,
+                      int coalesceBytes, int maxStagingBuffers, String durability, GroupCommitter groupCommitter) {
+        this.id = id;
+        this.queueCapacity = queueCapacity;
+        this.metrics = metrics;
+        this.bufferPool = bufferPool;
+        this.coalesceBytes = coalesceBytes;
+        this.maxStagingBuffers = maxStagingBuffers;
+        this.durability = durability;
+        this.groupCommitter = groupCommitter;
+    }
+
+    public void start() {
+        this.thread = new Thread(this, "disk-writer-" + this.id);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Queues a filled buffer (in read mode) of the connection. Returns true when the write queue of the
+     * connection became full, in which case the caller must stop reading from the socket.
+     */
+    public boolean submit(Connection connection, ByteBuffer buffer) {
+        this.metrics.buffersQueued();
+        boolean isFull = connection.buffersInFlight.incrementAndGet() == this.queueCapacity;
+        this.tasks.add(new WriteTask(connection, buffer));
+        return isFull;
+    }
+
+    /**
+     * Queues the copy of `length` bytes of the base file of the connection from `offset`, counted as one buffer of
+     * its write queue. Returns true when the write queue of the connection became full.
+     */
+    public boolean submitCopy(Connection connection, long offset, long length) {
+        this.metrics.buffersQueued();
+        boolean isFull = connection.buffersInFlight.incrementAndGet() == this.queueCapacity;
+        this.tasks.add(new WriteTask(connection, null, offset, length));
+        return isFull;
+    }
+
+    /**
+     * Queues the closing of the file of the connection after all of its pending writes.
+     */
+    public void submitClose(Connection connection) {
+        this.tasks.add(new WriteTask(connection, null));
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            WriteTask task;
+            try {
+                task = this.tasks.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            if (task.copyLength > 0) {
+                this.copy(task);
+            } else if (task.buffer == null) {
+                this.close(task.connection);
+            } else {
+                this.write(task);
+            }
+        }
+    }
+
+    /**
+     * Writes what is left staged, finishes the checksum and closes the file once it is synced as the durability
+     * policy requires.
+     */
+    private void close(Connection connection) {
+        this.flush(connection);
+        this.releaseTheStagingBuffer(connection);
+        connection.finishTheChecksum();
+
+        if (connection.fileChannel != null && !connection.failed) {
+            if (this.groupCommitter != null) {
+                this.groupCommitter.submit(connection);
+                return;
+            }
+            if (this.durability.equals("fsync-on-close")) {
+                sync(connection, this.metrics);
+            }
+        }
+        this.closeTheFile(connection);
+    }
+
+    /**
+     * Syncs the data of the file of the connection to the disk, the connection fails if it cannot.
+     */
+    static void sync(Connection connection, WritePipelineMetrics metrics) {
+        long startNanos = System.nanoTime();
+        try {
+            connection.fileChannel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(connection.fileChannel + " Cannot sync the file: " + e.getMessage());
+            connection.failed = true;
+        }
+        metrics.synced(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Closes the file of the connection and lets its worker send the verdict of the range.
+     */
+    private void closeTheFile(Connection connection) {
+        connection.closeTheFileChannel();
+        if (connection.awaitingVerdict) {
+            connection.worker.execute(() -> connection.worker.sendTheVerdict(connection));
+        }
+    }
+
+    private void write(WriteTask task) {
+        Connection connection = task.connection;
+        ByteBuffer buffer = task.buffer;
+        FileChannel fileChannel = connection.fileChannel;
+
+        // write the buffer to the file unless an earlier write of the connection failed
+        if (!connection.failed) {
+            try {
+                // the checksum is updated while the buffer is still hot in the cache
+                if (connection.checksum != null) {
+                    connection.updateTheChecksum(buffer);
+                }
+                if (this.coalesceBytes == 0 || (connection.stagingBuffer == null
+                        && (buffer.remaining() >= this.coalesceBytes || !this.takeAStagingBuffer(connection)))) {
+                    // nothing to coalesce with, or no staging buffer to coalesce in
+                    int length = buffer.remaining();
+                    while (buffer.remaining() != 0) {
+                        connection.filePosition += fileChannel.write(buffer, connection.filePosition);
+                    }
+                    this.metrics.written(length);
+                } else {
+                    this.stage(connection, buffer);
+                    // an empty staging buffer is given back once no other buffer of the connection is queued
+                    if (connection.stagingBuffer.position() == 0 && connection.buffersInFlight.get() == 1) {
+                        this.releaseTheStagingBuffer(connection);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println(fileChannel + " Cannot write to the file: " + e.getMessage());
+                connection.failed = true;
+                connection.worker.execute(() -> connection.worker.closeAConnection(connection));
+            }
+        }
+
+        // give the buffer back to the pool of the worker that owns the connection
+        this.bufferPool.release(connection.worker.getId(), buffer);
+        this.metrics.buffersWritten();
+
+        // resume reading once the write queue of the connection is no longer full
+        if (connection.buffersInFlight.decrementAndGet() == this.queueCapacity - 1) {
+            connection.worker.execute(() -> connection.worker.resumeReading(connection));
+        }
+    }
+
+    /**
+     * Copies bytes of the base file of the connection to its file position, after the bytes staged before them. The
+     * checksum of the range reads them back from the file with the next buffer or when the file is closed.
+     */
+    private void copy(WriteTask task) {
+        Connection connection = task.connection;
+        this.flush(connection);
+
+        if (!connection.failed) {
+            try {
+                // the kernel moves the bytes between the files, the transfer may be partial
+                FileChannel fileChannel = connection.fileChannel;
+                fileChannel.position(connection.filePosition);
+                long copied = 0;
+                while (copied < task.copyLength) {
+                    long transferred = connection.baseChannel.transferTo(task.copyOffset + copied,
+                            task.copyLength - copied, fileChannel);
+                    if (transferred == 0) {
+                        throw new IOException("The base file ended before " + (task.copyOffset + task.copyLength));
+                    }
+                    copied += transferred;
+                    connection.filePosition += transferred;
+                }
+                this.metrics.written(copied);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println(connection.fileChannel + " Cannot copy from the base file: " + e.getMessage());
+                connection.failed = true;
+                connection.worker.execute(() -> connection.worker.closeAConnection(connection));
+            }
+        }
+        this.metrics.buffersWritten();
+
+        // resume reading once the write queue of the connection is no longer full
+        if (connection.buffersInFlight.decrementAndGet() == this.queueCapacity - 1) {
+            connection.worker.execute(() -> connection.worker.resumeReading(connection));
+        }
+    }
+
+    /**
+     * Gives the connection a free staging buffer, a new one while the writer has fewer than its maximum and the
+     * buffer pool has the memory for it, or the one of a connection with no buffer queued once its staged bytes are
+     * written. Returns false when there is none.
+     */
+    private boolean takeAStagingBuffer(Connection connection) {
+        if (this.freeStagingBuffers.isEmpty() && this.stagingBuffers < this.maxStagingBuffers) {
+            ByteBuffer stagingBuffer = this.bufferPool.allocateDirect(this.coalesceBytes);
+            if (stagingBuffer != null) {
+                this.stagingBuffers++;
+                this.freeStagingBuffers.push(stagingBuffer);
+            }
+        }
+        if (this.freeStagingBuffers.isEmpty()) {
+            for (Connection holder : this.stagingHolders) {
+                if (holder.buffersInFlight.get() == 0) {
+                    this.flush(holder);
+                    this.releaseTheStagingBuffer(holder);
+                    break;
+                }
+            }
+        }
+        if (this.freeStagingBuffers.isEmpty()) {
+            return false;
+        }
+        connection.stagingBuffer = this.freeStagingBuffers.pop();
+        this.stagingHolders.add(connection);
+        return true;
+    }
+
+    /**
+     * Copies the buffer into the staging buffer of the connection, writing the staging buffer whenever it fills up.
+     */
+    private void stage(Connection connection, ByteBuffer buffer) throws IOException {
+        ByteBuffer stagingBuffer = connection.stagingBuffer;
+        while (buffer.hasRemaining()) {
+            int count = Math.min(buffer.remaining(), stagingBuffer.remaining());
+            stagingBuffer.put(buffer.slice(buffer.position(), count));
+            buffer.position(buffer.position() + count);
+            connection.filePosition += count;
+            if (!stagingBuffer.hasRemaining()) {
+                this.flush(connection);
+            }
+        }
+    }
+
+    /**
+     * Writes the bytes staged for the connection, they end at its file position.
+     */
+    private void flush(Connection connection) {
+        ByteBuffer stagingBuffer = connection.stagingBuffer;
+        if (stagingBuffer == null || stagingBuffer.position() == 0) {
+            return;
+        }
+        stagingBuffer.flip();
+        long position = connection.filePosition - stagingBuffer.limit();
+        if (!connection.failed) {
+            try {
+                while (stagingBuffer.remaining() != 0) {
+                    position += connection.fileChannel.write(stagingBuffer, position);
+                }
+                this.metrics.written(stagingBuffer.limit());
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println(connection.fileChannel + " Cannot write to the file: " + e.getMessage());
+                connection.failed = true;
+                connection.worker.execute(() -> connection.worker.closeAConnection(connection));
+            }
+        }
+
+        // the bytes held are the bytes actually written
+        connection.filePosition -= stagingBuffer.remaining();
+        stagingBuffer.clear();
+    }
+
+    /**
+     * Keeps the staging buffer of a connection for the next ones, once what it staged is written.
+     */
+    private void releaseTheStagingBuffer(Connection connection) {
+        if (connection.stagingBuffer != null) {
+            this.freeStagingBuffers.push(connection.stagingBuffer.clear());
+            connection.stagingBuffer = null;
+            this.stagingHolders.remove(connection);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The state of a download connection: the range of the file still to be sent and the mapped slice being sent. It is
+ * created and mutated by the owning {@link SelectorWorker}.
+ */
+public class Download {
+
+    final GetRequest request;
+
+    // canonical path of the file, the key of its regions in the {@link MappedRegionCache}
+    final String path;
+
+    final long fileSize;
+
+    // the version of the file being sent, a file changed since is not served from the cache
+    final long lastModified;
+
+    // next byte of the file to be sliced
+    long position;
+
+    final long end;
+
+    // slice of a mapped region being sent, null before the first one
+    ByteBuffer slice;
+
+    final long startNanos = System.nanoTime();
+
+    Download(GetRequest request, String path, long fileSize, long lastModified, long position, long end) {
+        this.request = request;
+        this.path = path;
+        this.fileSize = fileSize;
+        this.lastModified = lastModified;
+        this.position = position;
+        this.end = end;
+    }
+
+    boolean isDone() {
+        return this.position == this.end && (this.slice == null || !this.slice.hasRemaining());
+    }
+}
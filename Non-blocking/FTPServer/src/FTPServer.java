@@ -1,87 +1,245 @@
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class FTPServer {
 
+    // the `ftp.server.*` settings read by the project, the command line rejects the others and lists them
+    static final String[] SETTINGS = {
+            "assignment", "bandwidthMbps", "cacheLoaders", "chunkStore", "clientRate", "clientWeights", "coalesceBytes",
+            "connectionCheckMillis", "connectionRate", "diskWriters", "durability", "fairQuantum", "globalRate",
+            "groupCommitMillis", "headerTimeoutMillis", "host", "idleTimeoutMillis", "logLevel", "mapCacheBytes",
+            "mapRegionSize", "maxConnections", "maxOffHeapBytes", "minThroughput", "port", "preallocate", "profile",
+            "receiveMode", "rttMicros", "sessionFileHandles", "signatureThreads", "slabSize", "stagingBuffers",
+            "summaryInterval", "throughputWindowMillis", "transferLength", "workers", "writeQueueCapacity"
+    };
+
     private Selector selector;
 
     private ServerSocketChannel serverSocketChannel;
 
-    private int bufferLength = 1 << 16;
+    // address and port to bind, prompted for when not given
+    private String host = System.getProperty("ftp.server.host");
 
-    private HashMap<SocketChannel, FileChannel> fileChannels;
-    
-    private HashMap<SocketChannel, ByteBuffer> inputBuffers;
+    private int port = Integer.getInteger("ftp.server.port", -1);
 
-    private int printNumberOfBytesReceived(int bytesReceived) {
-        System.out.println("[" + new Date() + "] " + bytesReceived + " byte(s) was(were) received.");
-        return  bytesReceived;
-    }
+    // `default`, `lan`, `wan` or `small-files`, see TransportProfile
+    private String profileName = System.getProperty("ftp.server.profile", "default");
+
+    // bandwidth of the path in Mbit/s and its round trip in microseconds the buffers are sized for, 0 for those of
+    // the profile
+    private long bandwidthMbps = Long.getLong("ftp.server.bandwidthMbps", 0);
+
+    private long rttMicros = Long.getLong("ftp.server.rttMicros", 0);
+
+    private TransportProfile profile;
+
+    // size of the pooled direct buffers of the connections, 0 to size them for the profile
+    private int bufferLength = Integer.getInteger("ftp.server.slabSize", 0);
+
+    // cap on the direct memory of the buffer pool, the pool falls back to heap buffers beyond it
+    private long maxOffHeapBytes = Long.getLong("ftp.server.maxOffHeapBytes", 64L << 20);
+
+    // `copy` to queue heap buffers on the disk writers, `zero-copy` to move the data with `transferFrom()`
+    private String receiveMode = System.getProperty("ftp.server.receiveMode", "copy");
+
+    // maximum number of bytes moved by one `transferFrom()` call in the zero-copy receive mode
+    private int transferLength = Integer.getInteger("ftp.server.transferLength", 1 << 20);
+
+    // number of worker reactors, defaults to one per core
+    private int workerCount = Integer.getInteger("ftp.server.workers", Runtime.getRuntime().availableProcessors());
+
+    // `round-robin` or `least-loaded`
+    private String assignmentPolicy = System.getProperty("ftp.server.assignment", "round-robin");
+
+    // number of threads writing the received data to the files
+    private int diskWriterCount = Integer.getInteger("ftp.server.diskWriters", Runtime.getRuntime().availableProcessors());
+
+    // buffers of a connection queued for writing before its reads are paused
+    private int writeQueueCapacity = Integer.getInteger("ftp.server.writeQueueCapacity", 4);
+
+    // bytes of a connection coalesced by its disk writer before they are written, 0 to write every buffer at once
+    private int coalesceBytes = Integer.getInteger("ftp.server.coalesceBytes", 1 << 20);
+
+    // staging buffers of `coalesceBytes` per disk writer, allocated within `maxOffHeapBytes`; the connections beyond
+    // them are not coalesced
+    private int stagingBuffers = Integer.getInteger("ftp.server.stagingBuffers", 4);
+
+    // `none`, `fsync-on-close` or `group-commit`, what a range is synced to before its verdict
+    private String durability = System.getProperty("ftp.server.durability", "none");
+
+    // milliseconds between two `group-commit` syncs at most, the files closed meanwhile by all connections are batched
+    private int groupCommitMillis = Integer.getInteger("ftp.server.groupCommitMillis", 2);
+
+    // files a session may have open at once, its next OPEN frame waits for one of them to be closed
+    private int sessionFileHandles = Integer.getInteger("ftp.server.sessionFileHandles", 64);
+
+    // bytes of the files served to downloads kept resident at most, and the size of the regions they are mapped in
+    private long mapCacheBytes = Long.getLong("ftp.server.mapCacheBytes", 1L << 30);
+
+    private int mapRegionSize = Integer.getInteger("ftp.server.mapRegionSize", 16 << 20);
+
+    // threads reading the regions missing from the cache, so that the workers never wait for the disk
+    private int cacheLoaderCount = Integer.getInteger("ftp.server.cacheLoaders", 2);
+
+    // limits on the received bytes per second of the server, of each client address and of each connection, 0 for
+    // none, and the bytes a read takes at most while the server or the address is limited, times its weight
+    private long globalRate = Long.getLong("ftp.server.globalRate", 0);
+
+    private long clientRate = Long.getLong("ftp.server.clientRate", 0);
+
+    private long connectionRate = Long.getLong("ftp.server.connectionRate", 0);
+
+    private int fairQuantum = Integer.getInteger("ftp.server.fairQuantum", 1 << 14);
+
+    // `address=weight` pairs separated by commas, the other addresses weigh 1
+    private String clientWeights = System.getProperty("ftp.server.clientWeights", "");
+
+    // connections open at once at most, the next ones wait in the backlog of the listening socket
+    private int maxConnections = Integer.getInteger("ftp.server.maxConnections", 10000);
+
+    // milliseconds a connection has to send its header, and may stay idle while the server waits for it, 0 for ever
+    private long headerTimeoutMillis = Long.getLong("ftp.server.headerTimeoutMillis", 30_000);
+
+    private long idleTimeoutMillis = Long.getLong("ftp.server.idleTimeoutMillis", 60_000);
+
+    // bytes per second a connection moves at least over each window the server waits for it all along, 0 for any
+    private long minThroughput = Long.getLong("ftp.server.minThroughput", 1024);
+
+    private long throughputWindowMillis = Long.getLong("ftp.server.throughputWindowMillis", 30_000);
+
+    // milliseconds between two checks of a connection against these bounds
+    private long connectionCheckMillis = Long.getLong("ftp.server.connectionCheckMillis", 1000);
+
+    // directory of the chunk store of the deduplicated uploads
+    private String chunkStoreDirectory = System.getProperty("ftp.server.chunkStore", ".chunks");
+
+    // threads computing the block signatures of the files asked for before the delta uploads
+    private int signatureThreadCount = Integer.getInteger("ftp.server.signatureThreads", Runtime.getRuntime().availableProcessors());
+
+    // seconds between two summaries of the metrics, 0 to disable them
+    private int summaryInterval = Integer.getInteger("ftp.server.summaryInterval", 10);
+
+    private SelectorWorker[] workers;
+
+    private DiskWriter[] diskWriters;
+
+    // null unless the durability policy is `group-commit`
+    private GroupCommitter groupCommitter;
+
+    private WritePipelineMetrics writePipelineMetrics = new WritePipelineMetrics();
+
+    private BufferPool bufferPool;
+
+    private TransferRegistry transferRegistry = new TransferRegistry(this.durability.equals("fsync-on-close"));
+
+    private TransferMetrics transferMetrics = new TransferMetrics();
+
+    private MappedRegionCache regionCache;
+
+    private BandwidthLimiter bandwidthLimiter;
+
+    private AdmissionControl admissionControl;
+
+    private ChunkStore chunkStore;
+
+    private SignatureGenerator signatureGenerator;
+
+    private ScheduledExecutorService summaryLogger;
+
+    private int nextWorker;
 
     private void exitGracefully() {
         this.closeTheSelector();
         this.closeTheServerSocketChannel();
-        this.closeAllSocketChannels();
+        this.stopAllWorkers();
         System.exit(1);
     }
 
-    private void closeAllSocketChannels() {
-        Set<SocketChannel> socketChannels = inputBuffers.keySet();
-        Iterator<SocketChannel> iterator = socketChannels.iterator();
-        while (iterator.hasNext()) {
-            SocketChannel socketChannel = iterator.next();
-            this.closeASocketChannel(socketChannel);
+    private void stopAllWorkers() {
+        if (this.workers != null) {
+            for (SelectorWorker worker : this.workers) {
+                if (worker != null) {
+                    worker.stop();
+                }
+            }
+        }
+        if (this.diskWriters != null) {
+            for (DiskWriter diskWriter : this.diskWriters) {
+                diskWriter.stop();
+            }
+        }
+        if (this.groupCommitter != null) {
+            this.groupCommitter.stop();
+        }
+        if (this.regionCache != null) {
+            this.regionCache.stop();
+        }
+        if (this.chunkStore != null) {
+            this.chunkStore.stop();
+        }
+        if (this.signatureGenerator != null) {
+            this.signatureGenerator.stop();
+        }
+        if (this.summaryLogger != null) {
+            this.summaryLogger.shutdownNow();
         }
     }
 
-    private void onlyCloseASocketChannel(SocketChannel socketChannel) {
-        if (socketChannel != null) {
-            try {
-                // close the socket channel
-                socketChannel.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.err.println("[" + new Date() + "]" + socketChannel + "Cannot close the current socket channel: " + e.getMessage());
-            }
+    private void registerTheMetrics() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.transferMetrics,
+                    new ObjectName("SimpleFTP:type=TransferMetrics"));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.regionCache,
+                    new ObjectName("SimpleFTP:type=MappedRegionCache"));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.bandwidthLimiter,
+                    new ObjectName("SimpleFTP:type=BandwidthLimiter"));
+        } catch (JMException e) {
+            e.printStackTrace();
+            System.err.println("Cannot register the metrics MBean: " + e.getMessage());
         }
     }
 
+    /**
+     * Logs the metrics every `summaryInterval` seconds while data keeps arriving or connections are open.
+     */
+    private void startTheSummaryLogger() {
+        if (this.summaryInterval <= 0) {
+            return;
+        }
+        this.summaryLogger = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-summary");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long[] lastBytesReceived = {-1};
+        this.summaryLogger.scheduleAtFixedRate(() -> {
+            long bytesReceived = this.transferMetrics.getBytesReceived();
+            if (bytesReceived == lastBytesReceived[0] && this.transferMetrics.getActiveConnections() == 0) {
+                return;
+            }
+            lastBytesReceived[0] = bytesReceived;
+            System.out.println("[" + new Date() + "] " + this.transferMetrics + "; " + this.writePipelineMetrics
+                    + "; " + this.bufferPool + "; " + this.regionCache + "; " + this.bandwidthLimiter + "; " + this.admissionControl + "; " + this.chunkStore
+                    + "; " + this.signatureGenerator);
+        }, this.summaryInterval, this.summaryInterval, TimeUnit.SECONDS);
+    }
+
     private void closeASocketChannel(SocketChannel socketChannel) {
         if (socketChannel != null) {
             try {
-                // close the socket channel
                 socketChannel.close();
             } catch (IOException e) {
                 e.printStackTrace();
                 System.err.println("[" + new Date() + "]" + socketChannel + "Cannot close the current socket channel: " + e.getMessage());
-            } finally {
-                // free resources
-                if (this.fileChannels != null) {
-                    // close the file channel
-                    FileChannel fileChannel = this.fileChannels.get(socketChannel);
-                    if (fileChannel != null) {
-                        try {
-                            fileChannel.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                            System.err.println(fileChannel + " Cannot close the file channel: " + e.getMessage());
-                        }
-                    }
-
-                    // remove the record
-                    this.fileChannels.remove(socketChannel);
-                }
-
-                if (this.inputBuffers != null) {
-                    this.inputBuffers.remove(socketChannel);
-                }
             }
         }
     }
@@ -109,29 +267,64 @@ public class FTPServer {
     }
 
     public FTPServer() {
-        // inform the user to enter the port number
+        // inform the user to enter the address and the port number they were not given
         Scanner scanner = new Scanner(System.in);
-        System.out.println("Please input the IP address for server: ");
-        String IpAddr = scanner.nextLine();
-        System.out.println("Please input the port for server: ");
-        int port = scanner.nextInt();
+        String IpAddr = this.host;
+        if (IpAddr == null) {
+            System.out.println("Please input the IP address for server: ");
+            IpAddr = scanner.nextLine();
+        }
+        int port = this.port;
+        if (port < 0) {
+            System.out.println("Please input the port for server: ");
+            port = scanner.nextInt();
+        }
 
-        // open the socket channel
+        this.profile = TransportProfile.named(this.profileName, this.bandwidthMbps);
+        if (this.profile == null) {
+            System.err.println("Unknown transport profile " + this.profileName
+                    + ", expected `default`, `lan`, `wan` or `small-files`.");
+            System.exit(1);
+        }
+        if (!this.receiveMode.equals("copy") && !this.receiveMode.equals("zero-copy")) {
+            System.err.println("Unknown receive mode " + this.receiveMode + ", expected `copy` or `zero-copy`.");
+            System.exit(1);
+        }
+        if (!this.assignmentPolicy.equals("round-robin") && !this.assignmentPolicy.equals("least-loaded")) {
+            System.err.println("Unknown assignment policy " + this.assignmentPolicy
+                    + ", expected `round-robin` or `least-loaded`.");
+            System.exit(1);
+        }
+        if (this.bufferLength <= 0) {
+            this.bufferLength = this.profile.appBufferFor(this.rttMicros * 1000);
+        }
+
+        // open the socket channel, the accepted sockets inherit its receive buffer
         try {
             this.serverSocketChannel = ServerSocketChannel.open();
+            this.profile.apply(this.serverSocketChannel, this.rttMicros * 1000);
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println("Cannot open the server socket channel: " +e.getMessage());
             System.exit(1);
         }
+        System.out.println("Transport profile " + this.profile + ": bandwidth-delay product of "
+                + this.profile.bandwidthDelayProduct(this.rttMicros * 1000) + " byte(s), backlog of "
+                + this.profile.backlog + ", " + this.bufferLength + " byte(s) slabs, "
+                + TransportProfile.describe(this.serverSocketChannel) + ".");
 
         // bind the server socket to a port
         while (true) {
             try {
-                this.serverSocketChannel.bind(new InetSocketAddress(IpAddr, port));
+                this.serverSocketChannel.bind(new InetSocketAddress(IpAddr, port), this.profile.backlog);
                 break;
             } catch (IOException e) {
                 e.printStackTrace();
+                if (this.port >= 0) {
+                    System.err.println("Cannot bind the server on the port " + port + ": " + e.getMessage());
+                    this.closeTheServerSocketChannel();
+                    System.exit(1);
+                }
                 System.err.println("Cannot bind the server on the port " + port + ". Please assign another one: " + e.getMessage());
                 port = scanner.nextInt();
             }
@@ -168,12 +361,83 @@ public class FTPServer {
             System.exit(1);
         }
 
-        // initialize the `fileChannels` and `inputBuffers`
-        this.fileChannels = new HashMap<>();
-        this.inputBuffers = new HashMap<>();
+        // create the buffer pool with one free list per worker
+        this.bufferPool = new BufferPool(this.bufferLength, this.maxOffHeapBytes, Math.max(1, this.workerCount));
+
+        // create the disk writers shared by all workers, and the committer syncing their files in batches
+        if (!this.durability.equals("none") && !this.durability.equals("fsync-on-close")
+                && !this.durability.equals("group-commit")) {
+            System.err.println("Unknown durability policy " + this.durability
+                    + ", expected `none`, `fsync-on-close` or `group-commit`.");
+            this.closeTheSelector();
+            this.closeTheServerSocketChannel();
+            System.exit(1);
+        }
+        if (this.durability.equals("group-commit")) {
+            this.groupCommitter = new GroupCommitter(Math.max(1, this.groupCommitMillis), this.writePipelineMetrics);
+        }
+        this.diskWriters = new DiskWriter[Math.max(1, this.diskWriterCount)];
+        for (int i = 0; i < this.diskWriters.length; i++) {
+            this.diskWriters[i] = new DiskWriter(i, Math.max(1, this.writeQueueCapacity), this.writePipelineMetrics,
+                    this.bufferPool, Math.max(0, this.coalesceBytes), Math.max(0, this.stagingBuffers), this.durability,
+                    this.groupCommitter);
+        }
+
+        // open the chunk store, its index is reloaded from the disk
+        try {
+            this.chunkStore = new ChunkStore(new File(this.chunkStoreDirectory), !this.durability.equals("none"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot open the chunk store " + this.chunkStoreDirectory + ": " + e.getMessage());
+            this.stopAllWorkers();
+            this.closeTheSelector();
+            this.closeTheServerSocketChannel();
+            System.exit(1);
+        }
+
+        this.signatureGenerator = new SignatureGenerator(Math.max(1, this.signatureThreadCount));
+
+        this.regionCache = new MappedRegionCache(this.mapCacheBytes, Math.max(1 << 16, this.mapRegionSize),
+                Math.max(1, this.cacheLoaderCount));
+
+        this.bandwidthLimiter = new BandwidthLimiter(this.globalRate, this.clientRate, this.connectionRate,
+                this.fairQuantum, this.clientWeights);
+
+        this.admissionControl = new AdmissionControl(this.selector, Math.max(1, this.maxConnections),
+                this.headerTimeoutMillis, this.idleTimeoutMillis, this.minThroughput, this.throughputWindowMillis,
+                this.connectionCheckMillis);
+
+        // open the worker reactors
+        this.workers = new SelectorWorker[Math.max(1, this.workerCount)];
+        for (int i = 0; i < this.workers.length; i++) {
+            try {
+                this.workers[i] = new SelectorWorker(i, this.bufferPool, this.receiveMode.equals("zero-copy"),
+                        this.transferLength, Math.max(1, this.writeQueueCapacity), this.diskWriters,
+                        this.writePipelineMetrics, this.transferRegistry, this.transferMetrics,
+                        Math.max(1, this.sessionFileHandles), this.regionCache, this.bandwidthLimiter,
+                        this.admissionControl, this.chunkStore, this.signatureGenerator);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot open the selector of the worker " + i + ": " + e.getMessage());
+                this.stopAllWorkers();
+                this.closeTheSelector();
+                this.closeTheServerSocketChannel();
+                System.exit(1);
+            }
+        }
     }
 
     public static void main(String args[]) {
+        try {
+            if (!CommandLine.apply("ftp.server", SETTINGS, args)) {
+                System.out.println(CommandLine.usage("FTPServer", "ftp.server", SETTINGS));
+                return;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Invalid command line: " + e.getMessage());
+            System.err.println(CommandLine.usage("FTPServer", "ftp.server", SETTINGS));
+            System.exit(1);
+        }
         try {
             FTPServer server = new FTPServer();
             server.launch();
@@ -184,6 +448,23 @@ public class FTPServer {
 
     public void launch() {
         System.out.println("The server was started successfully on the port " + this.serverSocketChannel.socket().getLocalPort());
+
+        // start the disk writers and the worker reactors; this thread only accepts connections from now on
+        for (DiskWriter diskWriter : this.diskWriters) {
+            diskWriter.start();
+        }
+        if (this.groupCommitter != null) {
+            this.groupCommitter.start();
+        }
+        for (SelectorWorker worker : this.workers) {
+            worker.start();
+        }
+        this.registerTheMetrics();
+        this.startTheSummaryLogger();
+        System.out.println(this.workers.length + " worker(s) and " + this.diskWriters.length
+                + " disk writer(s) started, assignment policy: " + this.assignmentPolicy
+                + ", receive mode: " + this.receiveMode + ", durability: " + this.durability);
+
         while (true) {
             try {
                 this.selector.select();
@@ -199,122 +480,64 @@ public class FTPServer {
                 iterator.remove();
                 if (key.isAcceptable()) {
                     this.accept(key);
-                } else if (key.isReadable()) {
-                    this.readAndWrite(key);
                 }
             }
-        }
-    }
 
-    private int readAndWrite(SelectionKey key) {
-        // get the socket channel and the file channel
-        SocketChannel socketChannel = (SocketChannel) key.channel();
-        if (socketChannel == null) {
-            System.err.println("Null socket channel.");
-            return StatusCode.Fail;
-        }
-        FileChannel fileChannel = this.fileChannels.get(socketChannel);
-
-        // open and name the file
-        if (fileChannel == null) {
-            // read file name
-            String fileName;
-            if((fileName = readFileName(socketChannel)) == null) {
-                System.err.println("Did not read the file name this time.");
-                return StatusCode.Fail;
+            // accept again once a worker closed a connection
+            SelectionKey acceptKey = this.serverSocketChannel.keyFor(this.selector);
+            if (acceptKey.interestOps() == 0 && !this.admissionControl.isAcceptPaused()) {
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
             }
-
-            // add file channel to the map
-            try {
-                fileChannel = new RandomAccessFile(new File(fileName), "rw").getChannel();
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-                System.err.println("Cannot open the file: " + e.getMessage());
-            }
-            if (fileChannel == null)
-            {
-                System.err.println("Cannot open the file.");
-                return StatusCode.Fail;
-            }
-            this.fileChannels.put(socketChannel, fileChannel);
-        }
-
-        // get the inputBuffer
-        ByteBuffer inputBuffer = this.inputBuffers.get(socketChannel);
-        if (inputBuffer == null) {
-            System.err.println("Null input buffer.");
-            this.closeASocketChannel(socketChannel);
-            return StatusCode.Fail;
         }
+    }
 
-        // read the data from the socket channel
-        boolean isEndOfStream = false;
-        try {
-            // read the data
-            if(this.printNumberOfBytesReceived(socketChannel.read(inputBuffer)) == -1) {
-                this.onlyCloseASocketChannel(socketChannel);
-                isEndOfStream = true;
+    private SelectorWorker nextWorker() {
+        if (this.assignmentPolicy.equals("least-loaded")) {
+            SelectorWorker leastLoaded = this.workers[0];
+            for (SelectorWorker worker : this.workers) {
+                if (worker.getConnectionCount() < leastLoaded.getConnectionCount()) {
+                    leastLoaded = worker;
+                }
             }
-
-            // switch to the read mode
-            inputBuffer.flip();
-
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.err.println(socketChannel + "Cannot read data from the socket channel: " + e.getMessage());
-            this.closeASocketChannel(socketChannel);
-            return StatusCode.Fail;
+            return leastLoaded;
         }
 
-        // write received data to the file
-        try {
-            fileChannel.write(inputBuffer);
-
-            // switch to the write mode
-            inputBuffer.compact();
+        // round-robin
+        SelectorWorker worker = this.workers[this.nextWorker];
+        this.nextWorker = (this.nextWorker + 1) % this.workers.length;
+        return worker;
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-            System.err.println(fileChannel + " Cannot write to the file: " + e.getMessage());
-            this.closeASocketChannel(socketChannel);
+    private int accept(SelectionKey key) {
+        // leave the connection in the backlog while too many are open
+        if (!this.admissionControl.admit()) {
+            key.interestOps(0);
             return StatusCode.Fail;
         }
 
-        // switch to the read mode
-        inputBuffer.flip();
+        SocketChannel socketChannel = null;
+        // accept the socket channel
+        try {
+            socketChannel = ((ServerSocketChannel) key.channel()).accept();
+            if (socketChannel == null) {
+                // another pass already accepted the pending connection
+                this.admissionControl.release();
+                return StatusCode.Fail;
+            }
 
-        // flush the remaining data in the inputBuffer to the file
-        while (inputBuffer.remaining() != 0) {
+            // tune the socket to the profile before its first read
             try {
-                fileChannel.write(inputBuffer);
+                this.profile.apply(socketChannel, this.rttMicros * 1000);
             } catch (IOException e) {
                 e.printStackTrace();
-                System.err.println(fileChannel + " Cannot write to the file: " + e.getMessage());
-                this.closeASocketChannel(socketChannel);
-                return StatusCode.Fail;
+                System.err.println(socketChannel + "Cannot tune the socket channel, it keeps the options of the system: " + e.getMessage());
             }
-        }
-
-        // switch to the write mode
-        inputBuffer.compact();
-
-        // test the flag to judge whether close the file channel
-        if (isEndOfStream) {
-            this.closeASocketChannel(socketChannel);
-        }
-
-        return StatusCode.SUCCESS;
-    }
-
-    private int accept(SelectionKey key) {
-        SocketChannel socketChannel = null;
-        // accept the socket channel
-        try {
-            socketChannel = ((ServerSocketChannel) key.channel()).accept();
-            System.out.println(socketChannel.getRemoteAddress() + " has connected to the server.");
+            System.out.println(socketChannel.getRemoteAddress() + " has connected to the server ("
+                    + TransportProfile.describe(socketChannel) + ").");
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println("Cannot establish the socket channel for the current connection: " + e.getMessage());
+            this.admissionControl.release();
             return StatusCode.Fail;
         }
 
@@ -325,85 +548,13 @@ public class FTPServer {
             e.printStackTrace();
             System.err.println(socketChannel + "Cannot set the current socket channel to the non-blocking mode: " +e.getMessage());
             this.closeASocketChannel(socketChannel);
+            this.admissionControl.release();
             return StatusCode.Fail;
         }
 
-        // register the socket channel to the selector
-        try {
-            socketChannel.register(this.selector, SelectionKey.OP_READ);
-        } catch (ClosedChannelException e) {
-            e.printStackTrace();
-            System.err.println(socketChannel + "Cannot register the current socket channel to the selector: " + e.getMessage());
-            this.closeASocketChannel(socketChannel);
-            return StatusCode.Fail;
-        }
-
-        // add the socket channel to the `fileChannels`
-        fileChannels.put(socketChannel, null);
-
-        // bind an input buffer to the socket channel
-        ByteBuffer inputBuffer = ByteBuffer.allocate(this.bufferLength);
-        if (inputBuffer == null) {
-            System.err.println("Cannot allocate the memory to the ByteBuffer.");
-            this.closeASocketChannel(socketChannel);
-            return StatusCode.Fail;
-        }
-        this.inputBuffers.put(socketChannel, inputBuffer);
+        // hand the socket channel over to a worker reactor
+        this.nextWorker().assign(socketChannel);
 
         return StatusCode.SUCCESS;
     }
-
-    private String readFileName(SocketChannel socketChannel) {
-        // get the inputBuffer
-        ByteBuffer inputBuffer = this.inputBuffers.get(socketChannel);
-
-        // test the inputBuffer
-        if (inputBuffer == null) {
-            System.err.println("Null input buffer.");
-            return null;
-        }
-
-        // read the first batch of data from socket input buffer in one go
-        try {
-            this.printNumberOfBytesReceived(socketChannel.read(inputBuffer));
-        } catch (IOException e) {
-            e.printStackTrace();
-
-        }
-
-        // switch to the read mode
-        inputBuffer.flip();
-
-        // test the file name length
-        if (inputBuffer.remaining() < 1)
-        {
-            // switch to the write mode
-            inputBuffer.compact();
-            // return a null pointer
-            return null;
-        }
-
-        // get the file name length
-        int fileNameLength = Byte.toUnsignedInt(inputBuffer.get());
-
-        // test the file name
-        if (inputBuffer.remaining() < fileNameLength) {
-            // put the `fileNameLength` back to the buffer
-            inputBuffer.position(inputBuffer.position() - 1);
-            // switch to the write mode
-            inputBuffer.compact();
-            // return a null pointer
-            return null;
-        }
-
-        // get the file name according to `fileNameLength`
-        byte[] fileNameByteArray = new byte[fileNameLength];
-        inputBuffer.get(fileNameByteArray, 0, fileNameLength);
-        String fileName = new String(fileNameByteArray, StandardCharsets.US_ASCII);
-
-        // switch to the write mode
-        inputBuffer.compact();
-
-        return fileName;
-    }
 }
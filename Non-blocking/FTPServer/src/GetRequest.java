@@ -0,0 +1,101 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A download request, sent by the client in place of a {@link TransferHeader}:
+ *
+ * <pre>
+ * request:  u8 0, u8 {@link #GET_VERSION}, u16 name length, UTF-8 name, i64 range offset, i64 range length
+ *           (-1 for the rest of the file)
+ * reply:    u8 status, i64 file size, i64 range length, then the bytes of the range
+ * </pre>
+ *
+ * A range running past the end of the file is cut at the end, the reply carries the length actually sent. The
+ * server closes the connection once the range is sent; the file size lets a client fetch the other ranges of the
+ * file in parallel. Only the files of the server directory can be fetched. This class is shared by the client and
+ * the server.
+ */
+public class GetRequest {
+
+    public static final int GET_VERSION = 3;
+
+    public static final int STATUS_OK = 0;
+
+    public static final int STATUS_NOT_FOUND = 1;
+
+    public static final int STATUS_INVALID_RANGE = 2;
+
+    public static final int REPLY_LENGTH = 1 + 8 + 8;
+
+    // size of the request without the name
+    private static final int FIXED_LENGTH = 1 + 1 + 2 + 8 + 8;
+
+    public final String fileName;
+
+    public final long offset;
+
+    // -1 for the rest of the file
+    public final long length;
+
+    public GetRequest(String fileName, long offset, long length) {
+        this.fileName = fileName;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Returns true when the buffer in read mode starts with a download request.
+     */
+    public static boolean startsAGet(ByteBuffer buffer) {
+        return buffer.remaining() >= 2 && buffer.get(buffer.position()) == 0
+                && Byte.toUnsignedInt(buffer.get(buffer.position() + 1)) == GET_VERSION;
+    }
+
+    /**
+     * Writes the request into the buffer in write mode.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        byte[] name = this.fileName.getBytes(StandardCharsets.UTF_8);
+        buffer.put((byte) 0);
+        buffer.put((byte) GET_VERSION);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        buffer.putLong(this.offset);
+        buffer.putLong(this.length);
+    }
+
+    /**
+     * Parses a request from the buffer in read mode. Returns null and leaves the position untouched when the buffer
+     * does not hold the whole request yet.
+     */
+    public static GetRequest parse(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < FIXED_LENGTH) {
+            return null;
+        }
+        int start = buffer.position();
+        int nameLength = Short.toUnsignedInt(buffer.getShort(start + 2));
+        if (nameLength == 0 || nameLength > TransferHeader.MAX_NAME_LENGTH) {
+            throw new ProtocolException("Invalid file name length " + nameLength);
+        }
+        if (buffer.remaining() < FIXED_LENGTH + nameLength) {
+            return null;
+        }
+
+        buffer.position(start + 4);
+        byte[] name = new byte[nameLength];
+        buffer.get(name);
+        long offset = buffer.getLong();
+        long length = buffer.getLong();
+        if (offset < 0 || length < -1) {
+            throw new ProtocolException("Invalid range of " + length + " byte(s) at " + offset);
+        }
+        return new GetRequest(new String(name, StandardCharsets.UTF_8), offset, length);
+    }
+
+    @Override
+    public String toString() {
+        return "GET " + this.fileName + " [" + this.offset + ", "
+                + (this.length < 0 ? "end" : Long.toString(this.offset + this.length)) + ")";
+    }
+}
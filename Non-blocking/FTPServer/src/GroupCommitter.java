@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * The `group-commit` durability policy. The disk writers hand over the files of the connections whose last write is
+ * done, and this thread syncs them in batches, one every `intervalMillis` at most: every file of the batch, then the
+ * server directory once for the part files committed by the batch, and only then are the verdicts of the batch sent.
+ * The disk writers keep writing while a batch is synced, and a verdict waits for one interval at most before its
+ * sync starts.
+ */
+public class GroupCommitter implements Runnable {
+
+    private final int intervalMillis;
+
+    private final WritePipelineMetrics metrics;
+
+    private final LinkedBlockingQueue<Connection> pending = new LinkedBlockingQueue<>();
+
+    private volatile boolean running = true;
+
+    private Thread thread;
+
+    public GroupCommitter(int intervalMillis, WritePipelineMetrics metrics) {
+        this.intervalMillis = intervalMillis;
+        this.metrics = metrics;
+    }
+
+    public void start() {
+        this.thread = new Thread(this, "group-committer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public void stop() {
+        this.running = false;
+        if (this.thread != null) {
+            this.thread.interrupt();
+        }
+    }
+
+    /**
+     * Queues the file of the connection, written and checked, to be synced and closed by the next batch.
+     */
+    public void submit(Connection connection) {
+        this.pending.add(connection);
+    }
+
+    @Override
+    public void run() {
+        ArrayList<Connection> batch = new ArrayList<>();
+        long lastBatchNanos = 0;
+        while (this.running) {
+            // wait for the first file, then until one interval has passed since the last batch for the others to join
+            try {
+                batch.add(this.pending.take());
+                long waitNanos = lastBatchNanos + this.intervalMillis * 1_000_000L - System.nanoTime();
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+            lastBatchNanos = System.nanoTime();
+            this.pending.drainTo(batch);
+
+            for (Connection connection : batch) {
+                DiskWriter.sync(connection, this.metrics);
+            }
+            for (Connection connection : batch) {
+                connection.closeTheFileChannel();
+            }
+            this.syncTheDirectory();
+            for (Connection connection : batch) {
+                if (connection.awaitingVerdict) {
+                    connection.worker.execute(() -> connection.worker.sendTheVerdict(connection));
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Syncs the server directory so that the part files renamed by the batch survive a crash.
+     */
+    private void syncTheDirectory() {
+        long startNanos = System.nanoTime();
+        try {
+            Transfer.syncTheDirectory();
+        } catch (IOException e) {
+            // some platforms cannot open a directory, the renames are then as durable as the OS makes them
+            return;
+        }
+        this.metrics.synced(System.nanoTime() - startNanos);
+    }
+}
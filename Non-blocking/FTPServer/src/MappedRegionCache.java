@@ -0,0 +1,270 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A bounded cache of the files served to downloads, shared by the selector workers. Files are mapped read-only in
+ * aligned regions of `regionSize` bytes, so a range only maps the regions it spans and a large file is never mapped
+ * at once. A region is keyed by the canonical path, the last modification time and the size of its file, so a file
+ * replaced by an upload is never served from the regions of the previous version, which are dropped as soon as the
+ * new one is seen.
+ *
+ * A missing region is mapped and read into memory by a loader thread, never by a selector worker. The downloads
+ * asking for a region while it is loaded wait for that single load, so any number of concurrent downloads of a cold
+ * file read it from the disk once. Once the resident bytes exceed `capacity`, the least recently used regions are
+ * dropped; a dropped region is unmapped by the garbage collector once no download holds a slice of it any more.
+ */
+public class MappedRegionCache implements MappedRegionCacheMBean {
+
+    /**
+     * A region of a file version, loading until `buffer` or `error` is set.
+     */
+    private static class Region {
+
+        final String key;
+
+        final String versionKey;
+
+        MappedByteBuffer buffer;
+
+        IOException error;
+
+        // run once the region is loaded or failed to load, with the error if any
+        List<Consumer<IOException>> waiters = new ArrayList<>();
+
+        Region(String key, String versionKey) {
+            this.key = key;
+            this.versionKey = versionKey;
+        }
+
+        boolean isLoading() {
+            return this.buffer == null && this.error == null;
+        }
+    }
+
+    private final long capacity;
+
+    private final int regionSize;
+
+    private final ExecutorService loaders;
+
+    // regions by version and index, in access order
+    private final LinkedHashMap<String, Region> regions = new LinkedHashMap<>(16, 0.75f, true);
+
+    // the version key of the last version seen of each path
+    private final Map<String, String> versions = new LinkedHashMap<>();
+
+    private long residentBytes;
+
+    private long hits;
+
+    private long misses;
+
+    // lookups that waited for a load already in flight instead of reading the region again
+    private long coalesced;
+
+    private long evictions;
+
+    private long loadFailures;
+
+    public MappedRegionCache(long capacity, int regionSize, int loaderCount) {
+        this.capacity = capacity;
+        this.regionSize = regionSize;
+        AtomicInteger loaderId = new AtomicInteger();
+        this.loaders = Executors.newFixedThreadPool(loaderCount, task -> {
+            Thread thread = new Thread(task, "region-loader-" + loaderId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void stop() {
+        this.loaders.shutdownNow();
+    }
+
+    /**
+     * Returns a read-only buffer (in read mode) over the bytes of the file from `position` up to `end` or up to the
+     * end of the region holding `position`, whichever comes first. The file is `fileSize` bytes long, was last
+     * modified at `lastModified` and `path` is its canonical path.
+     *
+     * Returns null when the region is not resident yet: `onLoaded` is then run by a loader thread once the region is
+     * loaded, with null, or once it failed to load, with the error. A failed region is only reported to the downloads
+     * waiting for it, the next lookup loads it again.
+     */
+    public synchronized ByteBuffer slice(String path, long lastModified, long fileSize, long position, long end,
+                                         Consumer<IOException> onLoaded) {
+        long index = position / this.regionSize;
+        String versionKey = path + "@" + lastModified + ":" + fileSize;
+        String key = versionKey + "#" + index;
+
+        Region region = this.regions.get(key);
+        if (region != null && region.buffer != null) {
+            this.hits++;
+            int start = (int) (position - index * this.regionSize);
+            int length = (int) Math.min(end - position, region.buffer.capacity() - start);
+            return region.buffer.slice(start, length).asReadOnlyBuffer();
+        }
+        if (region != null && region.isLoading()) {
+            this.coalesced++;
+            region.waiters.add(onLoaded);
+            return null;
+        }
+
+        // drop the regions of the previous version of the file
+        String previousVersion = this.versions.put(path, versionKey);
+        if (previousVersion != null && !previousVersion.equals(versionKey)) {
+            this.dropTheVersion(previousVersion);
+        }
+
+        this.misses++;
+        Region loading = new Region(key, versionKey);
+        loading.waiters.add(onLoaded);
+        this.regions.put(key, loading);
+        this.loaders.execute(() -> this.load(loading, path, lastModified, fileSize, index));
+        return null;
+    }
+
+    /**
+     * Maps the region and reads it into memory on a loader thread, then wakes up the downloads waiting for it.
+     */
+    private void load(Region region, String path, long lastModified, long fileSize, long index) {
+        MappedByteBuffer buffer = null;
+        IOException error = null;
+        long offset = index * this.regionSize;
+        File file = new File(path);
+        try (FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel()) {
+            // a mapping past the end of a file truncated since would fault when sent
+            if (fileChannel.size() != fileSize || file.lastModified() != lastModified) {
+                throw new IOException(path + " changed while being served");
+            }
+            // the mapping outlives the file channel
+            buffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(this.regionSize, fileSize - offset));
+            buffer.load();
+        } catch (IOException e) {
+            error = e;
+        }
+
+        List<Consumer<IOException>> waiters;
+        synchronized (this) {
+            waiters = region.waiters;
+            region.waiters = null;
+            if (error != null) {
+                region.error = error;
+                this.loadFailures++;
+                this.regions.remove(region.key, region);
+            } else {
+                region.buffer = buffer;
+                // a region of a version dropped while it was loaded is only handed to its waiters
+                if (this.regions.get(region.key) == region) {
+                    this.residentBytes += buffer.capacity();
+                    this.evict(region);
+                }
+            }
+        }
+        for (Consumer<IOException> waiter : waiters) {
+            waiter.accept(error);
+        }
+    }
+
+    /**
+     * Drops the least recently used loaded regions while the resident bytes exceed the capacity, the region just
+     * loaded is kept.
+     */
+    private void evict(Region newest) {
+        Iterator<Region> iterator = this.regions.values().iterator();
+        while (this.residentBytes > this.capacity && iterator.hasNext()) {
+            Region region = iterator.next();
+            if (region == newest || region.buffer == null) {
+                continue;
+            }
+            iterator.remove();
+            this.residentBytes -= region.buffer.capacity();
+            this.evictions++;
+        }
+    }
+
+    private void dropTheVersion(String versionKey) {
+        Iterator<Region> iterator = this.regions.values().iterator();
+        while (iterator.hasNext()) {
+            Region region = iterator.next();
+            if (region.versionKey.equals(versionKey)) {
+                iterator.remove();
+                if (region.buffer != null) {
+                    this.residentBytes -= region.buffer.capacity();
+                    this.evictions++;
+                }
+            }
+        }
+    }
+
+    @Override
+    public long getCapacity() {
+        return this.capacity;
+    }
+
+    @Override
+    public synchronized long getResidentBytes() {
+        return this.residentBytes;
+    }
+
+    @Override
+    public synchronized int getRegionCount() {
+        return this.regions.size();
+    }
+
+    @Override
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    @Override
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    @Override
+    public synchronized long getCoalescedLoads() {
+        return this.coalesced;
+    }
+
+    @Override
+    public synchronized double getHitRatio() {
+        long lookups = this.hits + this.misses + this.coalesced;
+        return lookups == 0 ? 0 : (double) this.hits / lookups;
+    }
+
+    @Override
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    @Override
+    public synchronized long getLoadFailures() {
+        return this.loadFailures;
+    }
+
+    @Override
+    public String getSummary() {
+        return this.toString();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("mapped region cache: %d region(s), %d byte(s) resident of %d, hit ratio %.3f "
+                        + "(%d hit(s), %d miss(es), %d coalesced), %d eviction(s), %d failed load(s)",
+                this.regions.size(), this.residentBytes, this.capacity, this.getHitRatio(), this.hits, this.misses,
+                this.coalesced, this.evictions, this.loadFailures);
+    }
+}
@@ -0,0 +1,25 @@
+/**
+ * The JMX view of {@link MappedRegionCache}.
+ */
+public interface MappedRegionCacheMBean {
+
+    long getCapacity();
+
+    long getResidentBytes();
+
+    int getRegionCount();
+
+    long getHits();
+
+    long getMisses();
+
+    long getCoalescedLoads();
+
+    double getHitRatio();
+
+    long getEvictions();
+
+    long getLoadFailures();
+
+    String getSummary();
+}
@@ -0,0 +1,1821 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A worker reactor. Each worker owns one selector and the state of every connection assigned to it.
+ * The worker only reads the sockets; the file writes are queued on the {@link DiskWriter} threads, except in the
+ * zero-copy receive mode where `transferFrom()` moves the data from the socket to the file on this thread. A session
+ * connection carries many streams (see {@link SessionFrame}), each with its own file channel; their frames are
+ * always received through the disk writers. The chunks of a compressed range are inflated on this thread into the
+ * buffers queued on the disk writers, whatever the receive mode. A download connection (see {@link GetRequest}) is
+ * sent slices of the mapped regions of its file whenever its socket can take more; a region that is not resident yet
+ * is loaded by the {@link MappedRegionCache}, which hands the download back to this worker once it is. A deduplicated
+ * upload (see {@link ChunkManifest}) sends the manifest of its chunks first; the worker answers with the chunks the
+ * {@link ChunkStore} does not hold, then receives them like the data of a range, into the pack of the store. The
+ * block signatures asked for before a delta upload (see {@link SignatureRequest}) are computed by the
+ * {@link SignatureGenerator}; the copy chunks of the delta range itself are copied from the file held by the server
+ * into its part file by the disk writers, in order with its literal bytes.
+ */
+public class SelectorWorker implements Runnable {
+
+    // `debug` to log every chunk read from the sockets
+    private static final boolean debug = System.getProperty("ftp.server.logLevel", "info").equals("debug");
+
+    // `false` to let the part files grow with their writes instead of setting their length once they are opened
+    private static final boolean preallocate = Boolean.parseBoolean(System.getProperty("ftp.server.preallocate", "true"));
+
+    // a copy chunk waits for more data or for the disk writer
+    private static final int COPY_WAITING = 1;
+
+    private final int id;
+
+    private Selector selector;
+
+    private BufferPool bufferPool;
+
+    // receive straight from the socket into the file with `transferFrom()` instead of queueing heap buffers
+    private boolean zeroCopy;
+
+    // maximum number of bytes moved by one `transferFrom()` call
+    private int transferLength;
+
+    // small buffer to tell the end of stream from an empty socket, `transferFrom()` returns 0 for both
+    private ByteBuffer probeBuffer;
+
+    // maximum number of buffers of a connection queued on its disk writer before reading is paused
+    private int writeQueueCapacity;
+
+    private DiskWriter[] diskWriters;
+
+    private int nextDiskWriter;
+
+    private WritePipelineMetrics metrics;
+
+    private TransferRegistry transferRegistry;
+
+    private TransferMetrics transferMetrics;
+
+    // files a session may have open at once
+    private int sessionFileHandles;
+
+    // mapped regions of the files served to downloads, shared by all workers
+    private MappedRegionCache regionCache;
+
+    // bandwidth limits shared by all workers
+    private BandwidthLimiter bandwidthLimiter;
+
+    // bounds on the connections shared by the acceptor and all workers
+    private AdmissionControl admissionControl;
+
+    // chunks of the deduplicated uploads shared by all workers
+    private ChunkStore chunkStore;
+
+    // signs the files asked for before the delta uploads, shared by all workers
+    private SignatureGenerator signatureGenerator;
+
+    // timers of this worker's connections, run after every select
+    private final TimerWheel timerWheel = new TimerWheel(1_000_000, 512);
+
+    private HashMap<SocketChannel, Connection> connections;
+
+    // tasks submitted by other threads, run on this worker's thread
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+
+    // number of connections owned by this worker, read by the acceptor for the least-loaded assignment
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    private volatile boolean running = true;
+
+    private Thread thread;
+
+    public SelectorWorker(int id, BufferPool bufferPool, boolean zeroCopy, int transferLength, int writeQueueCapacity,
+                          DiskWriter[] diskWriters, WritePipelineMetrics metrics, TransferRegistry transferRegistry,
+                          TransferMetrics transferMetrics, int sessionFileHandles, MappedRegionCache regionCache,
+                          BandwidthLimiter bandwidthLimiter, AdmissionControl admissionControl,
+                          ChunkStore chunkStore, SignatureGenerator signatureGenerator)
+            throws IOException {
+        this.id = id;
+        this.bufferPool = bufferPool;
+        this.zeroCopy = zeroCopy;
+        this.transferLength = transferLength;
+        this.probeBuffer = ByteBuffer.allocateDirect(1 << 10);
+        this.writeQueueCapacity = writeQueueCapacity;
+        this.diskWriters = diskWriters;
+        this.nextDiskWriter = id;
+        this.metrics = metrics;
+        this.transferRegistry = transferRegistry;
+        this.transferMetrics = transferMetrics;
+        this.sessionFileHandles = sessionFileHandles;
+        this.regionCache = regionCache;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.admissionControl = admissionControl;
+        this.chunkStore = chunkStore;
+        this.signatureGenerator = signatureGenerator;
+        this.selector = Selector.open();
+        this.connections = new HashMap<>();
+    }
+
+    public void start() {
+        this.thread = new Thread(this, "selector-worker-" + this.id);
+        this.thread.start();
+    }
+
+    public void stop() {
+        this.running = false;
+        this.selector.wakeup();
+        if (this.thread != null) {
+            try {
+                this.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    public TransferRegistry getTransferRegistry() {
+        return this.transferRegistry;
+    }
+
+    public ChunkStore getChunkStore() {
+        return this.chunkStore;
+    }
+
+    public int getConnectionCount() {
+        return this.connectionCount.get();
+    }
+
+    /**
+     * Runs the task on this worker's thread. Safe to call from any thread.
+     */
+    public void execute(Runnable task) {
+        this.pendingTasks.add(task);
+        this.selector.wakeup();
+    }
+
+    /**
+     * Hands an accepted socket channel over to this worker. Called from the acceptor thread; the channel is
+     * registered on the worker's own thread because `register()` blocks while the selector is selecting.
+     */
+    public void assign(SocketChannel socketChannel) {
+        this.connectionCount.incrementAndGet();
+        this.execute(() -> this.register(socketChannel));
+    }
+
+    /**
+     * Counts the bytes read from the socket of the connection; they are only logged at the debug level.
+     */
+    private int countBytesReceived(Connection connection, int bytesReceived) {
+        this.transferMetrics.received(connection, bytesReceived);
+        if (debug) {
+            System.out.println("[" + new Date() + "] " + bytesReceived + " byte(s) was(were) received.");
+        }
+        return bytesReceived;
+    }
+
+    /**
+     * Reads from the socket of the connection into the buffer, no more than its bandwidth limits allow. Returns the
+     * bytes read, or -1 at the end of the stream; returns 0 without reading when one of its buckets is empty, the
+     * connection is then throttled.
+     */
+    private int receive(Connection connection, ByteBuffer buffer) throws IOException {
+        long nowNanos = System.nanoTime();
+        int allowance = this.bandwidthLimiter.allowance(connection, nowNanos);
+        if (allowance == 0) {
+            this.throttle(connection, nowNanos);
+            return 0;
+        }
+
+        int limit = buffer.limit();
+        if (buffer.remaining() > allowance) {
+            buffer.limit(buffer.position() + allowance);
+        }
+        int bytesReceived;
+        try {
+            bytesReceived = connection.socketChannel.read(buffer);
+        } finally {
+            buffer.limit(limit);
+        }
+        this.bandwidthLimiter.consume(connection, bytesReceived);
+        return this.countBytesReceived(connection, bytesReceived);
+    }
+
+    /**
+     * Stops reading the socket of the connection until its buckets have refilled, the timer wheel re-arms it.
+     */
+    private void throttle(Connection connection, long nowNanos) {
+        if (connection.throttled) {
+            return;
+        }
+        connection.throttled = true;
+        connection.throttleCount++;
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        long delayNanos = this.bandwidthLimiter.nanosUntilAllowance(connection, nowNanos);
+        connection.throttleTimer = this.timerWheel.schedule(delayNanos, () -> this.unthrottle(connection));
+    }
+
+    private void unthrottle(Connection connection) {
+        connection.throttled = false;
+        connection.throttleTimer = null;
+        if (!connection.key.isValid()) {
+            return;
+        }
+
+        // read again unless the connection stopped reading for another reason meanwhile
+        if (!connection.readPaused && !connection.waitingForAFile
+                && (connection.streams != null || !connection.awaitingVerdict)) {
+            connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    private void closeAllConnections() {
+        // copy the connections since closing a connection removes it from the map
+        for (Connection connection : new ArrayList<>(this.connections.values())) {
+            this.closeAConnection(connection);
+        }
+    }
+
+    private void onlyCloseASocketChannel(SocketChannel socketChannel) {
+        if (socketChannel != null) {
+            try {
+                // close the socket channel
+                socketChannel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("[" + new Date() + "]" + socketChannel + "Cannot close the current socket channel: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Closes the socket channel and queues the closing of the file channel after the pending writes. Closing a
+     * stream closes its whole session.
+     */
+    void closeAConnection(Connection connection) {
+        if (connection.session != null) {
+            connection = connection.session;
+        }
+
+        // the connection may already be closed by an earlier failure
+        if (this.connections.remove(connection.socketChannel) == null) {
+            return;
+        }
+        this.connectionCount.decrementAndGet();
+        this.admissionControl.release();
+        this.transferMetrics.connectionClosed();
+        this.bandwidthLimiter.release(connection);
+        if (connection.throttleTimer != null) {
+            connection.throttleTimer.cancel();
+        }
+        if (connection.watchdogTimer != null) {
+            connection.watchdogTimer.cancel();
+        }
+
+        // close the socket channel
+        this.onlyCloseASocketChannel(connection.socketChannel);
+        this.releaseTheInputBuffer(connection);
+        this.releaseTheChunkBuffer(connection);
+
+        // close the file channel once the disk writer has drained the queue of the connection
+        this.closeTheFileChannel(connection);
+        if (connection.streams != null) {
+            for (Connection stream : connection.streams.values()) {
+                this.releaseTheInputBuffer(stream);
+                this.closeTheFileChannel(stream);
+            }
+        }
+    }
+
+    private void closeTheFileChannel(Connection connection) {
+        if (connection.diskWriter != null && !connection.fileClosing) {
+            connection.fileClosing = true;
+            connection.diskWriter.submitClose(connection);
+        }
+    }
+
+    private void closeTheSelector() {
+        if (this.selector != null) {
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot close the selector: " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try {
+                // wake up for the next timer, if any
+                this.selector.select(this.timerWheel.millisUntilNextTimer(System.nanoTime()));
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot perform `select()` method on the selector: " + e.getMessage());
+                break;
+            }
+
+            // run the tasks submitted since the last pass and the timers due
+            Runnable task;
+            while ((task = this.pendingTasks.poll()) != null) {
+                task.run();
+            }
+            this.timerWheel.advance(System.nanoTime());
+
+            Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (key.isValid() && key.isWritable()) {
+                    this.writeTheReply(key);
+                }
+                if (key.isValid() && key.isReadable()) {
+                    this.readAndQueue(key);
+                }
+            }
+        }
+
+        // free resources
+        this.closeAllConnections();
+        this.closeTheSelector();
+    }
+
+    private void register(SocketChannel socketChannel) {
+        // register the socket channel to the selector
+        Connection connection = new Connection(socketChannel, this);
+        try {
+            connection.key = socketChannel.register(this.selector, SelectionKey.OP_READ);
+        } catch (ClosedChannelException e) {
+            e.printStackTrace();
+            System.err.println(socketChannel + "Cannot register the current socket channel to the selector: " + e.getMessage());
+            this.onlyCloseASocketChannel(socketChannel);
+            this.connectionCount.decrementAndGet();
+            this.admissionControl.release();
+            return;
+        }
+
+        // share the bucket of the client address
+        try {
+            connection.client = this.bandwidthLimiter.clientOf(
+                    ((InetSocketAddress) socketChannel.getRemoteAddress()).getAddress());
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(socketChannel + "Cannot get the remote address: " + e.getMessage());
+        }
+
+        this.connections.put(socketChannel, connection);
+        this.transferMetrics.connectionOpened();
+
+        // watch the connection until it closes
+        connection.lastProgressNanos = connection.windowStartNanos = connection.startNanos;
+        connection.watchdogTimer = this.timerWheel.schedule(this.admissionControl.checkIntervalNanos,
+                () -> this.watch(connection));
+    }
+
+    /**
+     * Closes the connection if it has not sent its header in time, or if it is idle or too slow while this worker
+     * waits for it, otherwise watches it again after the check interval. Runs on the timer wheel.
+     */
+    private void watch(Connection connection) {
+        connection.watchdogTimer = null;
+        if (!connection.key.isValid()) {
+            return;
+        }
+        AdmissionControl limits = this.admissionControl;
+        long nowNanos = System.nanoTime();
+
+        // a connection is started by its header, its session preamble, its download request, its manifest or its
+        // signature request
+        boolean started = connection.header != null || connection.streams != null || connection.download != null
+                || connection.manifest != null || connection.signatureRequest != null;
+        if (!started && limits.headerTimeoutNanos != 0 && nowNanos - connection.startNanos > limits.headerTimeoutNanos) {
+            System.err.println("[" + new Date() + "] " + connection.socketChannel + " sent no header within "
+                    + limits.headerTimeoutNanos / 1_000_000 + " ms, closing it.");
+            limits.headerTimedOut();
+            this.closeAConnection(connection);
+            return;
+        }
+
+        // the worker waits for the client while it wants to read from or write to the socket; the time the
+        // connection is paused by the server does not count
+        long progress = connection.bytesReceived.sum() + connection.bytesSent;
+        boolean waiting = (connection.key.interestOps() & (SelectionKey.OP_READ | SelectionKey.OP_WRITE)) != 0;
+        if (!waiting || progress != connection.lastProgress) {
+            connection.lastProgress = progress;
+            connection.lastProgressNanos = nowNanos;
+        }
+        if (!waiting) {
+            connection.windowStartNanos = nowNanos;
+            connection.windowStartProgress = progress;
+        }
+
+        if (limits.idleTimeoutNanos != 0 && nowNanos - connection.lastProgressNanos > limits.idleTimeoutNanos) {
+            System.err.println("[" + new Date() + "] " + connection.socketChannel + " was idle for "
+                    + (nowNanos - connection.lastProgressNanos) / 1_000_000 + " ms, closing it.");
+            limits.idleTimedOut();
+            this.closeAConnection(connection);
+            return;
+        }
+
+        long windowNanos = nowNanos - connection.windowStartNanos;
+        if (windowNanos >= limits.throughputWindowNanos) {
+            double bytesPerSecond = (progress - connection.windowStartProgress) / (windowNanos / 1e9);
+            if (limits.minThroughput != 0 && bytesPerSecond < limits.minThroughput) {
+                System.err.printf("[%s] %s moved %.0f B/s over %d ms, below %d B/s, closing it.%n", new Date(),
+                        connection.socketChannel, bytesPerSecond, windowNanos / 1_000_000, limits.minThroughput);
+                limits.tooSlow();
+                this.closeAConnection(connection);
+                return;
+            }
+            connection.windowStartNanos = nowNanos;
+            connection.windowStartProgress = progress;
+        }
+
+        connection.watchdogTimer = this.timerWheel.schedule(limits.checkIntervalNanos, () -> this.watch(connection));
+    }
+
+    /**
+     * Stops reading from the socket until the disk writer drained the write queue of the connection,
+     * so that the backpressure reaches the TCP window instead of the heap.
+     */
+    private void pauseReading(Connection connection) {
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        connection.readPaused = true;
+        connection.stallStartNanos = System.nanoTime();
+        connection.stallCount++;
+    }
+
+    void resumeReading(Connection connection) {
+        if (!connection.readPaused || !connection.key.isValid()
+                || connection.buffersInFlight.get() >= this.writeQueueCapacity) {
+            return;
+        }
+        connection.readPaused = false;
+
+        // a range waits for its verdict without reading, a session keeps reading for its other streams
+        if ((connection.session != null || !connection.awaitingVerdict) && !connection.throttled) {
+            connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        long stallNanos = System.nanoTime() - connection.stallStartNanos;
+        connection.stallNanos += stallNanos;
+        this.metrics.stalled(stallNanos);
+
+        // parse the frames or the chunks left in the buffer when the stream stalled
+        if (connection.session != null) {
+            this.parseFrames(connection.session);
+        } else if (connection.chunkBuffer != null) {
+            this.parseChunks(connection);
+        }
+    }
+
+    /**
+     * Returns a buffer to read into: the partly filled one or one borrowed from the pool while the connection
+     * has fewer than `writeQueueCapacity` buffers queued. Returns null when the write queue is full.
+     */
+    private ByteBuffer takeAnInputBuffer(Connection connection) {
+        if (connection.inputBuffer == null && connection.buffersInFlight.get() < this.writeQueueCapacity) {
+            connection.inputBuffer = this.bufferPool.borrow(this.id);
+        }
+        return connection.inputBuffer;
+    }
+
+    /**
+     * Gives the input buffer back to the pool, connections only hold a buffer while they have data in flight.
+     */
+    private void releaseTheInputBuffer(Connection connection) {
+        if (connection.inputBuffer != null) {
+            this.bufferPool.release(this.id, connection.inputBuffer);
+            connection.inputBuffer = null;
+        }
+    }
+
+    /**
+     * Gives the chunk buffer back to the pool and frees the inflater of a compressed range.
+     */
+    private void releaseTheChunkBuffer(Connection connection) {
+        if (connection.chunkBuffer != null) {
+            this.bufferPool.release(this.id, connection.chunkBuffer);
+            connection.chunkBuffer = null;
+        }
+        if (connection.inflater != null) {
+            connection.inflater.end();
+            connection.inflater = null;
+        }
+    }
+
+    /**
+     * Hands the filled input buffer over to the disk writer of the connection.
+     */
+    private void queueTheInputBuffer(Connection connection) {
+        ByteBuffer inputBuffer = connection.inputBuffer;
+        connection.inputBuffer = null;
+
+        // switch to the read mode
+        inputBuffer.flip();
+
+        if (connection.diskWriter.submit(connection, inputBuffer)) {
+            this.pauseReading(connection);
+        }
+    }
+
+    private int readAndQueue(SelectionKey key) {
+        // get the connection
+        SocketChannel socketChannel = (SocketChannel) key.channel();
+        Connection connection = this.connections.get(socketChannel);
+        if (connection == null) {
+            System.err.println("Null connection.");
+            return StatusCode.Fail;
+        }
+        if (connection.failed) {
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+
+        // a session carries the frames of many streams
+        if (connection.streams != null) {
+            return this.readFrames(connection);
+        }
+
+        // a deduplicated upload reads its whole manifest before its missing chunks
+        if (connection.manifest != null && connection.fileChannel == null) {
+            return this.readTheManifest(connection);
+        }
+
+        // read the header and open the file
+        if (connection.fileChannel == null) {
+            TransferHeader header;
+            if ((header = this.readHeader(connection)) == null) {
+                // the first frames of a session may have arrived along with its preamble, and the first chunks of a
+                // manifest along with its start
+                if (connection.manifest != null && connection.fileChannel == null) {
+                    return this.takeTheManifest(connection);
+                }
+                return connection.streams != null ? this.parseFrames(connection) : StatusCode.Fail;
+            }
+            if (this.openTheFile(connection, header) != StatusCode.SUCCESS) {
+                return StatusCode.Fail;
+            }
+
+            // account for the data received along with the header; a resuming client waits for the offset
+            int bytesReceived = connection.inputBuffer.position();
+            if (bytesReceived != 0 && connection.filePosition != header.offset) {
+                System.err.println(socketChannel + "Received data before the resume offset of " + header + ".");
+                this.closeAConnection(connection);
+                return StatusCode.Fail;
+            }
+
+            // the chunks of a compressed range received along with the header are inflated at once
+            if (connection.inflater != null) {
+                connection.chunkBuffer = connection.inputBuffer;
+                connection.inputBuffer = null;
+                if (connection.bytesRemaining == 0) {
+                    this.finishAConnection(connection);
+                    return StatusCode.SUCCESS;
+                }
+                return this.parseChunks(connection);
+            }
+
+            if (connection.bytesRemaining >= 0) {
+                // the block checksums following a short range may have arrived as well
+                if (bytesReceived > connection.bytesRemaining) {
+                    int rangeBytes = (int) connection.bytesRemaining;
+                    if (!this.takeTheTrailer(connection, connection.inputBuffer.slice(rangeBytes, bytesReceived - rangeBytes))) {
+                        System.err.println(socketChannel + "Received more data than the range " + header + ".");
+                        this.closeAConnection(connection);
+                        return StatusCode.Fail;
+                    }
+                    connection.inputBuffer.position(rangeBytes);
+                    bytesReceived = rangeBytes;
+                }
+                connection.bytesRemaining -= bytesReceived;
+            }
+
+            if (this.zeroCopy) {
+                if (this.startZeroCopy(connection) != StatusCode.SUCCESS) {
+                    return StatusCode.Fail;
+                }
+            } else {
+                // queue the data received along with the header
+                if (bytesReceived != 0) {
+                    this.queueTheInputBuffer(connection);
+                } else {
+                    this.releaseTheInputBuffer(connection);
+                }
+            }
+
+            // the range may be empty or already complete
+            if (connection.bytesRemaining == 0) {
+                this.finishAConnection(connection);
+            }
+            return StatusCode.SUCCESS;
+        }
+
+        if (connection.bytesRemaining == 0 && connection.trailerBuffer != null && connection.trailerBuffer.hasRemaining()) {
+            return this.readTheTrailer(connection);
+        }
+
+        if (connection.header.hasFlag(TransferHeader.FLAG_COMPRESS)) {
+            return this.readChunks(connection);
+        }
+
+        if (this.zeroCopy) {
+            return this.transferToTheFile(connection);
+        }
+
+        // get the inputBuffer
+        ByteBuffer inputBuffer = this.takeAnInputBuffer(connection);
+        if (inputBuffer == null) {
+            // every buffer is queued, wait for the disk writer
+            this.pauseReading(connection);
+            return StatusCode.SUCCESS;
+        }
+
+        // do not read past the end of the range
+        if (connection.bytesRemaining >= 0 && inputBuffer.remaining() > connection.bytesRemaining) {
+            inputBuffer.limit(inputBuffer.position() + (int) connection.bytesRemaining);
+        }
+
+        // read the data from the socket channel
+        boolean isEndOfStream = false;
+        try {
+            int bytesReceived = this.receive(connection, inputBuffer);
+            if (bytesReceived == -1) {
+                isEndOfStream = true;
+            } else if (connection.bytesRemaining >= 0) {
+                connection.bytesRemaining -= bytesReceived;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(socketChannel + "Cannot read data from the socket channel: " + e.getMessage());
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+
+        // queue the received data to be written to the file
+        if (inputBuffer.position() != 0) {
+            this.queueTheInputBuffer(connection);
+        } else {
+            this.releaseTheInputBuffer(connection);
+        }
+
+        // test the flag to judge whether close the connection
+        if (isEndOfStream || connection.bytesRemaining == 0) {
+            this.finishAConnection(connection);
+        }
+
+        return StatusCode.SUCCESS;
+    }
+
+    /**
+     * Ends the connection at the end of its range or of its stream. A complete range stops reading and waits
+     * for the disk writer to close the file before the verdict is sent; anything else is closed at once.
+     */
+    private void finishAConnection(Connection connection) {
+        if (connection.bytesRemaining > 0) {
+            System.err.println("[" + new Date() + "] " + connection.header + " is incomplete, "
+                    + connection.bytesRemaining + " byte(s) missing.");
+            this.closeAConnection(connection);
+            return;
+        }
+
+        // wait for the block checksums following the range
+        if (connection.trailerBuffer != null && connection.trailerBuffer.hasRemaining()) {
+            return;
+        }
+
+        this.transferMetrics.transferCompleted(connection);
+        String compression = connection.inflater == null ? "" : String.format(" (%d byte(s) compressed, %.1f%%)",
+                connection.bytesReceived.sum(), 100.0 * connection.bytesReceived.sum() / Math.max(1, connection.header.length));
+        this.releaseTheChunkBuffer(connection);
+        System.out.println("[" + new Date() + "] " + connection.header + compression + " received in "
+                + connection.chunksReceived.sum() + " chunk(s), read stalled " + connection.stallCount + " time(s) for " + connection.stallNanos / 1_000_000 + " ms; " + this.metrics
+                + "; " + this.bufferPool);
+        if (connection.transfer == null) {
+            this.closeAConnection(connection);
+            return;
+        }
+
+        connection.awaitingVerdict = true;
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+        this.releaseTheInputBuffer(connection);
+        this.closeTheFileChannel(connection);
+    }
+
+    /**
+     * Reads the chunks of a compressed range from the socket and inflates them.
+     */
+    private int readChunks(Connection connection) {
+        if (connection.chunkBuffer == null) {
+            return StatusCode.SUCCESS;
+        }
+
+        boolean isEndOfStream = false;
+        try {
+            if (this.receive(connection, connection.chunkBuffer) == -1) {
+                isEndOfStream = true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(connection.socketChannel + "Cannot read data from the socket channel: " + e.getMessage());
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+
+        if (this.parseChunks(connection) != StatusCode.SUCCESS) {
+            return StatusCode.Fail;
+        }
+
+        // the stream ended before the whole range was inflated
+        if (isEndOfStream && connection.chunkBuffer != null) {
+            this.finishAConnection(connection);
+        }
+        return StatusCode.SUCCESS;
+    }
+
+    /**
+     * Inflates the chunks held in the chunk buffer of a compressed range into its input buffers. Stops at the first
+     * incomplete chunk header or at the end of the buffered data, or when the range has its whole write queue in
+     * flight, in which case it is parsed again once the disk writer resumes the connection.
+     */
+    private int parseChunks(Connection connection) {
+        ByteBuffer chunkBuffer = connection.chunkBuffer;
+        if (chunkBuffer == null || connection.bytesRemaining == 0) {
+            return StatusCode.SUCCESS;
+        }
+
+        // switch to the read mode
+        chunkBuffer.flip();
+
+        while (connection.bytesRemaining > 0) {
+            // start the next chunk
+            if (connection.chunkKind < 0) {
+                if (chunkBuffer.remaining() < TransferHeader.CHUNK_HEADER_LENGTH) {
+                    break;
+                }
+                if (Byte.toUnsignedInt(chunkBuffer.get(chunkBuffer.position())) == TransferHeader.CHUNK_COPY) {
+                    int status = this.copyAChunk(connection, chunkBuffer);
+                    if (status == StatusCode.Fail) {
+                        return StatusCode.Fail;
+                    }
+                    if (status == COPY_WAITING) {
+                        break;
+                    }
+                    continue;
+                }
+                int kind = Byte.toUnsignedInt(chunkBuffer.get());
+                long length = Integer.toUnsignedLong(chunkBuffer.getInt());
+                if ((kind != TransferHeader.CHUNK_STORED && kind != TransferHeader.CHUNK_DEFLATED) || length == 0
+                        || (kind == TransferHeader.CHUNK_STORED && length > connection.bytesRemaining)) {
+                    System.err.println(connection.socketChannel + "Invalid chunk of kind " + kind + " and " + length
+                            + " byte(s) for " + connection.header + ".");
+                    this.closeAConnection(connection);
+                    return StatusCode.Fail;
+                }
+                connection.chunkKind = kind;
+                connection.chunkRemaining = length;
+                if (kind == TransferHeader.CHUNK_DEFLATED) {
+                    connection.inflater.reset();
+                }
+            }
+
+            ByteBuffer inputBuffer = this.takeAnInputBuffer(connection);
+            if (inputBuffer == null) {
+                // every buffer is queued, wait for the disk writer
+                this.pauseReading(connection);
+                break;
+            }
+
+            // do not write past the end of the range
+            if (inputBuffer.remaining() > connection.bytesRemaining) {
+                inputBuffer.limit(inputBuffer.position() + (int) connection.bytesRemaining);
+            }
+
+            int available = (int) Math.min(chunkBuffer.remaining(), connection.chunkRemaining);
+            int consumed;
+            int produced;
+            boolean isEndOfChunk;
+            if (connection.chunkKind == TransferHeader.CHUNK_STORED) {
+                consumed = Math.min(available, inputBuffer.remaining());
+                int limit = chunkBuffer.limit();
+                chunkBuffer.limit(chunkBuffer.position() + consumed);
+                inputBuffer.put(chunkBuffer);
+                chunkBuffer.limit(limit);
+                produced = consumed;
+                isEndOfChunk = connection.chunkRemaining == consumed;
+            } else {
+                // the inflater may keep output back when the input buffer is full, it is drained on the next pass
+                ByteBuffer input = chunkBuffer.slice(chunkBuffer.position(), available);
+                int start = inputBuffer.position();
+                connection.inflater.setInput(input);
+                try {
+                    connection.inflater.inflate(inputBuffer);
+                } catch (DataFormatException e) {
+                    System.err.println(connection.socketChannel + "Invalid deflated chunk for " + connection.header
+                            + ": " + e.getMessage());
+                    this.closeAConnection(connection);
+                    return StatusCode.Fail;
+                }
+                consumed = input.position();
+                chunkBuffer.position(chunkBuffer.position() + consumed);
+                produced = inputBuffer.position() - start;
+                isEndOfChunk = connection.inflater.finished();
+                boolean isInputConsumed = connection.chunkRemaining == consumed;
+                if (isEndOfChunk ? !isInputConsumed : isInputConsumed && inputBuffer.hasRemaining()) {
+                    System.err.println(connection.socketChannel + "A deflated chunk for " + connection.header
+                            + " does not match its length.");
+                    this.closeAConnection(connection);
+                    return StatusCode.Fail;
+                }
+            }
+            connection.chunkRemaining -= consumed;
+            connection.bytesRemaining -= produced;
+            if (isEndOfChunk) {
+                connection.chunkKind = -1;
+            }
+
+            // queue the input buffer once it is full or holds the end of the range
+            if (!inputBuffer.hasRemaining() || connection.bytesRemaining == 0) {
+                this.queueTheInputBuffer(connection);
+            } else if (consumed == 0 && produced == 0) {
+                break;
+            }
+        }
+
+        if (connection.bytesRemaining == 0) {
+            if (connection.chunkKind >= 0 || !this.takeTheTrailer(connection, chunkBuffer)) {
+                System.err.println(connection.socketChannel + "Received more data than the range " + connection.header + ".");
+                this.closeAConnection(connection);
+                return StatusCode.Fail;
+            }
+            this.finishAConnection(connection);
+            return StatusCode.SUCCESS;
+        }
+
+        // switch to the write mode, keeping the incomplete chunk
+        chunkBuffer.compact();
+
+        return StatusCode.SUCCESS;
+    }
+
+    /**
+     * Hands the copy chunk starting the chunk buffer (in read mode) over to the disk writer of a delta range, after
+     * the bytes inflated before it. Returns {@link StatusCode#SUCCESS} once the chunk is consumed, or `COPY_WAITING`
+     * when it must wait for more data or for the disk writer, in which case it is left in the buffer.
+     */
+    private int copyAChunk(Connection connection, ByteBuffer chunkBuffer) {
+        if (chunkBuffer.remaining() < TransferHeader.CHUNK_HEADER_LENGTH + TransferHeader.COPY_PAYLOAD_LENGTH) {
+            return COPY_WAITING;
+        }
+        long length = Integer.toUnsignedLong(chunkBuffer.getInt(chunkBuffer.position() + 1));
+        long offset = chunkBuffer.getLong(chunkBuffer.position() + TransferHeader.CHUNK_HEADER_LENGTH);
+        if (connection.baseChannel == null || length == 0 || length > connection.bytesRemaining || offset < 0
+                || offset > connection.baseSize - length) {
+            System.err.println(connection.socketChannel + "Invalid copy of " + length + " byte(s) at " + offset
+                    + " for " + connection.header + ".");
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+
+        // the bytes inflated so far go first, the copy waits for a free place in the write queue
+        if (connection.inputBuffer != null && connection.inputBuffer.position() != 0) {
+            this.queueTheInputBuffer(connection);
+        }
+        if (connection.buffersInFlight.get() >= this.writeQueueCapacity) {
+            if (!connection.readPaused) {
+                this.pauseReading(connection);
+            }
+            return COPY_WAITING;
+        }
+
+        chunkBuffer.position(chunkBuffer.position() + TransferHeader.CHUNK_HEADER_LENGTH
+                + TransferHeader.COPY_PAYLOAD_LENGTH);
+        connection.bytesRemaining -= length;
+        if (connection.diskWriter.submitCopy(connection, offset, length)) {
+            this.pauseReading(connection);
+        }
+        return StatusCode.SUCCESS;
+    }
+
+    /**
+     * Moves the bytes (in read mode) received after the end of the range to the trailer buffer. Returns false when
+     * they do not fit, the client then sent more than the range and its block checksums.
+     */
+    private boolean takeTheTrailer(Connection connection, ByteBuffer bytes) {
+        if (!bytes.hasRemaining()) {
+            return true;
+        }
+        if (connection.trailerBuffer == null || bytes.remaining() > connection.trailerBuffer.remaining()) {
+            return false;
+        }
+        connection.trailerBuffer.put(bytes);
+        return true;
+    }
+
+    /**
+     * Reads the block checksums following the range, within the bandwidth of the connection like its data, and
+     * finishes the connection once they are all received.
+     */
+    private int readTheTrailer(Connection connection) {
+        try {
+            if (this.receive(connection, connection.trailerBuffer) == -1) {
+                System.err.println("[" + new Date() + "] " + connection.header + " ended before its block checksums.");
+                this.closeAConnection(connection);
+                return StatusCode.Fail;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(connection.socketChannel + "Cannot read data from the socket channel: " + e.getMessage());
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+
+        if (!connection.trailerBuffer.hasRemaining()) {
+            this.finishAConnection(connection);
+        }
+        return StatusCode.SUCCESS;
+    }
+
+    /**
+     * Sends the verdict of a complete range, called once the disk writer closed its file. The verdict of a stream
+     * is framed and leaves its session open.
+     */
+    void sendTheVerdict(Connection connection) {
+        if (!this.connections.containsKey(connection.socketChannel)) {
+            return;
+        }
+        boolean isStream = connection.session != null;
+        ByteBuffer verdict = ByteBuffer.allocate((isStream ? SessionFrame.HEADER_LENGTH : 0) + TransferHeader.VERDICT_LENGTH);
+        if (isStream) {
+            SessionFrame.writeHeader(verdict, SessionFrame.VERDICT, connection.streamId, TransferHeader.VERDICT_LENGTH);
+        }
+        verdict.put((byte) (connection.failed ? TransferHeader.VERDICT_FAILED
+                : connection.corruptBlock >= 0 ? TransferHeader.VERDICT_CORRUPT : TransferHeader.VERDICT_OK));
+        verdict.putLong(connection.bytesHeld);
+        verdict.putInt(connection.rangeChecksum);
+        verdict.flip();
+
+        if (isStream) {
+            this.sendAReply(connection.session, verdict);
+            this.releaseAFile(connection.session);
+            return;
+        }
+        connection.closeAfterReply = true;
+        this.sendAReply(connection, verdict);
+    }
+
+    /**
+     * Reads from the socket of a session and hands the frames over to their streams.
+     */
+    private int readFrames(Connection session) {
+        ByteBuffer inputBuffer = this.takeAnInputBuffer(session);
+
+        boolean isEndOfStream = false;
+        try {
+            if (this.receive(session, inputBuffer) == -1) {
+                isEndOfStream = true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(session.socketChannel + "Cannot read data from the socket channel: " + e.getMessage());
+            this.closeAConnection(session);
+            return StatusCode.Fail;
+        }
+
+        if (this.parseFrames(session) != StatusCode.SUCCESS) {
+            return StatusCode.Fail;
+        }
+
+        if (isEndOfStream) {
+            if (session.streams.isEmpty()) {
+                System.out.println("[" + new Date() + "] " + session.socketChannel + " ended its session after "
+                        + session.streamCount + " stream(s).");
+            } else {
+                System.err.println("[" + new Date() + "] " + session.socketChannel + " ended its session with "
+                        + session.streams.size() + " incomplete stream(s).");
+            }
+            this.closeAConnection(session);
+        }
+        return StatusCode.SUCCESS;
+    }
+
+    /**
+     * Parses the frames held in the input buffer of the session. Stops at the first incomplete frame, or when the
+     * stream of a data frame has its whole write queue in flight, in which case it is parsed again once the disk
+     * writer resumes the stream.
+     */
+    private int parseFrames(Connection session) {
+        ByteBuffer inputBuffer = session.inputBuffer;
+        if (inputBuffer == null) {
+            return StatusCode.SUCCESS;
+        }
+
+        // switch to the read mode
+        inputBuffer.flip();
+
+        while (true) {
+            // hand the payload of the current data frame over to its stream
+            if (session.frameStream != null) {
+                if (!inputBuffer.hasRemaining() || !this.copyAFrame(session, inputBuffer)) {
+                    break;
+                }
+                continue;
+            }
+
+            if (inputBuffer.remaining() < SessionFrame.HEADER_LENGTH) {
+                break;
+            }
+            int start = inputBuffer.position();
+            int type = Byte.toUnsignedInt(inputBuffer.get(start));
+            int streamId = inputBuffer.getInt(start + 1);
+            long length = Integer.toUnsignedLong(inputBuffer.getInt(start + 5));
+
+            if (type == SessionFrame.OPEN) {
+                // wait until the session has a file handle to spare
+                if (session.openFiles >= this.sessionFileHandles) {
+                    session.waitingForAFile = true;
+                    session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_READ);
+                    break;
+                }
+                if (length > inputBuffer.capacity() - SessionFrame.HEADER_LENGTH) {
+                    System.err.println(session.socketChannel + "The OPEN frame of the stream " + streamId + " is too long.");
+                    this.closeAConnection(session);
+                    return StatusCode.Fail;
+                }
+                if (inputBuffer.remaining() < SessionFrame.HEADER_LENGTH + length) {
+                    break;
+                }
+                ByteBuffer payload = inputBuffer.slice(start + SessionFrame.HEADER_LENGTH, (int) length);
+                inputBuffer.position(start + SessionFrame.HEADER_LENGTH + (int) length);
+                if (this.openAStream(session, streamId, payload) != StatusCode.SUCCESS) {
+                    return StatusCode.Fail;
+                }
+            } else if (type == SessionFrame.DATA) {
+                Connection stream = session.streams.get(streamId);
+                if (stream == null || length > stream.bytesRemaining) {
+                    System.err.println(session.socketChannel + "Invalid DATA frame of " + length + " byte(s) for the stream "
+                            + streamId + ".");
+                    this.closeAConnection(session);
+                    return StatusCode.Fail;
+                }
+                inputBuffer.position(start + SessionFrame.HEADER_LENGTH);
+                if (length != 0) {
+                    session.frameStream = stream;
+                    session.frameRemaining = length;
+                }
+            } else {
+                System.err.println(session.socketChannel + "Unknown frame type " + type + ".");
+                this.closeAConnection(session);
+                return StatusCode.Fail;
+            }
+        }
+
+        // switch to the write mode, keeping the incomplete frame
+        inputBuffer.compact();
+
+        return StatusCode.SUCCESS;
+    }
+
+    /**
+     * Copies the payload of the current data frame from the input buffer of the session into the input buffer of
+     * its stream. Returns false when the stream has no buffer left and reading was paused.
+     */
+    private boolean copyAFrame(Connection session, ByteBuffer inputBuffer) {
+        Connection stream = session.frameStream;
+        ByteBuffer streamBuffer = this.takeAnInputBuffer(stream);
+        if (streamBuffer == null) {
+            // every buffer of the stream is queued, wait for its disk writer
+            this.pauseReading(stream);
+            return false;
+        }
+
+        int count = (int) Math.min(Math.min(inputBuffer.remaining(), streamBuffer.remaining()), session.frameRemaining);
+        int limit = inputBuffer.limit();
+        inputBuffer.limit(inputBuffer.position() + count);
+        streamBuffer.put(inputBuffer);
+        inputBuffer.limit(limit);
+
+        stream.bytesReceived.add(count);
+        stream.chunksReceived.increment();
+        stream.bytesRemaining -= count;
+        session.frameRemaining -= count;
+        if (session.frameRemaining == 0) {
+            session.frameStream = null;
+        }
+
+        // queue the buffer of the stream once it is full or holds the end of the range
+        if (!streamBuffer.hasRemaining() || stream.bytesRemaining == 0) {
+            this.queueTheInputBuffer(stream);
+        }
+        if (stream.bytesRemaining == 0) {
+            this.finishAStream(stream);
+        }
+        return true;
+    }
+
+    private int openAStream(Connection session, int streamId, ByteBuffer payload) {
+        TransferHeader header;
+        try {
+            header = TransferHeader.parse(payload);
+        } catch (ProtocolException e) {
+            System.err.println(session.socketChannel + "Invalid header of the stream " + streamId + ": " + e.getMessage());
+            this.closeAConnection(session);
+            return StatusCode.Fail;
+        }
+        if (header == null || header.isLegacy()
+                || header.hasFlag(TransferHeader.FLAG_COMPRESS | TransferHeader.FLAG_BLOCK_CHECKSUMS)
+                || session.streams.containsKey(streamId)) {
+            System.err.println(session.socketChannel + "Invalid OPEN frame for the stream " + streamId + ".");
+            this.closeAConnection(session);
+            return StatusCode.Fail;
+        }
+
+        Connection stream = new Connection(session, streamId);
+        if (this.openTheFile(stream, header) != StatusCode.SUCCESS) {
+            return StatusCode.Fail;
+        }
+        session.streams.put(streamId, stream);
+        session.streamCount++;
+        session.openFiles++;
+
+        // an empty range is complete at once
+        if (stream.bytesRemaining == 0) {
+            this.finishAStream(stream);
+        }
+        return StatusCode.SUCCESS;
+    }
+
+    /**
+     * Gives back the file handle of a closed stream and resumes the session if an OPEN frame waits for it.
+     */
+    private void releaseAFile(Connection session) {
+        session.openFiles--;
+        if (session.waitingForAFile && session.key.isValid()) {
+            session.waitingForAFile = false;
+            if (!session.throttled) {
+                session.key.interestOps(session.key.interestOps() | SelectionKey.OP_READ);
+            }
+            this.parseFrames(session);
+        }
+    }
+
+    /**
+     * Ends a stream at the end of its range, its verdict is sent once the disk writer closed its file.
+     */
+    private void finishAStream(Connection stream) {
+        stream.session.streams.remove(stream.streamId);
+        this.transferMetrics.transferCompleted(stream);
+        if (debug) {
+            System.out.println("[" + new Date() + "] " + stream.header + " received on the stream " + stream.streamId + ".");
+        }
+
+        stream.awaitingVerdict = true;
+        this.releaseTheInputBuffer(stream);
+        this.closeTheFileChannel(stream);
+    }
+
+    /**
+     * Sends the reply (in read mode) to the client, the rest is sent when the socket becomes writable.
+     */
+    private int sendAReply(Connection connection, ByteBuffer reply) {
+        // append to the reply still being sent, if any
+        if (connection.replyBuffer != null && connection.replyBuffer.hasRemaining()) {
+            ByteBuffer merged = ByteBuffer.allocate(connection.replyBuffer.remaining() + reply.remaining());
+            merged.put(connection.replyBuffer).put(reply).flip();
+            reply = merged;
+        }
+        connection.replyBuffer = reply;
+        return this.writeTheReply(connection.key);
+    }
+
+    private int writeTheReply(SelectionKey key) {
+        Connection connection = this.connections.get((SocketChannel) key.channel());
+        if (connection == null) {
+            return StatusCode.Fail;
+        }
+        if (connection.replyBuffer == null) {
+            return connection.download != null ? this.sendTheDownload(connection) : StatusCode.Fail;
+        }
+
+        try {
+            connection.bytesSent += connection.socketChannel.write(connection.replyBuffer);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(connection.socketChannel + "Cannot send the reply: " + e.getMessage());
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+
+        // wait for OP_WRITE until the whole reply is sent
+        if (connection.replyBuffer.hasRemaining()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            return StatusCode.SUCCESS;
+        }
+        connection.replyBuffer = null;
+
+        // the range of a download follows its reply
+        if (connection.download != null) {
+            return this.sendTheDownload(connection);
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+
+        if (connection.closeAfterReply) {
+            this.closeAConnection(connection);
+        }
+        return StatusCode.SUCCESS;
+    }
+
+    /**
+     * Answers a download request: the reply, then the range of the file whenever the socket can take more, so that a
+     * slow reader never holds the worker. Only the plain files of the server directory are served.
+     */
+    private void startADownload(Connection connection, GetRequest request) {
+        // a download connection only sends from now on
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+
+        int status = GetRequest.STATUS_OK;
+        long fileSize = 0;
+        long lastModified = 0;
+        long length = 0;
+        String path = null;
+        File file = new File(request.fileName);
+        if (!this.isServable(request.fileName) || !file.isFile()) {
+            status = GetRequest.STATUS_NOT_FOUND;
+        } else {
+            fileSize = file.length();
+            lastModified = file.lastModified();
+            if (request.offset > fileSize) {
+                status = GetRequest.STATUS_INVALID_RANGE;
+            } else {
+                length = request.length < 0 ? fileSize - request.offset : Math.min(request.length, fileSize - request.offset);
+                try {
+                    path = file.getCanonicalPath();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.err.println("Cannot resolve " + file + ": " + e.getMessage());
+                    status = GetRequest.STATUS_NOT_FOUND;
+                }
+            }
+        }
+
+        ByteBuffer reply = ByteBuffer.allocate(GetRequest.REPLY_LENGTH);
+        reply.put((byte) status).putLong(fileSize).putLong(length).flip();
+        if (status != GetRequest.STATUS_OK) {
+            System.err.println("[" + new Date() + "] " + request + " refused with the status " + status + ".");
+            connection.closeAfterReply = true;
+            this.sendAReply(connection, reply);
+            return;
+        }
+        connection.download = new Download(request, path, fileSize, lastModified, request.offset, request.offset + length);
+        this.sendAReply(connection, reply);
+    }
+
+    /**
+     * Answers a signature request: the signatures of the file are computed by the signature generator while the
+     * connection neither reads nor writes, then sent, and the connection closed. Only the files a download may ask
+     * for are signed.
+     */
+    private void signAFile(Connection connection, SignatureRequest request) {
+        connection.signatureRequest = request;
+        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+
+        File file = new File(request.fileName);
+        if (!this.isServable(request.fileName) || !file.isFile()) {
+            this.sendTheSignatures(connection, null);
+            return;
+        }
+        this.signatureGenerator.generate(file, request.blockSize,
+                reply -> this.execute(() -> this.sendTheSignatures(connection, reply)));
+    }
+
+    /**
+     * Sends the signatures computed for the connection, or the status {@link SignatureRequest#STATUS_NOT_FOUND} when
+     * there are none. Runs on this worker's thread.
+     */
+    private void sendTheSignatures(Connection connection, ByteBuffer reply) {
+        // closed while it waited
+        if (!connection.key.isValid()) {
+            return;
+        }
+        if (reply == null) {
+            System.err.println("[" + new Date() + "] " + connection.signatureRequest + " refused, no such file.");
+            reply = ByteBuffer.allocate(SignatureRequest.REPLY_HEADER_LENGTH);
+            reply.put((byte) SignatureRequest.STATUS_NOT_FOUND).putLong(0).putInt(0).putInt(0).flip();
+        } else {
+            System.out.println("[" + new Date() + "] " + connection.signatureRequest + ", "
+                    + (reply.remaining() - SignatureRequest.REPLY_HEADER_LENGTH) / SignatureRequest.SIGNATURE_LENGTH
+                    + " block signature(s) sent.");
+        }
+        connection.closeAfterReply = true;
+        this.sendAReply(connection, reply);
+    }
+
+    /**
+     * Returns true for the name of a file of the server directory that is not the part or progress file of an upload.
+     */
+    private boolean isServable(String fileName) {
+        return !fileName.contains("/") && !fileName.contains("\\") && !fileName.equals(".") && !fileName.equals("..")
+                && !fileName.endsWith(".part") && !fileName.endsWith(".progress");
+    }
+
+    /**
+     * Sends the next slices of the range of a download until the socket is full, then waits for OP_WRITE. The
+     * connection is closed once the whole range is sent.
+     */
+    private int sendTheDownload(Connection connection) {
+        Download download = connection.download;
+        try {
+            while (!download.isDone()) {
+                // reuse the region holding the next bytes or wait until it is loaded
+                if (download.slice == null || !download.slice.hasRemaining()) {
+                    download.slice = this.regionCache.slice(download.path, download.lastModified, download.fileSize,
+                            download.position, download.end, error -> this.execute(() -> this.regionLoaded(connection, error)));
+                    if (download.slice == null) {
+                        connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return StatusCode.SUCCESS;
+                    }
+                    download.position += download.slice.remaining();
+                }
+                connection.bytesSent += connection.socketChannel.write(download.slice);
+                if (download.slice.hasRemaining()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(connection.socketChannel + "Cannot send " + download.request + ": " + e.getMessage());
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+
+        if (download.isDone()) {
+            double seconds = (System.nanoTime() - download.startNanos) / 1e9;
+            System.out.printf("[%s] %s sent in %.3f s (%.1f MB/s); %s%n", new Date(), download.request, seconds,
+                    (download.end - download.request.offset) / 1e6 / Math.max(seconds, 1e-9), this.regionCache);
+            this.closeAConnection(connection);
+            return StatusCode.SUCCESS;
+        }
+        connection.key.interestOps(connection.key.interestOps() | SelectionKey.OP_WRITE);
+        return StatusCode.SUCCESS;
+    }
+
+    /**
+     * Resumes a download once the region it waited for is loaded, or closes it when the region failed to load. Runs
+     * on this worker's thread.
+     */
+    private void regionLoaded(Connection connection, IOException error) {
+        // closed while it waited
+        if (!connection.key.isValid()) {
+            return;
+        }
+        if (error != null) {
+            System.err.println(connection.socketChannel + "Cannot send " + connection.download.request + ": "
+                    + error.getMessage());
+            this.closeAConnection(connection);
+            return;
+        }
+        this.sendTheDownload(connection);
+    }
+
+    /**
+     * Opens the file of the header: the target file itself for a legacy header, the part file of the transfer
+     * for a range.
+     */
+    private int openTheFile(Connection connection, TransferHeader header) {
+        File file;
+        if (header.isLegacy()) {
+            file = new File(header.fileName);
+        } else {
+            try {
+                connection.transfer = this.transferRegistry.open(header);
+            } catch (ProtocolException e) {
+                System.err.println(connection.socketChannel + e.getMessage());
+                this.closeAConnection(connection);
+                return StatusCode.Fail;
+            }
+            file = connection.transfer.partFile;
+            connection.checksum = new RangeChecksum();
+            if (header.hasFlag(TransferHeader.FLAG_BLOCK_CHECKSUMS)) {
+                if (RangeChecksum.blockCountOf(header.length) > TransferHeader.MAX_BLOCK_CHECKSUMS) {
+                    System.err.println(connection.socketChannel + "Too many block checksums for " + header + ".");
+                    this.closeAConnection(connection);
+                    return StatusCode.Fail;
+                }
+                connection.trailerBuffer = ByteBuffer.allocate(4 * RangeChecksum.blockCountOf(header.length));
+            }
+        }
+
+        // open the file channel, each range has its own
+        RandomAccessFile randomAccessFile = null;
+        FileChannel fileChannel = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            fileChannel = randomAccessFile.getChannel();
+        } catch (FileNotFoundException e) {
+            e.printStackTrace();
+            System.err.println("Cannot open the file: " + e.getMessage());
+        }
+        if (fileChannel == null)
+        {
+            System.err.println("Cannot open the file.");
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+
+        // give the part file its final length at once, so that its ranges only write into it and a stale longer file
+        // is cut; the blocks themselves are allocated as the coalesced writes reach the disk
+        if (preallocate && !header.isLegacy()) {
+            try {
+                if (fileChannel.size() != header.fileSize) {
+                    randomAccessFile.setLength(header.fileSize);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot set the length of " + file + ": " + e.getMessage());
+            }
+        }
+
+        connection.header = header;
+        connection.fileChannel = fileChannel;
+        connection.filePosition = header.offset;
+        connection.bytesRemaining = header.length;
+        if (header.hasFlag(TransferHeader.FLAG_COMPRESS)) {
+            connection.inflater = new Inflater();
+        }
+
+        this.pinADiskWriter(connection);
+
+        // the copy chunks of a delta range read the file held by the server, the commit of the range replaces it
+        if (header.hasFlag(TransferHeader.FLAG_DELTA)) {
+            File baseFile = new File(header.fileName);
+            try {
+                if (!this.isServable(header.fileName) || !baseFile.isFile()) {
+                    throw new FileNotFoundException(header.fileName);
+                }
+                connection.baseChannel = FileChannel.open(baseFile.toPath(), StandardOpenOption.READ);
+                connection.baseSize = connection.baseChannel.size();
+            } catch (IOException e) {
+                System.err.println(connection.socketChannel + "Cannot open the base file of " + header + ": "
+                        + e.getMessage());
+                this.closeAConnection(connection);
+                return StatusCode.Fail;
+            }
+        }
+
+        if (connection.transfer != null && connection.session == null) {
+            // continue the range after the bytes already held and tell the client where to resume; a delta range
+            // always restarts, its copies may reach anywhere in the range
+            long held = 0;
+            if (header.hasFlag(TransferHeader.FLAG_RESUME) && !header.hasFlag(TransferHeader.FLAG_DELTA)) {
+                held = connection.transfer.heldBytes(header.offset, header.length);
+                if (held > 0) {
+                    System.out.println("[" + new Date() + "] " + header + " resumes after " + held + " byte(s).");
+                }
+            }
+            connection.filePosition += held;
+            connection.bytesRemaining -= held;
+
+            ByteBuffer reply = ByteBuffer.allocate(TransferHeader.OFFSET_REPLY_LENGTH);
+            reply.putLong(held).flip();
+            return this.sendAReply(connection, reply);
+        }
+        return StatusCode.SUCCESS;
+    }
+
+    private void pinADiskWriter(Connection connection) {
+        connection.diskWriter = this.diskWriters[this.nextDiskWriter % this.diskWriters.length];
+        this.nextDiskWriter = (this.nextDiskWriter + 1) % this.diskWriters.length;
+    }
+
+    /**
+     * Reads the next chunks of the manifest of a deduplicated upload.
+     */
+    private int readTheManifest(Connection connection) {
+        ByteBuffer inputBuffer = this.takeAnInputBuffer(connection);
+        if (inputBuffer == null) {
+            System.err.println("Null input buffer.");
+            return StatusCode.Fail;
+        }
+        try {
+            if (this.receive(connection, inputBuffer) == -1) {
+                System.err.println("[" + new Date() + "] " + connection.manifest + " ended before its last chunk.");
+                this.closeAConnection(connection);
+                return StatusCode.Fail;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(connection.socketChannel + "Cannot read data from the socket channel: " + e.getMessage());
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+        return this.takeTheManifest(connection);
+    }
+
+    /**
+     * Takes the chunks of the manifest held by the input buffer (in write mode) and answers the manifest once it is
+     * complete.
+     */
+    private int takeTheManifest(Connection connection) {
+        ByteBuffer inputBuffer = connection.inputBuffer;
+        boolean isComplete;
+        inputBuffer.flip();
+        try {
+            isComplete = connection.manifest.takeEntries(inputBuffer);
+        } catch (ProtocolException e) {
+            System.err.println(connection.socketChannel + "Invalid manifest: " + e.getMessage());
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+        inputBuffer.compact();
+        if (!isComplete) {
+            return StatusCode.SUCCESS;
+        }
+
+        // the client waits for the missing chunks before it sends any
+        if (inputBuffer.position() != 0) {
+            System.err.println(connection.socketChannel + "Received data before the reply to " + connection.manifest + ".");
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+        this.releaseTheInputBuffer(connection);
+        return this.startADedup(connection);
+    }
+
+    /**
+     * Answers a complete manifest with the chunks the store does not hold, and opens the pack of the store to receive
+     * them as a range into a region reserved for them. The upload is finished at once when nothing is missing.
+     */
+    private int startADedup(Connection connection) {
+        ChunkManifest manifest = connection.manifest;
+        int[] missingChunks = this.chunkStore.missingChunks(manifest);
+        long missingBytes = 0;
+        for (int chunk : missingChunks) {
+            missingBytes += manifest.lengths[chunk];
+        }
+
+        // the file is committed as a transfer of a single range
+        TransferHeader header = new TransferHeader(manifest.fileName, 0, manifest.transferId, manifest.fileSize, 0,
+                manifest.fileSize);
+        FileChannel packChannel = null;
+        try {
+            connection.transfer = this.transferRegistry.open(header);
+            packChannel = this.chunkStore.openThePack();
+        } catch (IOException e) {
+            System.err.println(connection.socketChannel + "Cannot receive " + manifest + ": " + e.getMessage());
+            ByteBuffer refusal = ByteBuffer.allocate(ChunkManifest.REPLY_HEADER_LENGTH);
+            refusal.put((byte) ChunkManifest.STATUS_REFUSED).putInt(0).flip();
+            connection.closeAfterReply = true;
+            return this.sendAReply(connection, refusal);
+        }
+
+        connection.header = header;
+        connection.missingChunks = missingChunks;
+        connection.packOffset = this.chunkStore.reserve(missingBytes);
+        connection.packLength = missingBytes;
+        connection.fileChannel = packChannel;
+        connection.filePosition = connection.packOffset;
+        connection.bytesRemaining = missingBytes;
+        this.pinADiskWriter(connection);
+        System.out.println("[" + new Date() + "] " + manifest + ", " + missingChunks.length + " chunk(s) ("
+                + missingBytes + " byte(s)) missing from the chunk store.");
+
+        ByteBuffer reply = ByteBuffer.allocate(ChunkManifest.REPLY_HEADER_LENGTH + 4 * missingChunks.length);
+        reply.put((byte) ChunkManifest.STATUS_OK).putInt(missingChunks.length);
+        reply.asIntBuffer().put(missingChunks);
+        reply.position(reply.capacity()).flip();
+        if (this.sendAReply(connection, reply) != StatusCode.SUCCESS) {
+            return StatusCode.Fail;
+        }
+
+        if (connection.bytesRemaining == 0) {
+            this.finishAConnection(connection);
+        }
+        return StatusCode.SUCCESS;
+    }
+
+    /**
+     * Writes the data received along with the header and drops the input buffer; the rest of the range
+     * goes from the socket to the file with `transferFrom()`.
+     */
+    private int startZeroCopy(Connection connection) {
+        ByteBuffer inputBuffer = connection.inputBuffer;
+
+        // switch to the read mode
+        inputBuffer.flip();
+
+        try {
+            while (inputBuffer.remaining() != 0) {
+                connection.filePosition += connection.fileChannel.write(inputBuffer, connection.filePosition);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(connection.fileChannel + " Cannot write to the file: " + e.getMessage());
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+        this.releaseTheInputBuffer(connection);
+
+        return StatusCode.SUCCESS;
+    }
+
+    private int transferToTheFile(Connection connection) {
+        SocketChannel socketChannel = connection.socketChannel;
+        FileChannel fileChannel = connection.fileChannel;
+
+        // do not transfer past the end of the range nor beyond the bandwidth limits
+        long count = this.transferLength;
+        if (connection.bytesRemaining >= 0) {
+            count = Math.min(count, connection.bytesRemaining);
+        }
+        long nowNanos = System.nanoTime();
+        int allowance = this.bandwidthLimiter.allowance(connection, nowNanos);
+        if (allowance == 0) {
+            this.throttle(connection, nowNanos);
+            return StatusCode.SUCCESS;
+        }
+        count = Math.min(count, allowance);
+
+        // move the available data from the socket to the file, the transfer may be partial
+        long bytesTransferred;
+        try {
+            bytesTransferred = fileChannel.transferFrom(socketChannel, connection.filePosition, count);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(socketChannel + "Cannot transfer data from the socket channel to the file: " + e.getMessage());
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+        if (bytesTransferred > 0) {
+            this.bandwidthLimiter.consume(connection, bytesTransferred);
+            connection.filePosition += this.countBytesReceived(connection, (int) bytesTransferred);
+            if (connection.bytesRemaining >= 0) {
+                connection.bytesRemaining -= bytesTransferred;
+                if (connection.bytesRemaining == 0) {
+                    this.finishAConnection(connection);
+                }
+            }
+            return StatusCode.SUCCESS;
+        }
+
+        // nothing was transferred although the socket is readable: probe for the end of stream
+        boolean isEndOfStream = false;
+        try {
+            this.probeBuffer.clear();
+            this.probeBuffer.limit((int) Math.min(this.probeBuffer.capacity(), count));
+            if (socketChannel.read(this.probeBuffer) == -1) {
+                isEndOfStream = true;
+            }
+            this.probeBuffer.flip();
+            this.bandwidthLimiter.consume(connection, this.probeBuffer.remaining());
+            this.countBytesReceived(connection, this.probeBuffer.remaining());
+            if (connection.bytesRemaining >= 0) {
+                connection.bytesRemaining -= this.probeBuffer.remaining();
+            }
+            while (this.probeBuffer.remaining() != 0) {
+                connection.filePosition += fileChannel.write(this.probeBuffer, connection.filePosition);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(socketChannel + "Cannot receive the file: " + e.getMessage());
+            this.closeAConnection(connection);
+            return StatusCode.Fail;
+        }
+
+        // test the flag to judge whether close the connection
+        if (isEndOfStream || connection.bytesRemaining == 0) {
+            this.finishAConnection(connection);
+        }
+
+        return StatusCode.SUCCESS;
+    }
+
+    private TransferHeader readHeader(Connection connection) {
+        SocketChannel socketChannel = connection.socketChannel;
+
+        // get the inputBuffer
+        ByteBuffer inputBuffer = this.takeAnInputBuffer(connection);
+
+        // test the inputBuffer
+        if (inputBuffer == null) {
+            System.err.println("Null input buffer.");
+            return null;
+        }
+
+        // read the first batch of data from socket input buffer in one go, the data after the header is charged to
+        // the bandwidth limits like the rest of the range
+        try {
+            if (this.receive(connection, inputBuffer) == -1) {
+                // the peer closed the connection before sending a complete header
+                System.err.println(socketChannel + "The connection was closed before the header was received.");
+                this.closeAConnection(connection);
+                return null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println(socketChannel + "Cannot read data from the socket channel: " + e.getMessage());
+            this.closeAConnection(connection);
+            return null;
+        }
+
+        // switch to the read mode
+        inputBuffer.flip();
+
+        // a session carries framed streams instead of a single header
+        if (SessionFrame.startsASession(inputBuffer)) {
+            inputBuffer.position(inputBuffer.position() + SessionFrame.PREAMBLE_LENGTH);
+            inputBuffer.compact();
+            connection.streams = new HashMap<>();
+
+            // the small verdict frames must not wait for the acknowledgement of the previous ones
+            try {
+                socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println(socketChannel + "Cannot disable Nagle's algorithm: " + e.getMessage());
+            }
+            return null;
+        }
+
+        // a deduplicated upload starts with the manifest of its chunks
+        if (ChunkManifest.startsADedup(inputBuffer)) {
+            try {
+                connection.manifest = ChunkManifest.parseHead(inputBuffer);
+            } catch (ProtocolException e) {
+                System.err.println(socketChannel + "Invalid manifest: " + e.getMessage());
+                this.closeAConnection(connection);
+                return null;
+            }
+            inputBuffer.compact();
+            return null;
+        }
+
+        // a download request is answered at once
+        if (GetRequest.startsAGet(inputBuffer)) {
+            GetRequest request;
+            try {
+                request = GetRequest.parse(inputBuffer);
+            } catch (ProtocolException e) {
+                System.err.println(socketChannel + "Invalid download request: " + e.getMessage());
+                this.closeAConnection(connection);
+                return null;
+            }
+            inputBuffer.compact();
+            if (request != null) {
+                this.releaseTheInputBuffer(connection);
+                this.startADownload(connection, request);
+            }
+            return null;
+        }
+
+        // a signature request is answered once the signatures of the file are computed
+        if (SignatureRequest.startsASignatureRequest(inputBuffer)) {
+            SignatureRequest request;
+            try {
+                request = SignatureRequest.parse(inputBuffer);
+            } catch (ProtocolException e) {
+                System.err.println(socketChannel + "Invalid signature request: " + e.getMessage());
+                this.closeAConnection(connection);
+                return null;
+            }
+            inputBuffer.compact();
+            if (request != null) {
+                this.releaseTheInputBuffer(connection);
+                this.signAFile(connection, request);
+            }
+            return null;
+        }
+
+        // parse the header, the buffer may not hold all of it yet
+        TransferHeader header;
+        try {
+            header = TransferHeader.parse(inputBuffer);
+        } catch (ProtocolException e) {
+            System.err.println(socketChannel + "Invalid header: " + e.getMessage());
+            this.closeAConnection(connection);
+            return null;
+        }
+
+        // switch to the write mode, keeping the data after the header
+        inputBuffer.compact();
+
+        return header;
+    }
+}
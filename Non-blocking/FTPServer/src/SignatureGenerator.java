@@ -0,0 +1,171 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Computes the block signatures of the files asked for before a delta upload (see {@link SignatureRequest}), shared by
+ * all selector workers. The blocks of a file are split into segments hashed in parallel by a pool of threads, each
+ * segment writing its signatures at their place in the reply; the reply is handed back once the last segment is done,
+ * so that a worker never reads or hashes a file itself.
+ */
+public class SignatureGenerator {
+
+    // blocks of a segment at least, fewer are not worth a task of their own
+    private static final int MIN_SEGMENT_BLOCKS = 64;
+
+    // bytes read at once by a segment, whole blocks of them
+    private static final int READ_LENGTH = 1 << 22;
+
+    // one read buffer and one digest per thread of the pool
+    private static final ThreadLocal<byte[]> readBuffers = ThreadLocal.withInitial(() -> new byte[READ_LENGTH]);
+
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(SignatureRequest::newStrongDigest);
+
+    private final ExecutorService hashers;
+
+    // segments of a file per thread of the pool, so that a slow segment does not hold the others back
+    private final int segmentsPerFile;
+
+    private final LongAdder filesSigned = new LongAdder();
+
+    private final LongAdder blocksSigned = new LongAdder();
+
+    private final LongAdder bytesRead = new LongAdder();
+
+    public SignatureGenerator(int threadCount) {
+        this.segmentsPerFile = 4 * threadCount;
+        AtomicInteger hasherId = new AtomicInteger();
+        this.hashers = Executors.newFixedThreadPool(threadCount, task -> {
+            Thread thread = new Thread(task, "signature-hasher-" + hasherId.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void stop() {
+        this.hashers.shutdownNow();
+    }
+
+    /**
+     * Computes the signatures of the file with blocks of about `requestedBlockSize` bytes (0 for the default). Runs
+     * `onGenerated` on a thread of the pool with the reply (in read mode) once they are all computed, or with null
+     * when the file cannot be read.
+     */
+    public void generate(File file, int requestedBlockSize, Consumer<ByteBuffer> onGenerated) {
+        FileChannel fileChannel;
+        long fileSize;
+        try {
+            fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            fileSize = fileChannel.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot open " + file + " to sign it: " + e.getMessage());
+            onGenerated.accept(null);
+            return;
+        }
+
+        int blockSize = SignatureRequest.blockSizeOf(fileSize, requestedBlockSize);
+        int blockCount = (int) ((fileSize + blockSize - 1) / blockSize);
+        ByteBuffer reply = ByteBuffer.allocate(SignatureRequest.REPLY_HEADER_LENGTH
+                + blockCount * SignatureRequest.SIGNATURE_LENGTH);
+        reply.put((byte) SignatureRequest.STATUS_OK).putLong(fileSize).putInt(blockSize).putInt(blockCount);
+
+        // split the blocks into segments of whole reads
+        int blocksPerRead = Math.max(1, READ_LENGTH / blockSize);
+        int segmentBlocks = Math.max(MIN_SEGMENT_BLOCKS, (blockCount + this.segmentsPerFile - 1) / this.segmentsPerFile);
+        segmentBlocks = (segmentBlocks + blocksPerRead - 1) / blocksPerRead * blocksPerRead;
+        int segmentCount = Math.max(1, (blockCount + segmentBlocks - 1) / segmentBlocks);
+
+        // the last segment done hands the reply over, the file is only read by positional reads meanwhile
+        AtomicInteger segmentsLeft = new AtomicInteger(segmentCount);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        for (int segment = 0; segment < segmentCount; segment++) {
+            int firstBlock = segment * segmentBlocks;
+            int lastBlock = Math.min(blockCount, firstBlock + segmentBlocks);
+            this.hashers.execute(() -> {
+                try {
+                    if (failure.get() == null) {
+                        this.sign(fileChannel, fileSize, blockSize, firstBlock, lastBlock, reply);
+                    }
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+                if (segmentsLeft.decrementAndGet() == 0) {
+                    this.finish(file, fileChannel, blockCount, reply, failure.get(), onGenerated);
+                }
+            });
+        }
+    }
+
+    /**
+     * Computes the signatures of the blocks from `firstBlock` up to `lastBlock` and writes them at their place in the
+     * reply.
+     */
+    private void sign(FileChannel fileChannel, long fileSize, int blockSize, int firstBlock, int lastBlock,
+                      ByteBuffer reply) throws IOException {
+        byte[] bytes = readBuffers.get();
+        MessageDigest sha256 = digests.get();
+        int blocksPerRead = Math.max(1, READ_LENGTH / blockSize);
+        byte[] signatures = new byte[(lastBlock - firstBlock) * SignatureRequest.SIGNATURE_LENGTH];
+        ByteBuffer entries = ByteBuffer.wrap(signatures);
+        byte[] strong = new byte[SignatureRequest.STRONG_LENGTH];
+
+        for (int block = firstBlock; block < lastBlock; block += blocksPerRead) {
+            long position = (long) block * blockSize;
+            int length = (int) Math.min((long) Math.min(blocksPerRead, lastBlock - block) * blockSize,
+                    fileSize - position);
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, length);
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, position + buffer.position()) == -1) {
+                    throw new IOException("The file ended before " + fileSize + " byte(s)");
+                }
+            }
+            this.bytesRead.add(length);
+
+            for (int offset = 0; offset < length; offset += blockSize) {
+                int count = Math.min(blockSize, length - offset);
+                entries.putInt(SignatureRequest.weakChecksum(bytes, offset, count));
+                SignatureRequest.strongChecksum(sha256, bytes, offset, count, strong, 0);
+                entries.put(strong);
+            }
+        }
+
+        // the segments write disjoint parts of the reply, published by the countdown of the segments left
+        reply.put(SignatureRequest.REPLY_HEADER_LENGTH + firstBlock * SignatureRequest.SIGNATURE_LENGTH, signatures);
+    }
+
+    private void finish(File file, FileChannel fileChannel, int blockCount, ByteBuffer reply, IOException failure,
+                        Consumer<ByteBuffer> onGenerated) {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot close " + file + ": " + e.getMessage());
+        }
+        if (failure != null) {
+            failure.printStackTrace();
+            System.err.println("Cannot sign " + file + ": " + failure.getMessage());
+            onGenerated.accept(null);
+            return;
+        }
+        this.filesSigned.increment();
+        this.blocksSigned.add(blockCount);
+        reply.position(reply.capacity()).flip();
+        onGenerated.accept(reply);
+    }
+
+    @Override
+    public String toString() {
+        return "signatures: " + this.filesSigned.sum() + " file(s), " + this.blocksSigned.sum() + " block(s), "
+                + this.bytesRead.sum() + " byte(s) read";
+    }
+}
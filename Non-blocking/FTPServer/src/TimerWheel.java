@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+
+/**
+ * A hashed timer wheel owned by one selector worker. Timers are hashed by their deadline tick into `slotCount`
+ * slots of intrusive lists, so scheduling and cancelling are O(1) and a pass of the worker only looks at the slots of
+ * the ticks that went by. A timer due more than one turn of the wheel ahead stays in its slot for the later turns.
+ * Not thread-safe: it is only used on the thread of its worker, which selects with the timeout returned by
+ * {@link #millisUntilNextTimer(long)} and calls {@link #advance(long)} after every select.
+ */
+public class TimerWheel {
+
+    /**
+     * A scheduled task, cancellable until it runs.
+     */
+    public static class Timer {
+
+        final long deadlineTick;
+
+        final Runnable task;
+
+        Timer previous;
+
+        Timer next;
+
+        // false once the timer is taken off its slot, to run or because it was cancelled
+        boolean scheduled = true;
+
+        boolean cancelled;
+
+        // the wheel holding the timer, to unlink it on cancellation
+        private final TimerWheel wheel;
+
+        Timer(TimerWheel wheel, long deadlineTick, Runnable task) {
+            this.wheel = wheel;
+            this.deadlineTick = deadlineTick;
+            this.task = task;
+        }
+
+        public void cancel() {
+            this.cancelled = true;
+            if (this.scheduled) {
+                this.wheel.unlink(this);
+            }
+        }
+    }
+
+    private final long tickNanos;
+
+    private final Timer[] slots;
+
+    private final int mask;
+
+    private final long startNanos = System.nanoTime();
+
+    // the last tick whose timers ran
+    private long currentTick;
+
+    private int size;
+
+    private final ArrayList<Timer> dueTimers = new ArrayList<>();
+
+    /**
+     * Creates a wheel of `slotCount` slots, rounded up to a power of two, of `tickNanos` each.
+     */
+    public TimerWheel(long tickNanos, int slotCount) {
+        this.tickNanos = tickNanos;
+        int slots = Integer.highestOneBit(Math.max(2, slotCount - 1)) << 1;
+        this.slots = new Timer[slots];
+        this.mask = slots - 1;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Runs the task on the thread of the wheel once `delayNanos` went by, one tick later at most.
+     */
+    public Timer schedule(long delayNanos, Runnable task) {
+        long deadline = System.nanoTime() - this.startNanos + Math.max(0, delayNanos);
+        long deadlineTick = Math.max(this.currentTick + 1, (deadline + this.tickNanos - 1) / this.tickNanos);
+        Timer timer = new Timer(this, deadlineTick, task);
+
+        int slot = (int) (deadlineTick & this.mask);
+        timer.next = this.slots[slot];
+        if (timer.next != null) {
+            timer.next.previous = timer;
+        }
+        this.slots[slot] = timer;
+        this.size++;
+        return timer;
+    }
+
+    private void unlink(Timer timer) {
+        int slot = (int) (timer.deadlineTick & this.mask);
+        if (timer.previous != null) {
+            timer.previous.next = timer.next;
+        } else {
+            this.slots[slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.previous = timer.previous;
+        }
+        timer.previous = null;
+        timer.next = null;
+        timer.scheduled = false;
+        this.size--;
+    }
+
+    /**
+     * Runs the timers due at `nowNanos` (a `System.nanoTime()` value). A timer scheduled by a task runs on a later
+     * call at the earliest.
+     */
+    public void advance(long nowNanos) {
+        long nowTick = (nowNanos - this.startNanos) / this.tickNanos;
+        // past one turn every slot has been visited, the later ticks only find the timers of later turns
+        long lastTick = Math.min(nowTick, this.currentTick + this.slots.length);
+        while (this.currentTick < lastTick && this.size != 0) {
+            this.currentTick++;
+
+            // unlink the due timers first, a task may cancel the others
+            Timer timer = this.slots[(int) (this.currentTick & this.mask)];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.deadlineTick <= nowTick) {
+                    this.unlink(timer);
+                    this.dueTimers.add(timer);
+                }
+                timer = next;
+            }
+            for (Timer due : this.dueTimers) {
+                if (!due.cancelled) {
+                    due.task.run();
+                }
+            }
+            this.dueTimers.clear();
+        }
+        this.currentTick = Math.max(this.currentTick, nowTick);
+    }
+
+    /**
+     * Returns how long the worker may select before a slot holding timers comes due, or 0 when there is no timer.
+     */
+    public long millisUntilNextTimer(long nowNanos) {
+        if (this.size == 0) {
+            return 0;
+        }
+        long tick = this.currentTick + 1;
+        while (tick <= this.currentTick + this.slots.length && this.slots[(int) (tick & this.mask)] == null) {
+            tick++;
+        }
+        long nanos = tick * this.tickNanos - (nowNanos - this.startNanos);
+        return Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+}
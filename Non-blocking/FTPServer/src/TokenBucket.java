@@ -0,0 +1,75 @@
+/**
+ * A token bucket of bytes. The rate is passed on every call rather than held, so a rate changed at runtime applies to
+ * the buckets already in use; the bucket holds one tenth of a second of tokens at most. The selector workers take
+ * what the bucket holds and pay for what they actually read afterwards, so a bucket shared by several workers may
+ * briefly go into debt, which the next refills pay back.
+ */
+public class TokenBucket {
+
+    // bytes of burst a bucket holds at least, one read of a pooled buffer
+    private static final long MIN_BURST = 1 << 16;
+
+    private double tokens;
+
+    private long lastRefillNanos;
+
+    // a bucket starts full
+    private boolean started;
+
+    private static long burstOf(long rate) {
+        return Math.max(MIN_BURST, rate / 10);
+    }
+
+    private void refill(long rate, long nowNanos) {
+        if (!this.started) {
+            this.started = true;
+            this.tokens = burstOf(rate);
+            this.lastRefillNanos = nowNanos;
+            return;
+        }
+        long elapsedNanos = nowNanos - this.lastRefillNanos;
+        if (elapsedNanos > 0) {
+            this.tokens = Math.min(burstOf(rate), this.tokens + rate * (elapsedNanos / 1e9));
+            this.lastRefillNanos = nowNanos;
+        }
+    }
+
+    /**
+     * Returns the whole bytes the bucket holds at `rate` bytes per second, 0 while it is empty or in debt.
+     */
+    public synchronized long available(long rate, long nowNanos) {
+        this.refill(rate, nowNanos);
+        return Math.max(0, (long) this.tokens);
+    }
+
+    /**
+     * Takes `bytes` out of the bucket, possibly into debt.
+     */
+    public synchronized void consume(long bytes) {
+        this.tokens -= bytes;
+    }
+
+    /**
+     * Takes `bytes` out of the bucket, or whatever it holds if less.
+     */
+    public synchronized void consumeUpTo(long bytes) {
+        this.tokens = Math.max(Math.min(this.tokens, 0), this.tokens - bytes);
+    }
+
+    /**
+     * Returns true while the bucket holds less than half of its burst at `rate` bytes per second.
+     */
+    public synchronized boolean isLow(long rate, long nowNanos) {
+        this.refill(rate, nowNanos);
+        return this.tokens < burstOf(rate) / 2;
+    }
+
+    /**
+     * Returns how long the bucket takes to hold `bytes` at `rate` bytes per second.
+     */
+    public synchronized long nanosUntil(long bytes, long rate, long nowNanos) {
+        this.refill(rate, nowNanos);
+        double missing = Math.min(bytes, burstOf(rate)) - this.tokens;
+        return missing <= 0 ? 0 : (long) (missing / rate * 1e9);
+    }
+}
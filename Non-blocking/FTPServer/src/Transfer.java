@@ -0,0 +1,144 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Properties;
+
+/**
+ * A file received as one or more ranges, possibly over parallel connections. The ranges are written into a
+ * part file which replaces the target file once every byte has arrived. The number of bytes held for each
+ * range is saved next to the part file whenever a range connection closes, so an interrupted upload can resume
+ * after a reconnection or a server restart.
+ */
+public class Transfer {
+
+    final long transferId;
+
+    final String fileName;
+
+    final long fileSize;
+
+    final File partFile;
+
+    // bytes written from the start of each range, saved in the progress file
+    final File progressFile;
+
+    // completed ranges, offset to length
+    private final HashMap<Long, Long> completedRanges = new HashMap<>();
+
+    // bytes held from the start of each range, offset to length
+    private final Properties progress = new Properties();
+
+    private long completedBytes;
+
+    private boolean committed;
+
+    // the progress file exists and must be deleted on commit
+    private boolean progressSaved;
+
+    Transfer(long transferId, String fileName, long fileSize) {
+        this.transferId = transferId;
+        this.fileName = fileName;
+        this.fileSize = fileSize;
+        this.partFile = new File(fileName + "." + Long.toHexString(transferId) + ".part");
+        this.progressFile = new File(this.partFile.getPath() + ".progress");
+
+        // reload the progress of an interrupted upload
+        this.progressSaved = this.progressFile.exists();
+        if (this.partFile.exists() && this.progressSaved) {
+            try (FileInputStream fis = new FileInputStream(this.progressFile)) {
+                this.progress.load(fis);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.err.println("Cannot read " + this.progressFile + ", the upload restarts from scratch: " + e.getMessage());
+                this.progress.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes held from the start of the range at `offset`.
+     */
+    synchronized long heldBytes(long offset, long length) {
+        String held = this.progress.getProperty(Long.toString(offset));
+        if (held == null) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Math.min(Long.parseLong(held), length));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Saves the number of bytes held from the start of the range at `offset`.
+     */
+    synchronized void recordProgress(long offset, long held) {
+        if (this.committed) {
+            return;
+        }
+        this.progress.setProperty(Long.toString(offset), Long.toString(held));
+        try (FileOutputStream fos = new FileOutputStream(this.progressFile)) {
+            this.progressSaved = true;
+            this.progress.store(fos, this.fileName + ", " + this.fileSize + " byte(s)");
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot write " + this.progressFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records a fully written range. Returns true when it completed the file.
+     */
+    synchronized boolean completeRange(long offset, long length) {
+        if (this.committed) {
+            return false;
+        }
+        Long previous = this.completedRanges.put(offset, length);
+        this.completedBytes += length - (previous == null ? 0 : previous);
+        if (this.completedBytes >= this.fileSize) {
+            this.committed = true;
+            return true;
+        }
+        this.recordProgress(offset, length);
+        return false;
+    }
+
+    /**
+     * Cuts the part file to the size of the file, moves it over the target file and deletes the progress file.
+     */
+    void commit() throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(this.partFile, "rw")) {
+            if (randomAccessFile.length() != this.fileSize) {
+                randomAccessFile.setLength(this.fileSize);
+            }
+        }
+        try {
+            Files.move(this.partFile.toPath(), new File(this.fileName).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(this.partFile.toPath(), new File(this.fileName).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (this.progressSaved) {
+            Files.deleteIfExists(this.progressFile.toPath());
+        }
+    }
+
+    /**
+     * Syncs the server directory, so that the renames of the committed part files survive a crash.
+     */
+    static void syncTheDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(Paths.get("."), StandardOpenOption.READ)) {
+            directory.force(true);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The header sent by the client at the start of a connection. Two layouts are accepted:
+ *
+ * <pre>
+ * legacy:   u8 name length (1..255), US-ASCII name; the file is sent until the end of stream
+ * extended: u8 0, u8 version, u16 flags, u16 name length, UTF-8 name,
+ *           i64 transfer ID, i64 file size, i64 range offset, i64 range length
+ * </pre>
+ *
+ * An extended header carries one range of a file; a file may be split into ranges sent over several connections
+ * that share the transfer ID. The server answers an extended header with the i64 number of bytes of the range it
+ * already holds (always 0 without {@link #FLAG_RESUME}) and, once the whole range is written, with a verdict:
+ * u8 status, i64 bytes held, i32 CRC32C of the range. A connection starting with u8 0, u8 2 is a session carrying
+ * many ranges instead, see {@link SessionFrame}. This class is shared by the client and the server.
+ *
+ * With {@link #FLAG_COMPRESS} the data of a range is sent as chunks, each starting at a chunk boundary of the
+ * range so that a resumed range restarts cleanly:
+ *
+ * <pre>
+ * chunk:    u8 kind, u32 length, payload
+ *           {@link #CHUNK_STORED} payload is the raw bytes, {@link #CHUNK_DEFLATED} payload is one zlib stream
+ * </pre>
+ *
+ * A chunk that does not shrink is sent stored.
+ *
+ * With {@link #FLAG_DELTA} as well, the range is rebuilt from the copy of the file the server already holds under the
+ * same name: besides the chunks of literal bytes, a {@link #CHUNK_COPY} chunk copies bytes of that copy, found by
+ * matching the signatures of its blocks (see {@link SignatureRequest}):
+ *
+ * <pre>
+ * copy:     u8 {@link #CHUNK_COPY}, u32 length, i64 offset in the copy held by the server
+ * </pre>
+ *
+ * With {@link #FLAG_BLOCK_CHECKSUMS} the data of the range is followed by the i32 CRC32C of each of its blocks of
+ * {@link #BLOCK_SIZE} bytes, the last one may be partial. A range with a corrupt block gets the verdict
+ * {@link #VERDICT_CORRUPT} with the bytes held before that block, from which it can be resumed. Such a range has at
+ * most {@link #MAX_BLOCK_CHECKSUMS} blocks, the client splits a longer file into as many ranges.
+ *
+ * The server rejects a header with flags it does not know, so that data it cannot decode is never written as is.
+ */
+public class TransferHeader {
+
+    public static final int VERSION = 1;
+
+    public static final int MAX_NAME_LENGTH = 4096;
+
+    // continue the range from the bytes the server already holds
+    public static final int FLAG_RESUME = 1;
+
+    // the data of the range is sent as stored or deflated chunks
+    public static final int FLAG_COMPRESS = 2;
+
+    // the CRC32C of every block follows the data of the range
+    public static final int FLAG_BLOCK_CHECKSUMS = 4;
+
+    // the chunks of the range may copy bytes of the file the server already holds, along with FLAG_COMPRESS
+    public static final int FLAG_DELTA = 8;
+
+    private static final int KNOWN_FLAGS = FLAG_RESUME | FLAG_COMPRESS | FLAG_BLOCK_CHECKSUMS | FLAG_DELTA;
+
+    public static final int BLOCK_SIZE = 1 << 20;
+
+    // block checksums following one range at most, so that the server holds 64 KiB of them per connection for a
+    // range of 16 GiB
+    public static final int MAX_BLOCK_CHECKSUMS = 1 << 14;
+
+    public static final int CHUNK_STORED = 0;
+
+    public static final int CHUNK_DEFLATED = 1;
+
+    public static final int CHUNK_COPY = 2;
+
+    // the offset following the header of a copy chunk
+    public static final int COPY_PAYLOAD_LENGTH = 8;
+
+    public static final int CHUNK_HEADER_LENGTH = 1 + 4;
+
+    public static final int VERDICT_OK = 0;
+
+    public static final int VERDICT_FAILED = 1;
+
+    // a block does not match its checksum, the bytes held end before it
+    public static final int VERDICT_CORRUPT = 2;
+
+    public static final int OFFSET_REPLY_LENGTH = 8;
+
+    public static final int VERDICT_LENGTH = 1 + 8 + 4;
+
+    // size of the extended header without the name
+    private static final int FIXED_LENGTH = 1 + 1 + 2 + 2 + 8 * 4;
+
+    public final String fileName;
+
+    public final int flags;
+
+    public final long transferId;
+
+    // -1 for a legacy header
+    public final long fileSize;
+
+    public final long offset;
+
+    // -1 for a legacy header, the data then ends with the stream
+    public final long length;
+
+    public TransferHeader(String fileName, int flags, long transferId, long fileSize, long offset, long length) {
+        this.fileName = fileName;
+        this.flags = flags;
+        this.transferId = transferId;
+        this.fileSize = fileSize;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public boolean isLegacy() {
+        return this.fileSize < 0;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (this.flags & flag) != 0;
+    }
+
+    /**
+     * Returns the number of bytes of the extended header.
+     */
+    public int encodedLength() {
+        return FIXED_LENGTH + this.fileName.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Writes the extended header into the buffer in write mode.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        byte[] name = this.fileName.getBytes(StandardCharsets.UTF_8);
+        buffer.put((byte) 0);
+        buffer.put((byte) VERSION);
+        buffer.putShort((short) this.flags);
+        buffer.putShort((short) name.length);
+        buffer.put(name);
+        buffer.putLong(this.transferId);
+        buffer.putLong(this.fileSize);
+        buffer.putLong(this.offset);
+        buffer.putLong(this.length);
+    }
+
+    /**
+     * Parses a header from the buffer in read mode. Returns null and leaves the position untouched when the
+     * buffer does not hold the whole header yet.
+     */
+    public static TransferHeader parse(ByteBuffer buffer) throws ProtocolException {
+        if (buffer.remaining() < 1) {
+            return null;
+        }
+        int start = buffer.position();
+        int first = Byte.toUnsignedInt(buffer.get(start));
+
+        // legacy header
+        if (first != 0) {
+            if (buffer.remaining() < 1 + first) {
+                return null;
+            }
+            byte[] name = new byte[first];
+            buffer.position(start + 1);
+            buffer.get(name);
+            return new TransferHeader(new String(name, StandardCharsets.US_ASCII), 0, 0, -1, 0, -1);
+        }
+
+        // extended header
+        if (buffer.remaining() < FIXED_LENGTH) {
+            return null;
+        }
+        int version = Byte.toUnsignedInt(buffer.get(start + 1));
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported header version " + version);
+        }
+        int nameLength = Short.toUnsignedInt(buffer.getShort(start + 4));
+        if (nameLength == 0 || nameLength > MAX_NAME_LENGTH) {
+            throw new ProtocolException("Invalid file name length " + nameLength);
+        }
+        if (buffer.remaining() < FIXED_LENGTH + nameLength) {
+            return null;
+        }
+
+        buffer.position(start + 2);
+        int flags = Short.toUnsignedInt(buffer.getShort());
+        if ((flags & ~KNOWN_FLAGS) != 0 || ((flags & FLAG_DELTA) != 0 && (flags & FLAG_COMPRESS) == 0)) {
+            throw new ProtocolException("Unsupported flags " + Integer.toHexString(flags));
+        }
+        buffer.getShort();
+        byte[] name = new byte[nameLength];
+        buffer.get(name);
+        long transferId = buffer.getLong();
+        long fileSize = buffer.getLong();
+        long offset = buffer.getLong();
+        long length = buffer.getLong();
+        // `offset + length` could overflow, `fileSize - offset` cannot once both are known not to be negative
+        if (fileSize < 0 || offset < 0 || length < 0 || length > fileSize - offset) {
+            throw new ProtocolException("Invalid range of " + length + " byte(s) at " + offset + " of a "
+                    + fileSize + " byte(s) file");
+        }
+        return new TransferHeader(new String(name, StandardCharsets.UTF_8), flags, transferId, fileSize, offset, length);
+    }
+
+    @Override
+    public String toString() {
+        if (this.isLegacy()) {
+            return this.fileName;
+        }
+        return this.fileName + " [" + this.offset + ", " + (this.offset + this.length) + ") of " + this.fileSize
+                + " byte(s), transfer " + Long.toHexString(this.transferId);
+    }
+}
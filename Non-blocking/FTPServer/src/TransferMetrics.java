@@ -0,0 +1,122 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the received data shared by all selector workers. Every counter is a {@link LongAdder} so that the
+ * workers update them without contention; the sums are only read by the periodic summary and through JMX.
+ */
+public class TransferMetrics implements TransferMetricsMBean {
+
+    // bucket i counts the transfers below 2^i MB/s, the last bucket counts the faster ones
+    static final int HISTOGRAM_BUCKETS = 12;
+
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private final LongAdder chunksReceived = new LongAdder();
+
+    private final LongAdder activeConnections = new LongAdder();
+
+    private final LongAdder transfersCompleted = new LongAdder();
+
+    private final LongAdder transferNanos = new LongAdder();
+
+    private final LongAdder[] throughputHistogram = new LongAdder[HISTOGRAM_BUCKETS];
+
+    public TransferMetrics() {
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            this.throughputHistogram[i] = new LongAdder();
+        }
+    }
+
+    public void connectionOpened() {
+        this.activeConnections.increment();
+    }
+
+    public void connectionClosed() {
+        this.activeConnections.decrement();
+    }
+
+    /**
+     * Counts a chunk read from the socket of the connection, both for the connection and globally.
+     */
+    public void received(Connection connection, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        connection.bytesReceived.add(bytes);
+        connection.chunksReceived.increment();
+        this.bytesReceived.add(bytes);
+        this.chunksReceived.increment();
+    }
+
+    /**
+     * Counts a range or a legacy file received in full by the connection.
+     */
+    public void transferCompleted(Connection connection) {
+        long nanos = Math.max(1, System.nanoTime() - connection.startNanos);
+        this.transfersCompleted.increment();
+        this.transferNanos.add(nanos);
+
+        double megabytesPerSecond = connection.bytesReceived.sum() / 1e6 / (nanos / 1e9);
+        int bucket = 0;
+        while (bucket < HISTOGRAM_BUCKETS - 1 && megabytesPerSecond >= (1L << bucket)) {
+            bucket++;
+        }
+        this.throughputHistogram[bucket].increment();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return this.bytesReceived.sum();
+    }
+
+    @Override
+    public long getChunksReceived() {
+        return this.chunksReceived.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return this.activeConnections.sum();
+    }
+
+    @Override
+    public long getTransfersCompleted() {
+        return this.transfersCompleted.sum();
+    }
+
+    @Override
+    public long getAverageTransferMillis() {
+        long completed = this.transfersCompleted.sum();
+        return completed == 0 ? 0 : this.transferNanos.sum() / completed / 1_000_000;
+    }
+
+    @Override
+    public long[] getThroughputHistogram() {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            histogram[i] = this.throughputHistogram[i].sum();
+        }
+        return histogram;
+    }
+
+    @Override
+    public String getSummary() {
+        return this.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder histogram = new StringBuilder();
+        long[] counts = this.getThroughputHistogram();
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            if (counts[i] != 0) {
+                histogram.append(histogram.length() == 0 ? "" : " ")
+                        .append(i == HISTOGRAM_BUCKETS - 1 ? ">=" + (1L << (i - 1)) : "<" + (1L << i))
+                        .append(':').append(counts[i]);
+            }
+        }
+        return this.getActiveConnections() + " active connection(s), " + this.getBytesReceived() + " byte(s) in "
+                + this.getChunksReceived() + " chunk(s), " + this.getTransfersCompleted() + " transfer(s) completed in "
+                + this.getAverageTransferMillis() + " ms on average, throughput MB/s [" + histogram + "]";
+    }
+}
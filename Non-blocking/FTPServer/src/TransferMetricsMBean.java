@@ -0,0 +1,19 @@
+/**
+ * The JMX view of {@link TransferMetrics}.
+ */
+public interface TransferMetricsMBean {
+
+    long getBytesReceived();
+
+    long getChunksReceived();
+
+    long getActiveConnections();
+
+    long getTransfersCompleted();
+
+    long getAverageTransferMillis();
+
+    long[] getThroughputHistogram();
+
+    String getSummary();
+}
@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The transfers in progress, shared by all selector workers and disk writers.
+ */
+public class TransferRegistry {
+
+    private final ConcurrentHashMap<Long, Transfer> transfers = new ConcurrentHashMap<>();
+
+    // sync the server directory after each commit, set by the `fsync-on-close` durability policy; `group-commit`
+    // syncs it once per batch instead
+    private final boolean syncCommits;
+
+    public TransferRegistry(boolean syncCommits) {
+        this.syncCommits = syncCommits;
+    }
+
+    /**
+     * Returns the transfer of the header, creating it for the first of its ranges.
+     */
+    public Transfer open(TransferHeader header) throws ProtocolException {
+        Transfer transfer = this.transfers.computeIfAbsent(header.transferId,
+                transferId -> new Transfer(transferId, header.fileName, header.fileSize));
+        if (!transfer.fileName.equals(header.fileName) || transfer.fileSize != header.fileSize) {
+            throw new ProtocolException("The transfer " + Long.toHexString(header.transferId)
+                    + " is already used by " + transfer.fileName);
+        }
+        return transfer;
+    }
+
+    /**
+     * Records a fully written range and commits the file once all of its ranges are written. Called after the
+     * file channel of the range was closed. Returns false when the commit failed, the file is then not stored.
+     */
+    public boolean rangeWritten(Transfer transfer, long offset, long length) {
+        if (!transfer.completeRange(offset, length)) {
+            return true;
+        }
+
+        this.transfers.remove(transfer.transferId);
+        try {
+            transfer.commit();
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.err.println("Cannot commit " + transfer.partFile + " as " + transfer.fileName + ": " + e.getMessage());
+            return false;
+        }
+        if (this.syncCommits) {
+            try {
+                Transfer.syncTheDirectory();
+            } catch (IOException e) {
+                // some platforms cannot open a directory, the rename is then as durable as the OS makes it
+                e.printStackTrace();
+                System.err.println("Cannot sync the directory of " + transfer.fileName + ": " + e.getMessage());
+            }
+        }
+        System.out.println("[" + new Date() + "] " + transfer.fileName + " (" + transfer.fileSize
+                + " byte(s)) was committed.");
+        return true;
+    }
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+/**
+ * A named set of socket options for a kind of network, applied to the sockets of both sides:
+ *
+ * <pre>
+ * default      the options of the system, 64 KiB application buffers and a backlog of 50
+ * lan          10 Gbit/s, 0.5 ms round trips, moderate buffers
+ * wan          1 Gbit/s, 50 ms round trips, large buffers to keep a long pipe full
+ * small-files  short transfers, small buffers and a long backlog for bursts of connections
+ * </pre>
+ *
+ * The kernel and application buffers are sized to the bandwidth-delay product: the bytes in flight on the path at the
+ * bandwidth of the profile during one round trip, measured by the caller (the connect of the client) or the nominal
+ * round trip of the profile. The kernel buffers hold two products so that a lost segment does not stall the window,
+ * the application buffers one product rounded down to a power of two, both within the bounds of the profile.
+ */
+public class TransportProfile {
+
+    public static final TransportProfile DEFAULT = new TransportProfile("default", 0, 0, 0, 0, 1 << 16, 1 << 16, 50,
+            false);
+
+    public static final TransportProfile LAN = new TransportProfile("lan", 10_000, 500, 256 << 10, 8 << 20, 64 << 10,
+            1 << 20, 128, true);
+
+    public static final TransportProfile WAN = new TransportProfile("wan", 1_000, 50_000, 1 << 20, 64 << 20, 256 << 10,
+            4 << 20, 256, true);
+
+    public static final TransportProfile SMALL_FILES = new TransportProfile("small-files", 1_000, 1_000, 64 << 10,
+            512 << 10, 16 << 10, 64 << 10, 1024, true);
+
+    final String name;
+
+    // bandwidth of the path in bytes per second, 0 to leave the kernel buffers alone
+    final long bytesPerSecond;
+
+    // round trip assumed before one is measured
+    final long nominalRttNanos;
+
+    final int minKernelBuffer;
+
+    final int maxKernelBuffer;
+
+    final int minAppBuffer;
+
+    final int maxAppBuffer;
+
+    // connections waiting in the backlog of a listening socket
+    final int backlog;
+
+    final boolean noDelay;
+
+    private TransportProfile(String name, long megabitsPerSecond, long nominalRttMicros, int minKernelBuffer,
+                             int maxKernelBuffer, int minAppBuffer, int maxAppBuffer, int backlog, boolean noDelay) {
+        this.name = name;
+        this.bytesPerSecond = megabitsPerSecond * 1_000_000 / 8;
+        this.nominalRttNanos = nominalRttMicros * 1000;
+        this.minKernelBuffer = minKernelBuffer;
+        this.maxKernelBuffer = maxKernelBuffer;
+        this.minAppBuffer = minAppBuffer;
+        this.maxAppBuffer = maxAppBuffer;
+        this.backlog = backlog;
+        this.noDelay = noDelay;
+    }
+
+    /**
+     * Returns the profile of the name, with the bandwidth of the path instead of its own when `megabitsPerSecond` is
+     * positive. Returns null for an unknown name.
+     */
+    public static TransportProfile named(String name, long megabitsPerSecond) {
+        TransportProfile profile;
+        switch (name) {
+            case "default":
+                return DEFAULT;
+            case "lan":
+                profile = LAN;
+                break;
+            case "wan":
+                profile = WAN;
+                break;
+            case "small-files":
+                profile = SMALL_FILES;
+                break;
+            default:
+                return null;
+        }
+        if (megabitsPerSecond <= 0) {
+            return profile;
+        }
+        return new TransportProfile(profile.name, megabitsPerSecond, profile.nominalRttNanos / 1000,
+                profile.minKernelBuffer, profile.maxKernelBuffer, profile.minAppBuffer, profile.maxAppBuffer,
+                profile.backlog, profile.noDelay);
+    }
+
+    /**
+     * Returns the bytes in flight on the path during a round trip of `rttNanos`, the nominal one when it is 0.
+     */
+    public long bandwidthDelayProduct(long rttNanos) {
+        long rtt = rttNanos > 0 ? rttNanos : this.nominalRttNanos;
+        return (long) (this.bytesPerSecond * (rtt / 1e9));
+    }
+
+    /**
+     * Returns the size of the send and receive buffers of the kernel, 0 to keep those of the system.
+     */
+    public int kernelBufferFor(long rttNanos) {
+        if (this.bytesPerSecond == 0) {
+            return 0;
+        }
+        return (int) Math.max(this.minKernelBuffer, Math.min(this.maxKernelBuffer, 2 * this.bandwidthDelayProduct(rttNanos)));
+    }
+
+    /**
+     * Returns the size of the buffers the application reads and writes the sockets with.
+     */
+    public int appBufferFor(long rttNanos) {
+        long product = Math.max(1, Math.min(this.maxAppBuffer, this.bandwidthDelayProduct(rttNanos)));
+        return (int) Math.max(this.minAppBuffer, Long.highestOneBit(product));
+    }
+
+    /**
+     * Sets the options of the profile the channel supports: the kernel buffers sized for the round trip and
+     * TCP_NODELAY. The receive buffer of a socket must be set before it connects (or, for a listening socket, before
+     * it binds) for the window scale to allow it; the send buffer may grow at any time.
+     */
+    public void apply(NetworkChannel channel, long rttNanos) throws IOException {
+        int kernelBuffer = this.kernelBufferFor(rttNanos);
+        if (kernelBuffer > 0) {
+            setIfSupported(channel, StandardSocketOptions.SO_RCVBUF, kernelBuffer);
+            setIfSupported(channel, StandardSocketOptions.SO_SNDBUF, kernelBuffer);
+        }
+        if (this.noDelay) {
+            setIfSupported(channel, StandardSocketOptions.TCP_NODELAY, true);
+        }
+    }
+
+    private static <T> void setIfSupported(NetworkChannel channel, SocketOption<T> option, T value) throws IOException {
+        if (channel.supportedOptions().contains(option)) {
+            channel.setOption(option, value);
+        }
+    }
+
+    /**
+     * Returns the options the channel got, as the kernel granted them (Linux doubles the buffers it is asked for and
+     * caps them to its own maximum), for the logs.
+     */
+    public static String describe(NetworkChannel channel) {
+        StringBuilder description = new StringBuilder();
+        for (SocketOption<?> option : new SocketOption<?>[] {StandardSocketOptions.SO_RCVBUF,
+                StandardSocketOptions.SO_SNDBUF, StandardSocketOptions.TCP_NODELAY}) {
+            if (!channel.supportedOptions().contains(option)) {
+                continue;
+            }
+            try {
+                description.append(description.length() == 0 ? "" : ", ").append(option.name()).append('=')
+                        .append(channel.getOption(option));
+            } catch (IOException e) {
+                description.append(description.length() == 0 ? "" : ", ").append(option.name()).append("=?");
+            }
+        }
+        return description.toString();
+    }
+
+    @Override
+    public String toString() {
+        return this.name;
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the write pipeline shared by all selector workers and disk writers.
+ */
+public class WritePipelineMetrics {
+
+    // buffers queued on all disk writers and not yet written
+    private final AtomicLong queueDepth = new AtomicLong();
+
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+
+    // number of times a connection stopped reading because its write queue was full
+    private final AtomicLong stallCount = new AtomicLong();
+
+    private final AtomicLong stallNanos = new AtomicLong();
+
+    // `write()` calls issued to the files and the bytes they wrote, their ratio is the coalesced write size
+    private final AtomicLong diskWrites = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    // `force()` calls made by the durability policy and the time spent in them
+    private final AtomicLong syncCount = new AtomicLong();
+
+    private final AtomicLong syncNanos = new AtomicLong();
+
+    public void buffersQueued() {
+        long depth = this.queueDepth.incrementAndGet();
+        this.maxQueueDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    public void buffersWritten() {
+        this.queueDepth.decrementAndGet();
+    }
+
+    public void stalled(long nanos) {
+        this.stallCount.incrementAndGet();
+        this.stallNanos.addAndGet(nanos);
+    }
+
+    public void written(long bytes) {
+        this.diskWrites.incrementAndGet();
+        this.bytesWritten.addAndGet(bytes);
+    }
+
+    public void synced(long nanos) {
+        this.syncCount.incrementAndGet();
+        this.syncNanos.addAndGet(nanos);
+    }
+
+    public long getQueueDepth() {
+        return this.queueDepth.get();
+    }
+
+    public long getMaxQueueDepth() {
+        return this.maxQueueDepth.get();
+    }
+
+    public long getStallCount() {
+        return this.stallCount.get();
+    }
+
+    public long getStallMillis() {
+        return this.stallNanos.get() / 1_000_000;
+    }
+
+    public long getDiskWrites() {
+        return this.diskWrites.get();
+    }
+
+    public long getAverageWriteBytes() {
+        long writes = this.diskWrites.get();
+        return writes == 0 ? 0 : this.bytesWritten.get() / writes;
+    }
+
+    public long getSyncCount() {
+        return this.syncCount.get();
+    }
+
+    public long getSyncMillis() {
+        return this.syncNanos.get() / 1_000_000;
+    }
+
+    @Override
+    public String toString() {
+        return "write queue depth " + this.getQueueDepth() + " (max " + this.getMaxQueueDepth() + "), "
+                + this.getStallCount() + " read stall(s) for " + this.getStallMillis() + " ms, "
+                + this.getDiskWrites() + " disk write(s) of " + this.getAverageWriteBytes() + " byte(s) on average, "
+                + this.getSyncCount() + " sync(s) for " + this.getSyncMillis() + " ms";
+    }
+}